@@ -2,7 +2,9 @@ package com.amplitude.api;
 
 import android.app.Activity;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.database.sqlite.SQLiteDatabase;
 import android.location.Location;
 import android.os.Build;
@@ -21,13 +23,16 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kotlin.Unit;
 import okhttp3.Call;
@@ -107,6 +112,10 @@ public class AmplitudeClient {
      * The shared Amplitude database helper instance.
      */
     protected DatabaseHelper dbHelper;
+    /**
+     * The storage engine for unsent events, null to keep them in {@link #dbHelper}.
+     */
+    EventStore eventStore;
     /**
      * The Amplitude App API key.
      */
@@ -163,6 +172,8 @@ public class AmplitudeClient {
     long lastIdentifyId = -1;
     long lastEventTime = -1;
     long previousSessionId = -1;
+    // sequence number stored ahead of the ones handed out while metadata is written behind
+    long reservedSequenceNumber = -1;
 
     protected DeviceInfo deviceInfo;
 
@@ -172,6 +183,7 @@ public class AmplitudeClient {
     private int eventUploadThreshold = Constants.EVENT_UPLOAD_THRESHOLD;
     private int eventUploadMaxBatchSize = Constants.EVENT_UPLOAD_MAX_BATCH_SIZE;
     private int eventMaxCount = Constants.EVENT_MAX_COUNT;
+    private long eventMaxBytes = -1;
     private long eventUploadPeriodMillis = Constants.EVENT_UPLOAD_PERIOD_MILLIS;
     private long minTimeBetweenSessionsMillis = Constants.MIN_TIME_BETWEEN_SESSIONS_MILLIS;
     private long identifyBatchIntervalMillis= Constants.IDENTIFY_BATCH_INTERVAL_MILLIS;
@@ -186,8 +198,64 @@ public class AmplitudeClient {
     private String libraryName = Constants.LIBRARY;
     private String libraryVersion = Constants.VERSION;
     private boolean useDynamicConfig = false;
+    private boolean usePersistentDatabaseConnection = false;
+    private boolean useSegmentedLogStorage = false;
+    private boolean useRingBufferStorage = false;
+    private int ringBufferStorageSize = Constants.RING_BUFFER_STORAGE_SIZE;
+    private boolean useEventCompression = false;
+    private boolean useBinaryEventEncoding = false;
+    private boolean useUnifiedEventQueue = false;
+    private boolean useDatabaseSalvage = false;
+    private boolean useIncrementalVacuum = false;
+    private boolean useSharedStorage = false;
+
+    private boolean trimMemoryCallbackRegistered = false;
+
+    /**
+     * Buffers events for a group commit, null if group commit is disabled. Only touched on logThread.
+     */
+    GroupCommitWriter groupCommitWriter;
+
+    /**
+     * Coalesces metadata writes, null if metadata is written through. Only touched on logThread.
+     */
+    MetadataCache metadataCache;
+
+    /**
+     * The next batch, read while the previous one is being uploaded, and the max ids of that
+     * upload. Once it succeeds the batch is handed over as the next upload, it is dropped if the
+     * upload fails. Only touched on logThread.
+     */
+    private UploadBatch prefetchedBatch;
+
+    /**
+     * The event fields from the client configuration and the device info, see
+     * {@link #getEventEnvelope()}. Setters count their changes, the envelope is rebuilt on
+     * logThread once the count differs from the one it was built at.
+     */
+    private final AtomicInteger eventEnvelopeChanges = new AtomicInteger();
+    private EventEnvelope eventEnvelope;
+    private int eventEnvelopeVersion;
+    private DeviceInfo eventEnvelopeDeviceInfo;
+    /**
+     * Serializes the events that do not go through a middleware, only used on logThread.
+     */
+    private final EventWriter eventWriter = new EventWriter();
+    private long prefetchedAfterEventId = -1;
+    private long prefetchedAfterIdentifyId = -1;
+    // the eviction count of the store when the batch was read, see EventStore#getEvictionCount
+    private long prefetchedEvictionCount = -1;
+    private UploadBatch nextUploadBatch;
+    /**
+     * Counts the database resets, and the count the upload in flight was read at. Ids start over
+     * in a new database, so the rows of an upload read before a reset are not removed after it.
+     * Only touched on logThread.
+     */
+    private int databaseResets;
+    private int uploadDatabaseResets;
 
     private AtomicBoolean updateScheduled = new AtomicBoolean(false);
+    private AtomicBoolean maintenanceScheduled = new AtomicBoolean(false);
     /**
      * Whether or not the SDK is in the process of uploading events.
      */
@@ -208,11 +276,23 @@ public class AmplitudeClient {
     /**
      * The background event logging worker thread instance.
      */
-    WorkerThread logThread = new WorkerThread("logThread");
+    volatile WorkerThread logThread = new WorkerThread("logThread");
     /**
      * The background event uploading worker thread instance.
      */
-    WorkerThread httpThread = new WorkerThread("httpThread");
+    volatile WorkerThread httpThread = new WorkerThread("httpThread");
+    /**
+     * Work for logThread posted while the client moves over to the shared threads, it runs on the
+     * shared thread once the work already posted to the client's own thread is done. Null when
+     * no move is in progress, guarded by logThreadLock.
+     */
+    private List<Runnable> pendingLogThreadWork;
+    private final Object logThreadLock = new Object();
+    /**
+     * The worker threads serving every client with shared storage, started on first use.
+     */
+    static WorkerThread sharedLogThread;
+    static WorkerThread sharedHttpThread;
     /**
      * The core package for integrating with the Experiment SDK.
      */
@@ -353,8 +433,31 @@ public class AmplitudeClient {
 
         this.context = context.getApplicationContext();
         this.apiKey = apiKey;
-        this.dbHelper = DatabaseHelper.getDatabaseHelper(this.context, this.instanceName);
+        if (useSharedStorage) {
+            this.dbHelper = DatabaseHelper.getSharedDatabaseHelper(this.context, this.instanceName);
+        } else {
+            this.dbHelper = DatabaseHelper.getDatabaseHelper(this.context, this.instanceName);
+        }
+        this.dbHelper.setPersistentConnection(usePersistentDatabaseConnection);
+        this.dbHelper.setEventCodec(getEventCodec());
+        this.dbHelper.setUnifiedQueue(useUnifiedEventQueue);
+        this.dbHelper.setSalvageOnReset(useDatabaseSalvage);
+        this.dbHelper.setIncrementalVacuum(useIncrementalVacuum);
+        if (useRingBufferStorage) {
+            this.eventStore = RingBufferEventStore.getEventStore(
+                    this.context, this.instanceName, ringBufferStorageSize);
+        } else if (useSegmentedLogStorage) {
+            this.eventStore = SegmentedLogEventStore.getEventStore(this.context, this.instanceName);
+        } else {
+            this.eventStore = null;
+        }
+        getEventStore().setEventMaxCount(eventMaxCount);
+        getEventStore().setEventMaxBytes(eventMaxBytes);
+        if (usePersistentDatabaseConnection) {
+            registerDatabaseTrimMemoryCallback();
+        }
         this.platform = Utils.isEmptyString(platform) ? Constants.PLATFORM : platform;
+        invalidateEventEnvelope();
 
         final AmplitudeClient client = this;
         runOnLogThread(() -> {
@@ -379,6 +482,9 @@ public class AmplitudeClient {
                         }, serverZone);
                     }
 
+                    // carry over metadata and unsent events if shared storage was switched on or off
+                    migrateStorageMode();
+
                     deviceInfo = initializeDeviceInfo();
                     deviceId = initializeDeviceId();
                     if (this.deviceIdCallback != null) {
@@ -392,7 +498,7 @@ public class AmplitudeClient {
                         client.userId = dbHelper.getValue(USER_ID_KEY);
                     }
 
-                    identifyInterceptor = new IdentifyInterceptor(dbHelper, logThread, identifyBatchIntervalMillis, this);
+                    identifyInterceptor = new IdentifyInterceptor(dbHelper, identifyBatchIntervalMillis, this);
 
                     // set up listener to core package to receive exposure events from Experiment
                     connector.getEventBridge().setEventReceiver(analyticsEvent -> {
@@ -424,6 +530,20 @@ public class AmplitudeClient {
                     lastEventId = getLongvalue(LAST_EVENT_ID_KEY, -1);
                     lastIdentifyId = getLongvalue(LAST_IDENTIFY_ID_KEY, -1);
                     lastEventTime = getLongvalue(LAST_EVENT_TIME_KEY, -1);
+                    if (metadataCache != null) {
+                        // the stored ids may be behind if the process was killed before the
+                        // metadata was flushed, so read unsent events without an id bound
+                        lastEventId = -1;
+                        lastIdentifyId = -1;
+                    }
+
+                    // carry over unsent events if the storage layout or engine was changed
+                    if (dbHelper.migrateQueueLayout()) {
+                        // moved rows got new ids, so upload without an id bound until the next event
+                        setLastEventId(-1);
+                        setLastIdentifyId(-1);
+                    }
+                    migrateUnsentEvents();
 
                     // install database reset listener to re-insert metadata in memory
                     dbHelper.setDatabaseResetListener(new DatabaseResetListener() {
@@ -434,6 +554,12 @@ public class AmplitudeClient {
                             dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME, OPT_OUT_KEY, client.optOut ? 1L : 0L);
                             dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME, PREVIOUS_SESSION_ID_KEY, client.sessionId);
                             dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME, LAST_EVENT_TIME_KEY, client.lastEventTime);
+                            // the stored sequence number reservation is gone, take a new one
+                            client.reservedSequenceNumber = -1;
+                            // batches read before the reset hold ids of rows that are gone
+                            client.databaseResets++;
+                            client.prefetchedBatch = null;
+                            client.nextUploadBatch = null;
                         }
                     });
 
@@ -598,6 +724,26 @@ public class AmplitudeClient {
      */
     public AmplitudeClient setEventMaxCount(int eventMaxCount) {
         this.eventMaxCount = eventMaxCount;
+        if (this.dbHelper != null) {
+            getEventStore().setEventMaxCount(eventMaxCount);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the maximum total size in bytes of unsent events to keep on the device, in addition to
+     * the event max count. If the stored events grow past this size, then the SDK begins dropping
+     * events, starting from the earliest logged. A single event larger than this size is dropped.
+     * Disabled by default.
+     *
+     * @param eventMaxBytes the maximum size of unsent events in bytes, or -1 to disable
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setEventMaxBytes(long eventMaxBytes) {
+        this.eventMaxBytes = eventMaxBytes;
+        if (this.dbHelper != null) {
+            getEventStore().setEventMaxBytes(eventMaxBytes);
+        }
         return this;
     }
 
@@ -689,6 +835,7 @@ public class AmplitudeClient {
             appliedTrackingOptions.mergeIn(TrackingOptions.forCoppaControl());
         }
         apiPropertiesTrackingOptions = appliedTrackingOptions.getApiPropertiesTrackingOptions();
+        invalidateEventEnvelope();
         return this;
     }
 
@@ -700,6 +847,7 @@ public class AmplitudeClient {
         coppaControlEnabled = true;
         appliedTrackingOptions.mergeIn(TrackingOptions.forCoppaControl());
         apiPropertiesTrackingOptions = appliedTrackingOptions.getApiPropertiesTrackingOptions();
+        invalidateEventEnvelope();
         return this;
     }
 
@@ -710,6 +858,7 @@ public class AmplitudeClient {
         coppaControlEnabled = false;
         appliedTrackingOptions = TrackingOptions.copyOf(inputTrackingOptions);
         apiPropertiesTrackingOptions = appliedTrackingOptions.getApiPropertiesTrackingOptions();
+        invalidateEventEnvelope();
         return this;
     }
 
@@ -750,6 +899,7 @@ public class AmplitudeClient {
      */
     public AmplitudeClient setLibraryName(final String libraryName) {
         this.libraryName = libraryName;
+        invalidateEventEnvelope();
         return this;
     }
 
@@ -761,6 +911,7 @@ public class AmplitudeClient {
      */
     public AmplitudeClient setLibraryVersion(final String libraryVersion) {
         this.libraryVersion = libraryVersion;
+        invalidateEventEnvelope();
         return this;
     }
 
@@ -837,29 +988,635 @@ public class AmplitudeClient {
     }
 
     /**
-     * Track session events amplitude client. If enabled then the SDK will automatically send
-     * start and end session events to mark the start and end of the user's sessions.
-     *
-     * @param trackingSessionEvents whether to enable tracking of session events
-     * @return the AmplitudeClient
+     * Track session events amplitude client. If enabled then the SDK will automatically send
+     * start and end session events to mark the start and end of the user's sessions.
+     *
+     * @param trackingSessionEvents whether to enable tracking of session events
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient trackSessionEvents(boolean trackingSessionEvents) {
+        this.trackingSessionEvents = trackingSessionEvents;
+        return this;
+    }
+
+    /**
+     * Turning this flag on will find the best server url automatically based on users' geo location.
+     * Note:
+     * 1. If you have your own proxy server and use `setServerUrl` API, please leave this off.
+     * 2. If you have users in China Mainland, we suggest you turn this on.
+     *
+     * @param useDynamicConfig whether to enable dynamic config
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUseDynamicConfig(boolean useDynamicConfig) {
+        this.useDynamicConfig = useDynamicConfig;
+        return this;
+    }
+
+    /**
+     * Keep a single long-lived database connection with write-ahead logging, instead of opening
+     * and closing the database for every read and write. This greatly reduces the I/O cost of
+     * logging events at a high rate. The connection is closed when the system asks the app to
+     * trim memory, and reopened on the next database access.
+     *
+     * This function should be called before SDK initialization, e.g. {@link #initialize(Context, String)}.
+     *
+     * @param usePersistentDatabaseConnection whether to keep the database connection open
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUsePersistentDatabaseConnection(boolean usePersistentDatabaseConnection) {
+        this.usePersistentDatabaseConnection = usePersistentDatabaseConnection;
+        if (this.dbHelper != null) {
+            this.dbHelper.setPersistentConnection(usePersistentDatabaseConnection);
+            if (usePersistentDatabaseConnection) {
+                registerDatabaseTrimMemoryCallback();
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Store unsent events in append-only log files instead of the SQLite database. Logging an
+     * event becomes a sequential file append and uploaded events are dropped by deleting whole
+     * log segments, which costs far less disk I/O than database inserts and deletes.
+     * User and device metadata stays in the database.
+     *
+     * This function should be called before SDK initialization, e.g. {@link #initialize(Context, String)}.
+     * Unsent events are moved over on initialization when this setting is changed.
+     *
+     * @param useSegmentedLogStorage whether to store unsent events in log files
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUseSegmentedLogStorage(boolean useSegmentedLogStorage) {
+        this.useSegmentedLogStorage = useSegmentedLogStorage;
+        if (useSegmentedLogStorage) {
+            this.useRingBufferStorage = false;
+        }
+        return this;
+    }
+
+    /**
+     * Store unsent events in fixed size memory mapped ring buffers instead of the SQLite
+     * database, for apps that log events at a high rate, e.g. games and media players. Logging
+     * an event becomes a memory copy that still survives the app process being killed. Once a
+     * buffer is full the oldest unsent events are overwritten. User and device metadata stays
+     * in the database.
+     *
+     * This function should be called before SDK initialization, e.g. {@link #initialize(Context, String)}.
+     * Unsent events are moved over on initialization when this setting is changed.
+     *
+     * @param useRingBufferStorage whether to store unsent events in ring buffers
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUseRingBufferStorage(boolean useRingBufferStorage) {
+        this.useRingBufferStorage = useRingBufferStorage;
+        if (useRingBufferStorage) {
+            this.useSegmentedLogStorage = false;
+        }
+        return this;
+    }
+
+    /**
+     * Sets the size of the ring buffers used by {@link #setUseRingBufferStorage(boolean)}, one
+     * for events and one for identifys. Defaults to 1MB each.
+     * Changing the size of existing buffers drops the events stored in them.
+     *
+     * This function should be called before SDK initialization, e.g. {@link #initialize(Context, String)}.
+     *
+     * @param ringBufferStorageSize the size of each ring buffer in bytes
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setRingBufferStorageSize(int ringBufferStorageSize) {
+        this.ringBufferStorageSize = ringBufferStorageSize;
+        return this;
+    }
+
+    /**
+     * Store unsent events and identifys in a single SQLite table ordered by when they were
+     * logged, instead of one table each. An upload batch is then read with one in-order scan
+     * rather than reading a full batch from both tables and merging them by sequence number.
+     *
+     * This function should be called before SDK initialization, e.g. {@link #initialize(Context, String)}.
+     * Unsent events are moved over on initialization when this setting is changed.
+     *
+     * @param useUnifiedEventQueue whether to store events and identifys in one table
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUseUnifiedEventQueue(boolean useUnifiedEventQueue) {
+        this.useUnifiedEventQueue = useUnifiedEventQueue;
+        return this;
+    }
+
+    /**
+     * Shrink the SQLite database file in the background. Uploaded events leave free pages in the
+     * file, and once the app has been in the background for a while they are returned to the file
+     * system a few at a time, instead of the file staying at its largest size. New database files
+     * are then created with incremental auto-vacuum, existing files are converted by the first
+     * background run once little data is left in them. Files of clients that never enable this
+     * keep the default SQLite layout.
+     *
+     * @param useIncrementalVacuum whether to reclaim free database pages in the background
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUseIncrementalVacuum(boolean useIncrementalVacuum) {
+        this.useIncrementalVacuum = useIncrementalVacuum;
+        if (this.dbHelper != null) {
+            this.dbHelper.setIncrementalVacuum(useIncrementalVacuum);
+        }
+        return this;
+    }
+
+    /**
+     * Store the events and metadata of this client in one SQLite database shared by every client
+     * with shared storage, each row tagged with its client instance, instead of a database file
+     * per instance. All of those clients then log events and write to the database on a single
+     * worker thread through one connection, so apps with several instances stop contending for
+     * the disk with several writers. Uploads are still made separately by each client, with its
+     * own API key.
+     *
+     * This function should be called before SDK initialization, e.g. {@link #initialize(Context, String)}.
+     * Metadata and unsent events are moved over on initialization when this setting is changed.
+     * The client moves to the shared worker threads right away and keeps them, work it posted
+     * before still runs first.
+     *
+     * @param useSharedStorage whether to store events in the database shared by all instances
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUseSharedStorage(boolean useSharedStorage) {
+        this.useSharedStorage = useSharedStorage;
+        if (useSharedStorage) {
+            useSharedThreads();
+        }
+        return this;
+    }
+
+    /*
+     * Switches the client over to the worker threads shared by every client with shared storage.
+     * Work posted from now on is held back until the work already posted to the client's own
+     * logThread is done, so the two threads never run the client at the same time.
+     */
+    private void useSharedThreads() {
+        final WorkerThread ownLogThread;
+        WorkerThread ownHttpThread;
+        final WorkerThread newLogThread;
+        synchronized (AmplitudeClient.class) {
+            if (sharedLogThread == null) {
+                sharedLogThread = new WorkerThread("sharedLogThread");
+                sharedLogThread.start();
+                sharedHttpThread = new WorkerThread("sharedHttpThread");
+                sharedHttpThread.start();
+            }
+            if (logThread == sharedLogThread) {
+                return;
+            }
+            ownLogThread = logThread;
+            ownHttpThread = httpThread;
+            newLogThread = sharedLogThread;
+            synchronized (logThreadLock) {
+                pendingLogThreadWork = new ArrayList<Runnable>();
+                logThread = newLogThread;
+            }
+            httpThread = sharedHttpThread;
+        }
+        ownLogThread.post(new Runnable() {
+            @Override
+            public void run() {
+                newLogThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        runPendingLogThreadWork();
+                    }
+                });
+                ownLogThread.quit();
+            }
+        });
+        quitWhenIdle(ownHttpThread);
+    }
+
+    private void runPendingLogThreadWork() {
+        while (true) {
+            List<Runnable> work;
+            synchronized (logThreadLock) {
+                if (pendingLogThreadWork.isEmpty()) {
+                    pendingLogThreadWork = null;
+                    return;
+                }
+                work = pendingLogThreadWork;
+                pendingLogThreadWork = new ArrayList<Runnable>();
+            }
+            for (Runnable r : work) {
+                r.run();
+            }
+        }
+    }
+
+    private static void quitWhenIdle(final WorkerThread thread) {
+        thread.post(new Runnable() {
+            @Override
+            public void run() {
+                thread.quit();
+            }
+        });
+    }
+
+    /**
+     * Salvage unsent events when the SQLite database has to be reset after an error, e.g. a
+     * corrupted file. Every row that can still be read is copied into the new database before
+     * the old file is deleted, rather than losing all unsent events. Salvaging reads the whole
+     * file once, so a reset takes longer.
+     *
+     * @param useDatabaseSalvage whether to salvage readable rows when the database is reset
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUseDatabaseSalvage(boolean useDatabaseSalvage) {
+        this.useDatabaseSalvage = useDatabaseSalvage;
+        if (this.dbHelper != null) {
+            this.dbHelper.setSalvageOnReset(useDatabaseSalvage);
+        }
+        return this;
+    }
+
+    /**
+     * Compress unsent events stored in the SQLite database. Events repeat most of their device
+     * and library fields, so compressed rows take a fraction of the space and of the memory
+     * needed to load an upload batch. Events stored before this setting was turned on, or after
+     * it is turned off, stay readable.
+     *
+     * @param useEventCompression whether to compress stored events
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUseEventCompression(boolean useEventCompression) {
+        this.useEventCompression = useEventCompression;
+        if (this.dbHelper != null) {
+            this.dbHelper.setEventCodec(getEventCodec());
+        }
+        return this;
+    }
+
+    /**
+     * Store unsent events in the SQLite database in a compact binary encoding instead of JSON
+     * text. The fixed event fields are written as short ids and numbers as varints, and records
+     * are turned back into JSON without an intermediate object tree. Takes precedence over
+     * {@link #setUseEventCompression(boolean)}. Events stored in another encoding stay readable.
+     *
+     * @param useBinaryEventEncoding whether to store events in the binary encoding
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient setUseBinaryEventEncoding(boolean useBinaryEventEncoding) {
+        this.useBinaryEventEncoding = useBinaryEventEncoding;
+        if (this.dbHelper != null) {
+            this.dbHelper.setEventCodec(getEventCodec());
+        }
+        return this;
+    }
+
+    private byte getEventCodec() {
+        if (useBinaryEventEncoding) {
+            return EventCodec.CODEC_BINARY_V1;
+        }
+        return useEventCompression ? EventCodec.CODEC_DEFLATE_V1 : EventCodec.CODEC_NONE;
+    }
+
+    /**
+     * Internal method to get the storage of unsent events.
+     *
+     * @return the event store
+     */
+    EventStore getEventStore() {
+        return eventStore != null ? eventStore : dbHelper;
+    }
+
+    /*
+     * Moves unsent events left in the storage engines that are no longer used into the current one.
+     */
+    private void migrateUnsentEvents() {
+        EventStore current = getEventStore();
+        if (current != dbHelper) {
+            moveUnsentEvents(dbHelper, current);
+        }
+        if (!(current instanceof SegmentedLogEventStore)
+                && SegmentedLogEventStore.exists(context, instanceName)) {
+            SegmentedLogEventStore previous = SegmentedLogEventStore.getEventStore(context, instanceName);
+            moveUnsentEvents(previous, current);
+            previous.delete();
+            SegmentedLogEventStore.instances.remove(instanceName);
+        }
+        if (!(current instanceof RingBufferEventStore)
+                && RingBufferEventStore.exists(context, instanceName)) {
+            RingBufferEventStore previous =
+                    RingBufferEventStore.getEventStore(context, instanceName, ringBufferStorageSize);
+            moveUnsentEvents(previous, current);
+            previous.delete();
+            RingBufferEventStore.instances.remove(instanceName);
+        }
+    }
+
+    /*
+     * Moves the metadata and unsent events of this instance left in the database it used before
+     * shared storage was switched on or off into the current one. Moved metadata is removed from
+     * the previous database, so values left there were never moved and take precedence.
+     */
+    private void migrateStorageMode() {
+        DatabaseHelper previous;
+        if (useSharedStorage) {
+            if (!DatabaseHelper.databaseExists(context, instanceName)) {
+                return;
+            }
+            previous = DatabaseHelper.getDatabaseHelper(context, instanceName);
+        } else {
+            if (!DatabaseHelper.databaseExists(context, DatabaseHelper.SHARED_INSTANCE)) {
+                return;
+            }
+            previous = DatabaseHelper.getSharedDatabaseHelper(context, instanceName);
+        }
+
+        for (String key : new String[] { DEVICE_ID_KEY, USER_ID_KEY }) {
+            String value = previous.getValue(key);
+            if (value != null) {
+                dbHelper.insertOrReplaceKeyValue(key, value);
+                previous.insertOrReplaceKeyValue(key, null);
+            }
+        }
+        for (String key : new String[] { OPT_OUT_KEY, SEQUENCE_NUMBER_KEY, PREVIOUS_SESSION_ID_KEY,
+                LAST_EVENT_TIME_KEY, LAST_EVENT_ID_KEY, LAST_IDENTIFY_ID_KEY }) {
+            Long value = previous.getLongValue(key);
+            if (value != null) {
+                // ids are assigned again when the events are moved
+                if (!LAST_EVENT_ID_KEY.equals(key) && !LAST_IDENTIFY_ID_KEY.equals(key)) {
+                    dbHelper.insertOrReplaceKeyLongValue(key, value);
+                }
+                previous.insertOrReplaceKeyLongValue(key, null);
+            }
+        }
+        if (!previous.isSharedStorage()) {
+            // a database of its own may have rows left in either layout
+            previous.setUnifiedQueue(false);
+            moveUnsentEvents(previous, dbHelper);
+            previous.setUnifiedQueue(true);
+        }
+        moveUnsentEvents(previous, dbHelper);
+    }
+
+    /*
+     * Moves all unsent events and identifys from one store to another, keeping their order and
+     * priority. A database destination is written in one transaction. Moving stops at the first
+     * row that cannot be added, only the rows moved before it are removed from the old store.
+     */
+    private void moveUnsentEvents(EventStore from, final EventStore to) {
+        if (from.getTotalEventCount() == 0) {
+            return;
+        }
+        final List<JSONObject> events;
+        final List<JSONObject> identifys;
+        try {
+            events = from.getEvents(-1, -1);
+            identifys = from.getIdentifys(-1, -1);
+        } catch (JSONException e) {
+            logger.e(TAG, "Failed to move unsent events to the new event store", e);
+            return;
+        }
+        final Map<Long, Integer> priorities = from instanceof DatabaseHelper
+                ? ((DatabaseHelper) from).getEventPriorities() : new HashMap<Long, Integer>();
+
+        // the ids of the last rows moved, in the old store and in the new one
+        final long[] moved = { -1, -1, -1, -1 };
+        if (to instanceof DatabaseHelper) {
+            boolean committed = ((DatabaseHelper) to).runInTransaction(new DatabaseHelper.Transaction() {
+                @Override
+                public void run(SQLiteDatabase db) {
+                    if (addUnsentEvents(events, priorities, false, to, db, moved, 0)) {
+                        addUnsentEvents(identifys, priorities, true, to, db, moved, 2);
+                    }
+                }
+            });
+            if (!committed) {
+                return;
+            }
+        } else if (addUnsentEvents(events, priorities, false, to, null, moved, 0)) {
+            addUnsentEvents(identifys, priorities, true, to, null, moved, 2);
+        }
+
+        if (moved[0] >= 0) {
+            from.removeEvents(moved[0]);
+            setLastEventId(moved[1]);
+        }
+        if (moved[2] >= 0) {
+            from.removeIdentifys(moved[2]);
+            setLastIdentifyId(moved[3]);
+        }
+    }
+
+    /*
+     * Adds the rows to the store, in the caller's transaction if db is set, until one cannot be
+     * added. Records the ids of the last row added at moved[index] and moved[index + 1].
+     * Returns whether all rows were added.
+     */
+    private boolean addUnsentEvents(List<JSONObject> rows, Map<Long, Integer> priorities,
+                                    boolean identify, EventStore to, SQLiteDatabase db,
+                                    long[] moved, int index) {
+        for (JSONObject row : rows) {
+            long fromId = row.optLong("event_id", -1);
+            row.remove("event_id");
+            Integer priority = identify ? null : priorities.get(fromId);
+            int rowPriority = identify ? Constants.EVENT_PRIORITY_HIGH
+                    : priority != null ? priority : Constants.EVENT_PRIORITY_NORMAL;
+            String table = identify ? DatabaseHelper.IDENTIFY_TABLE_NAME : DatabaseHelper.EVENT_TABLE_NAME;
+            long toId;
+            if (db != null) {
+                toId = ((DatabaseHelper) to).insertEventToTable(db, table, row.toString(), rowPriority);
+            } else {
+                toId = identify ? to.addIdentify(row.toString()) : to.addEvent(row.toString(), rowPriority);
+            }
+            if (toId < 0) {
+                logger.w(TAG, "Failed to move an unsent event to the new event store, keeping the rest");
+                return false;
+            }
+            moved[index] = fromId;
+            moved[index + 1] = toId;
+        }
+        return true;
+    }
+
+    private synchronized void registerDatabaseTrimMemoryCallback() {
+        if (trimMemoryCallbackRegistered || context == null) {
+            return;
+        }
+        trimMemoryCallbackRegistered = true;
+        context.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                    closeDatabaseConnection();
+                }
+            }
+
+            @Override
+            public void onLowMemory() {
+                closeDatabaseConnection();
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {}
+        });
+    }
+
+    private void closeDatabaseConnection() {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (dbHelper != null) {
+                    flushMetadata();
+                    dbHelper.close();
+                }
+                if (eventStore != null) {
+                    eventStore.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Enable group commit of events with the default window and batch size. See
+     * {@link #enableGroupCommit(long, int)}.
+     *
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient enableGroupCommit() {
+        return enableGroupCommit(Constants.GROUP_COMMIT_WINDOW_MILLIS, Constants.GROUP_COMMIT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Enable group commit of events. Events logged within the given window are buffered in memory
+     * and written to the database, together with the event metadata, in a single transaction once
+     * the window elapses or the batch is full. This reduces disk writes for bursts of events, at
+     * the cost of losing the buffered events if the process is killed before they are written.
+     *
+     * @param windowMillis how long to buffer events before writing them
+     * @param maxBatchSize the maximum number of events buffered before they are written
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient enableGroupCommit(final long windowMillis, final int maxBatchSize) {
+        if (windowMillis <= 0 || maxBatchSize <= 0) {
+            logger.w(TAG, "Warning: group commit window and batch size must be positive.");
+            return this;
+        }
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (groupCommitWriter == null) {
+                    groupCommitWriter = new GroupCommitWriter(windowMillis, maxBatchSize, AmplitudeClient.this);
+                } else {
+                    groupCommitWriter.setWindowMillis(windowMillis);
+                    groupCommitWriter.setMaxBatchSize(maxBatchSize);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Disable group commit of events. Any buffered events are written to the database first.
+     *
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient disableGroupCommit() {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (groupCommitWriter != null) {
+                    GroupCommitWriter writer = groupCommitWriter;
+                    groupCommitWriter = null;
+                    writer.flush();
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Enable write-behind of the event metadata with the default flush period. See
+     * {@link #enableMetadataWriteBehind(long)}.
+     *
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient enableMetadataWriteBehind() {
+        return enableMetadataWriteBehind(Constants.METADATA_FLUSH_PERIOD_MILLIS);
+    }
+
+    /**
+     * Enable write-behind of the event metadata, e.g. the last event id and time. The metadata
+     * is updated for every logged event, which costs several database writes per event when
+     * written through. With write-behind only the latest values are written, in a single
+     * transaction, once the flush period elapses, before an upload and when the app goes to the
+     * background.
+     *
+     * If the process is killed before a flush, the metadata since the last flush is lost. The
+     * sequence number is stored ahead of the numbers handed out, so numbers are never reused
+     * but may skip ahead after a restart, and unsent events are read without relying on the
+     * stored event ids. This function should be called before SDK initialization, e.g.
+     * {@link #initialize(Context, String)}, for these recovery rules to apply.
+     *
+     * @param flushMillis how long to hold metadata changes before writing them
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient enableMetadataWriteBehind(final long flushMillis) {
+        if (flushMillis <= 0) {
+            logger.w(TAG, "Warning: metadata flush period must be positive.");
+            return this;
+        }
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (metadataCache == null) {
+                    metadataCache = new MetadataCache(flushMillis, AmplitudeClient.this);
+                } else {
+                    metadataCache.setFlushMillis(flushMillis);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Disable write-behind of the event metadata. Any pending metadata is written first.
+     *
+     * @return the AmplitudeClient
+     */
+    public AmplitudeClient disableMetadataWriteBehind() {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (metadataCache != null) {
+                    MetadataCache cache = metadataCache;
+                    metadataCache = null;
+                    cache.flush();
+                    // the stored value may be a reservation, write the exact number again
+                    dbHelper.insertOrReplaceKeyLongValue(SEQUENCE_NUMBER_KEY, sequenceNumber);
+                    reservedSequenceNumber = -1;
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Internal method to write any metadata held by the metadata cache to the database.
+     * <b>Note: </b> always call this on logThread
      */
-    public AmplitudeClient trackSessionEvents(boolean trackingSessionEvents) {
-        this.trackingSessionEvents = trackingSessionEvents;
-        return this;
+    void flushMetadata() {
+        if (metadataCache != null) {
+            metadataCache.flush();
+        }
     }
 
     /**
-     * Turning this flag on will find the best server url automatically based on users' geo location.
-     * Note:
-     * 1. If you have your own proxy server and use `setServerUrl` API, please leave this off.
-     * 2. If you have users in China Mainland, we suggest you turn this on.
-     *
-     * @param useDynamicConfig whether to enable dynamic config
-     * @return the AmplitudeClient
+     * Internal method to write any events buffered for group commit to the database.
+     * <b>Note: </b> always call this on logThread
      */
-    public AmplitudeClient setUseDynamicConfig(boolean useDynamicConfig) {
-        this.useDynamicConfig = useDynamicConfig;
-        return this;
+    void flushGroupCommit() {
+        if (groupCommitWriter != null) {
+            groupCommitWriter.flush();
+        }
     }
 
     /**
@@ -1015,6 +1772,96 @@ public class AmplitudeClient {
         }
     }
 
+    /**
+     * Log an event with the specified event type, immutable event properties, timestamp, with
+     * optional out of session flag. The properties are passed to the background thread without
+     * being copied, see {@link EventProperties}.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties
+     * @param timestamp       the timestamp in millisecond since epoch
+     * @param outOfSession    the out of session
+     */
+    public void logEvent(String eventType, EventProperties eventProperties, long timestamp, boolean outOfSession) {
+        logEvent(eventType, eventProperties, timestamp, outOfSession, null);
+    }
+
+    /**
+     * Log an event with the specified event type, immutable event properties, timestamp, with
+     * optional out of session flag and extra data for middleware.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties
+     * @param timestamp       the timestamp in millisecond since epoch
+     * @param outOfSession    the out of session
+     * @param extra           the extra unstructured data for middleware
+     */
+    public void logEvent(String eventType, EventProperties eventProperties, long timestamp, boolean outOfSession, MiddlewareExtra extra) {
+        if (validateLogEvent(eventType)) {
+            final JSONObject properties = eventProperties == null ? null : eventProperties.getProperties();
+            logEventOnLogThread(eventType, properties, null, null, null, null, timestamp, outOfSession, extra);
+        }
+    }
+
+    /**
+     * Log a batch of events, see {@link EventBatch}.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param batch the events
+     */
+    public void logEvents(EventBatch batch) {
+        logEvents(batch, null);
+    }
+
+    /**
+     * Log a batch of events. The events are passed to the background thread together and written
+     * to the database, with the event metadata, in a single transaction. Events logged earlier
+     * and buffered for group commit are written first.
+     * <b>Note:</b> this is asynchronous and happens on a background thread.
+     *
+     * @param batch the events
+     * @param extra the extra unstructured data for middleware, applied to every event
+     */
+    public void logEvents(EventBatch batch, final MiddlewareExtra extra) {
+        if (batch == null || batch.size() == 0 || !contextAndApiKeySet("logEvents()")) {
+            return;
+        }
+
+        final List<EventBatch.Entry> entries = new ArrayList<EventBatch.Entry>(batch.getEntries());
+        final boolean isForeground = this.inForeground;
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (Utils.isEmptyString(apiKey)) {  // in case initialization failed
+                    return;
+                }
+
+                // buffer the whole batch in a writer of its own, so it is written in one commit
+                GroupCommitWriter writer = groupCommitWriter;
+                if (writer != null) {
+                    writer.flush();
+                }
+                GroupCommitWriter batchWriter = new GroupCommitWriter(
+                    Constants.GROUP_COMMIT_WINDOW_MILLIS, Integer.MAX_VALUE, AmplitudeClient.this
+                );
+                groupCommitWriter = batchWriter;
+                try {
+                    for (EventBatch.Entry entry : entries) {
+                        logEvent(
+                            entry.eventType, entry.eventProperties, null, null, null, null,
+                            entry.timestamp, entry.outOfSession, extra, isForeground
+                        );
+                    }
+                } finally {
+                    groupCommitWriter = writer;
+                    batchWriter.flush();
+                }
+            }
+        });
+    }
+
     /**
      * Log an event with the specified event type.
      * <b>Note:</b> this is version is synchronous and blocks the main thread until done.
@@ -1169,11 +2016,14 @@ public class AmplitudeClient {
             groupProperties = Utils.cloneJSONObject(groupProperties);
         }
 
-        final JSONObject copyEventProperties = eventProperties;
-        final JSONObject copyApiProperties = apiProperties;
-        final JSONObject copyUserProperties = userProperties;
-        final JSONObject copyGroups = groups;
-        final JSONObject copyGroupProperties = groupProperties;
+        logEventOnLogThread(eventType, eventProperties, apiProperties, userProperties, groups,
+                groupProperties, timestamp, outOfSession, extra);
+    }
+
+    private void logEventOnLogThread(final String eventType, final JSONObject eventProperties,
+            final JSONObject apiProperties, final JSONObject userProperties, final JSONObject groups,
+            final JSONObject groupProperties, final long timestamp, final boolean outOfSession,
+            final MiddlewareExtra extra) {
         final boolean isForeground = this.inForeground;
         runOnLogThread(new Runnable() {
             @Override
@@ -1182,8 +2032,8 @@ public class AmplitudeClient {
                     return;
                 }
                 logEvent(
-                    eventType, copyEventProperties, copyApiProperties,
-                    copyUserProperties, copyGroups, copyGroupProperties, timestamp, outOfSession, extra,
+                    eventType, eventProperties, apiProperties,
+                    userProperties, groups, groupProperties, timestamp, outOfSession, extra,
                     isForeground
                 );
             }
@@ -1202,7 +2052,8 @@ public class AmplitudeClient {
      * @param timestamp       the timestamp
      * @param outOfSession    the out of session
      * @param inForeground    in foreground
-     * @return the event ID if succeeded, else -1.
+     * @return the event ID if succeeded, 0 if the event was buffered for group commit and has no
+     * ID yet, else -1.
      */
     protected long logEvent(String eventType, JSONObject eventProperties, JSONObject apiProperties,
                             JSONObject userProperties, JSONObject groups, JSONObject groupProperties,
@@ -1235,63 +2086,7 @@ public class AmplitudeClient {
         }
 
         long result = -1;
-        JSONObject event = new JSONObject();
         try {
-            event.put("event_type", replaceWithJSONNull(eventType));
-            event.put("timestamp", timestamp);
-            event.put("user_id", replaceWithJSONNull(userId));
-            event.put("device_id", replaceWithJSONNull(deviceId));
-            event.put("session_id", outOfSession ? -1 : sessionId);
-            event.put("uuid", UUID.randomUUID().toString());
-            event.put("sequence_number", getNextSequenceNumber());
-
-            if (appliedTrackingOptions.shouldTrackVersionName()) {
-                event.put("version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
-            }
-            if (appliedTrackingOptions.shouldTrackOsName()) {
-                event.put("os_name", replaceWithJSONNull(deviceInfo.getOsName()));
-            }
-            if (appliedTrackingOptions.shouldTrackOsVersion()) {
-                event.put("os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
-            }
-            if (appliedTrackingOptions.shouldTrackApiLevel()) {
-                event.put("api_level", replaceWithJSONNull(Build.VERSION.SDK_INT));
-            }
-            if (appliedTrackingOptions.shouldTrackDeviceBrand()) {
-                event.put("device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
-            }
-            if (appliedTrackingOptions.shouldTrackDeviceManufacturer()) {
-                event.put("device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
-            }
-            if (appliedTrackingOptions.shouldTrackDeviceModel()) {
-                event.put("device_model", replaceWithJSONNull(deviceInfo.getModel()));
-            }
-            if (appliedTrackingOptions.shouldTrackCarrier()) {
-                event.put("carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
-            }
-            if (appliedTrackingOptions.shouldTrackCountry()) {
-                event.put("country", replaceWithJSONNull(deviceInfo.getCountry()));
-            }
-            if (appliedTrackingOptions.shouldTrackLanguage()) {
-                event.put("language", replaceWithJSONNull(deviceInfo.getLanguage()));
-            }
-            if (appliedTrackingOptions.shouldTrackPlatform()) {
-                event.put("platform", platform);
-            }
-
-            JSONObject library = new JSONObject();
-            library.put("name", this.libraryName == null ? Constants.LIBRARY_UNKNOWN : this.libraryName);
-            library.put("version", this.libraryVersion == null ? Constants.VERSION_UNKNOWN : this.libraryVersion);
-            event.put("library", library);
-
-            if (plan != null) {
-                event.put("plan", plan.toJSONObject());
-            }
-
-            if (ingestionMetadata != null) {
-                event.put("ingestion_metadata", ingestionMetadata.toJSONObject());
-            }
-
             apiProperties = (apiProperties == null) ? new JSONObject() : apiProperties;
             if (apiPropertiesTrackingOptions != null && apiPropertiesTrackingOptions.length() > 0) {
                 apiProperties.put("tracking_options", apiPropertiesTrackingOptions);
@@ -1315,15 +2110,22 @@ public class AmplitudeClient {
             apiProperties.put("limit_ad_tracking", deviceInfo.isLimitAdTrackingEnabled());
             apiProperties.put("gps_enabled", deviceInfo.isGooglePlayServicesEnabled());
 
-            event.put("api_properties", apiProperties);
-            event.put("event_properties", (eventProperties == null) ? new JSONObject()
-                : truncate(eventProperties));
-            event.put("user_properties", (userProperties == null) ? new JSONObject()
-                : truncate(userProperties));
-            event.put("groups", (groups == null) ? new JSONObject() : truncate(groups));
-            event.put("group_properties", (groupProperties == null) ? new JSONObject()
-                : truncate(groupProperties));
-            result = saveEvent(eventType, event, extra);
+            Event event = new Event(
+                eventType,
+                timestamp,
+                userId,
+                deviceId,
+                outOfSession ? -1 : sessionId,
+                UUID.randomUUID().toString(),
+                getNextSequenceNumber(),
+                getEventEnvelope(),
+                apiProperties,
+                eventProperties,
+                userProperties,
+                groups,
+                groupProperties
+            );
+            result = saveEvent(event, extra);
 
             // If the the event is an identify, update the user properties to the core identity
             // for experiment SDK to consume.
@@ -1341,31 +2143,108 @@ public class AmplitudeClient {
         return result;
     }
 
+    /*
+     * Returns the fields every event gets from the client configuration and the device info,
+     * rebuilt only after a setter changed them or the device info was replaced.
+     */
+    private EventEnvelope getEventEnvelope() throws JSONException {
+        int changes = eventEnvelopeChanges.get();
+        if (eventEnvelope == null || eventEnvelopeVersion != changes || eventEnvelopeDeviceInfo != deviceInfo) {
+            eventEnvelopeDeviceInfo = deviceInfo;
+            eventEnvelopeVersion = changes;
+            eventEnvelope = new EventEnvelope(buildEventEnvelope());
+        }
+        return eventEnvelope;
+    }
+
+    private JSONObject buildEventEnvelope() throws JSONException {
+        JSONObject envelope = new JSONObject();
+        if (appliedTrackingOptions.shouldTrackVersionName()) {
+            envelope.put("version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
+        }
+        if (appliedTrackingOptions.shouldTrackOsName()) {
+            envelope.put("os_name", replaceWithJSONNull(deviceInfo.getOsName()));
+        }
+        if (appliedTrackingOptions.shouldTrackOsVersion()) {
+            envelope.put("os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
+        }
+        if (appliedTrackingOptions.shouldTrackApiLevel()) {
+            envelope.put("api_level", replaceWithJSONNull(Build.VERSION.SDK_INT));
+        }
+        if (appliedTrackingOptions.shouldTrackDeviceBrand()) {
+            envelope.put("device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
+        }
+        if (appliedTrackingOptions.shouldTrackDeviceManufacturer()) {
+            envelope.put("device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
+        }
+        if (appliedTrackingOptions.shouldTrackDeviceModel()) {
+            envelope.put("device_model", replaceWithJSONNull(deviceInfo.getModel()));
+        }
+        if (appliedTrackingOptions.shouldTrackCarrier()) {
+            envelope.put("carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
+        }
+        if (appliedTrackingOptions.shouldTrackCountry()) {
+            envelope.put("country", replaceWithJSONNull(deviceInfo.getCountry()));
+        }
+        if (appliedTrackingOptions.shouldTrackLanguage()) {
+            envelope.put("language", replaceWithJSONNull(deviceInfo.getLanguage()));
+        }
+        if (appliedTrackingOptions.shouldTrackPlatform()) {
+            envelope.put("platform", platform);
+        }
+
+        JSONObject library = new JSONObject();
+        library.put("name", this.libraryName == null ? Constants.LIBRARY_UNKNOWN : this.libraryName);
+        library.put("version", this.libraryVersion == null ? Constants.VERSION_UNKNOWN : this.libraryVersion);
+        envelope.put("library", library);
+
+        if (plan != null) {
+            envelope.put("plan", plan.toJSONObject());
+        }
+
+        if (ingestionMetadata != null) {
+            envelope.put("ingestion_metadata", ingestionMetadata.toJSONObject());
+        }
+        return envelope;
+    }
+
+    private void invalidateEventEnvelope() {
+        eventEnvelopeChanges.incrementAndGet();
+    }
+
+    /*
+     * Saves a logged event. Unless a middleware may need to see or change it, or it is an identify
+     * that may be intercepted, the event is written straight to its JSON string, without building
+     * the JSONObject.
+     */
+    private long saveEvent(Event event, MiddlewareExtra extra) throws JSONException {
+        if (event.isIdentify() || !middlewareRunner.isEmpty()) {
+            return saveEvent(event.eventType, event.toJSONObject(), extra);
+        }
+
+        identifyInterceptor.intercept(event.userId, event.deviceId);
+        return saveEvent(event.eventType, eventWriter.write(event), getEventPriority(event.eventType, extra));
+    }
+
     /**
      * Save event long. Internal method to save an event to the database.
      *
      * @param eventType the event type
      * @param event     the event
      * @param extra     the extra unstructured data for middleware
-     * @return the event ID if succeeded, else -1
+     * @return the event ID if succeeded, 0 if the event was buffered for group commit and has no
+     * ID yet, else -1
      */
     protected long saveEvent(String eventType, JSONObject event, MiddlewareExtra extra) {
         if (!middlewareRunner.run(new MiddlewarePayload(event, extra))) return -1;
 
-        if (Utils.isEmptyString(event.toString())) {
-            logger.e(TAG, String.format(
-                "Detected empty event string for event type %s, skipping", eventType
-            ));
-            return -1;
-        }
-
         // Intercept event
         event = identifyInterceptor.intercept(eventType, event);
         if (event == null) {
             return -1;
         }
 
-        return saveEvent(eventType, event);
+        return saveEvent(eventType, event, getEventPriority(eventType, extra));
     }
 
     /**
@@ -1373,31 +2252,72 @@ public class AmplitudeClient {
      *
      * @param eventType the event type
      * @param event     the event
-     * @return the event ID if succeeded, else -1
+     * @return the event ID if succeeded, 0 if the event was buffered for group commit and has no
+     * ID yet, else -1
      */
     protected long saveEvent(String eventType, JSONObject event) {
+        return saveEvent(eventType, event, getEventPriority(eventType, null));
+    }
+
+    /**
+     * Returns the priority an event is stored with. When storage is full, events of a lower
+     * priority are evicted first. Identifys, revenue and session events are kept longest, other
+     * events can be given a priority with the {@link Constants#AMP_EVENT_PRIORITY_EXTRA} extra.
+     *
+     * @param eventType the event type
+     * @param extra     the extra unstructured data for middleware, may be null
+     * @return the priority, one of the Constants.EVENT_PRIORITY values
+     */
+    static int getEventPriority(String eventType, MiddlewareExtra extra) {
+        Object priority = extra == null ? null : extra.get(Constants.AMP_EVENT_PRIORITY_EXTRA);
+        if (priority instanceof Number) {
+            return ((Number) priority).intValue();
+        }
+        if (eventType.equals(Constants.IDENTIFY_EVENT) || eventType.equals(Constants.GROUP_IDENTIFY_EVENT)
+                || eventType.equals(Constants.AMP_REVENUE_EVENT)
+                || eventType.equals(START_SESSION_EVENT) || eventType.equals(END_SESSION_EVENT)) {
+            return Constants.EVENT_PRIORITY_HIGH;
+        }
+        return Constants.EVENT_PRIORITY_NORMAL;
+    }
+
+    private long saveEvent(String eventType, JSONObject event, int priority) {
         String eventString = event.toString();
+        if (Utils.isEmptyString(eventString)) {
+            logger.e(TAG, String.format(
+                "Detected empty event string for event type %s, skipping", eventType
+            ));
+            return -1;
+        }
+        return saveEvent(eventType, eventString, priority);
+    }
+
+    /*
+     * Stores a serialized event. Events buffered for group commit only get their ID once the
+     * batch is written, 0 is returned for them.
+     */
+    private long saveEvent(String eventType, String eventString, int priority) {
+        boolean isIdentify = eventType.equals(Constants.IDENTIFY_EVENT) ||
+                eventType.equals(Constants.GROUP_IDENTIFY_EVENT);
+
+        if (groupCommitWriter != null) {
+            groupCommitWriter.addEvent(
+                isIdentify ? DatabaseHelper.IDENTIFY_TABLE_NAME : DatabaseHelper.EVENT_TABLE_NAME,
+                eventString,
+                priority
+            );
+            return 0;
+        }
 
-        if (eventType.equals(Constants.IDENTIFY_EVENT) || eventType.equals(Constants.GROUP_IDENTIFY_EVENT)) {
-            lastIdentifyId = dbHelper.addIdentify(eventString);
+        if (isIdentify) {
+            lastIdentifyId = getEventStore().addIdentify(eventString);
             setLastIdentifyId(lastIdentifyId);
         } else {
-            lastEventId = dbHelper.addEvent(eventString);
+            lastEventId = getEventStore().addEvent(eventString, priority);
             setLastEventId(lastEventId);
         }
 
-        int numEventsToRemove = Math.min(
-                Math.max(1, eventMaxCount/10),
-                Constants.EVENT_REMOVE_BATCH_SIZE
-        );
-        if (dbHelper.getEventCount() > eventMaxCount) {
-            dbHelper.removeEvents(dbHelper.getNthEventId(numEventsToRemove));
-        }
-        if (dbHelper.getIdentifyCount() > eventMaxCount) {
-            dbHelper.removeIdentifys(dbHelper.getNthIdentifyId(numEventsToRemove));
-        }
-
-        long totalEventCount = dbHelper.getTotalEventCount(); // counts may have changed, refetch
+        long totalEventCount = getEventStore().getTotalEventCount();
         if ((totalEventCount % eventUploadThreshold) == 0 &&
                 totalEventCount >= eventUploadThreshold) {
             updateServer();
@@ -1405,10 +2325,25 @@ public class AmplitudeClient {
             updateServerLater(eventUploadPeriodMillis);
         }
 
-        return (
-            eventType.equals(Constants.IDENTIFY_EVENT) ||
-            eventType.equals(Constants.GROUP_IDENTIFY_EVENT)
-        ) ? lastIdentifyId : lastEventId;
+        return isIdentify ? lastIdentifyId : lastEventId;
+    }
+
+    /**
+     * Internal method called by the {@link GroupCommitWriter} after a batch of events has been
+     * written to the database. <b>Note: </b> always call this on logThread
+     *
+     * @param committedCount the number of events written
+     */
+    void onGroupCommit(int committedCount) {
+        long totalEventCount = getEventStore().getTotalEventCount();
+        // upload if the batch pushed the unsent event count across an upload threshold multiple
+        if (committedCount > 0 && totalEventCount >= eventUploadThreshold &&
+                (totalEventCount / eventUploadThreshold) !=
+                        (Math.max(0, totalEventCount - committedCount) / eventUploadThreshold)) {
+            updateServer();
+        } else {
+            updateServerLater(eventUploadPeriodMillis);
+        }
     }
 
     // fetches key from dbHelper longValueStore
@@ -1425,7 +2360,20 @@ public class AmplitudeClient {
      */
     long getNextSequenceNumber() {
         sequenceNumber++;
-        dbHelper.insertOrReplaceKeyLongValue(SEQUENCE_NUMBER_KEY, sequenceNumber);
+        if (groupCommitWriter != null) {
+            groupCommitWriter.markMetadataDirty();
+            // the group commit stores the exact number, reserve again if it is disabled
+            reservedSequenceNumber = -1;
+        } else if (metadataCache != null) {
+            // keep the stored number ahead of the ones handed out, so none are reused if the
+            // process is killed before the metadata is flushed
+            if (sequenceNumber > reservedSequenceNumber) {
+                reservedSequenceNumber = sequenceNumber + Constants.SEQUENCE_NUMBER_RESERVATION - 1;
+                dbHelper.insertOrReplaceKeyLongValue(SEQUENCE_NUMBER_KEY, reservedSequenceNumber);
+            }
+        } else {
+            dbHelper.insertOrReplaceKeyLongValue(SEQUENCE_NUMBER_KEY, sequenceNumber);
+        }
         return sequenceNumber;
     }
 
@@ -1436,7 +2384,11 @@ public class AmplitudeClient {
      */
     void setLastEventTime(long timestamp) {
         lastEventTime = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, timestamp);
+        if (groupCommitWriter != null) {
+            groupCommitWriter.markMetadataDirty();
+        } else {
+            saveLongMetadata(LAST_EVENT_TIME_KEY, timestamp);
+        }
     }
 
     /**
@@ -1446,7 +2398,7 @@ public class AmplitudeClient {
      */
     void setLastEventId(long eventId) {
         lastEventId = eventId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_ID_KEY, eventId);
+        saveLongMetadata(LAST_EVENT_ID_KEY, eventId);
     }
 
     /**
@@ -1456,7 +2408,7 @@ public class AmplitudeClient {
      */
     void setLastIdentifyId(long identifyId) {
         lastIdentifyId = identifyId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_IDENTIFY_ID_KEY, identifyId);
+        saveLongMetadata(LAST_IDENTIFY_ID_KEY, identifyId);
     }
 
     /**
@@ -1475,7 +2427,18 @@ public class AmplitudeClient {
      */
     void setPreviousSessionId(long timestamp) {
         previousSessionId = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(PREVIOUS_SESSION_ID_KEY, timestamp);
+        saveLongMetadata(PREVIOUS_SESSION_ID_KEY, timestamp);
+    }
+
+    /*
+     * Writes a metadata value to long_store, or hands it to the metadata cache if enabled.
+     */
+    private void saveLongMetadata(String key, long value) {
+        if (metadataCache != null) {
+            metadataCache.putLongValue(key, value);
+        } else {
+            dbHelper.insertOrReplaceKeyLongValue(key, value);
+        }
     }
 
     /**
@@ -1588,6 +2551,8 @@ public class AmplitudeClient {
                     return;
                 }
                 refreshSessionTime(timestamp);
+                flushGroupCommit();
+                flushMetadata();
                 if (flushEventsOnClose) {
                     identifyInterceptor.transferInterceptedIdentify();
                     updateServer();
@@ -1599,10 +2564,44 @@ public class AmplitudeClient {
                 dbHelper.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
                 dbHelper.insertOrReplaceKeyLongValue(PREVIOUS_SESSION_ID_KEY, sessionId);
                 dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, lastEventTime);
+                scheduleDatabaseMaintenance(Constants.DATABASE_MAINTENANCE_DELAY_MILLIS);
             }
         });
     }
 
+    private void scheduleDatabaseMaintenance(long delayMillis) {
+        if (!useIncrementalVacuum || maintenanceScheduled.getAndSet(true)) {
+            return;
+        }
+
+        postOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                maintenanceScheduled.set(false);
+                runDatabaseMaintenance();
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Internal method to shrink the database file while the app is in the background, a bounded
+     * number of pages per step so events logged in between are not held up.
+     * <b>Note: </b> always call this on logThread
+     */
+    void runDatabaseMaintenance() {
+        if (inForeground) {
+            return;
+        }
+        if (uploadingCurrently.get()) {
+            // wait for the upload to remove its events, they free more pages
+            scheduleDatabaseMaintenance(Constants.DATABASE_MAINTENANCE_DELAY_MILLIS);
+            return;
+        }
+        if (dbHelper.incrementalVacuum(Constants.VACUUM_STEP_PAGES) > 0) {
+            scheduleDatabaseMaintenance(Constants.VACUUM_STEP_INTERVAL_MILLIS);
+        }
+    }
+
     /**
      * Internal method to handle on app enter foreground behavior.
      *
@@ -1912,6 +2911,26 @@ public class AmplitudeClient {
      * @return the truncated JSON object
      */
     public JSONObject truncate(JSONObject object) {
+        return truncateProperties(object);
+    }
+
+    /**
+     * Truncate values in a JSON array. Any string values longer than 1024 characters will be
+     * truncated to 1024 characters.
+     *
+     * @param array the array
+     * @return the truncated JSON array
+     * @throws JSONException the json exception
+     */
+    public JSONArray truncate(JSONArray array) throws JSONException {
+        return truncateProperties(array);
+    }
+
+    /*
+     * Truncates the object in place, see truncate(JSONObject). The EventWriter applies the same
+     * limits while it writes an event, without changing the properties.
+     */
+    static JSONObject truncateProperties(JSONObject object) {
         if (object == null) {
             return new JSONObject();
         }
@@ -1928,15 +2947,14 @@ public class AmplitudeClient {
             try {
                 Object value = object.get(key);
                 // do not truncate revenue receipt and receipt sig fields
-                if (key.equals(Constants.AMP_REVENUE_RECEIPT) ||
-                        key.equals(Constants.AMP_REVENUE_RECEIPT_SIG)) {
+                if (isTruncationExempt(key)) {
                     object.put(key, value);
                 } else if (value.getClass().equals(String.class)) {
                     object.put(key, truncate((String) value));
                 } else if (value.getClass().equals(JSONObject.class)) {
-                    object.put(key, truncate((JSONObject) value));
+                    object.put(key, truncateProperties((JSONObject) value));
                 } else if (value.getClass().equals(JSONArray.class)) {
-                    object.put(key, truncate((JSONArray) value));
+                    object.put(key, truncateProperties((JSONArray) value));
                 }
             } catch (JSONException e) {
                 logger.e(TAG, e.toString());
@@ -1946,15 +2964,7 @@ public class AmplitudeClient {
         return object;
     }
 
-    /**
-     * Truncate values in a JSON array. Any string values longer than 1024 characters will be
-     * truncated to 1024 characters.
-     *
-     * @param array the array
-     * @return the truncated JSON array
-     * @throws JSONException the json exception
-     */
-    public JSONArray truncate(JSONArray array) throws JSONException {
+    static JSONArray truncateProperties(JSONArray array) throws JSONException {
         if (array == null) {
             return new JSONArray();
         }
@@ -1964,14 +2974,18 @@ public class AmplitudeClient {
             if (value.getClass().equals(String.class)) {
                 array.put(i, truncate((String) value));
             } else if (value.getClass().equals(JSONObject.class)) {
-                array.put(i, truncate((JSONObject) value));
+                array.put(i, truncateProperties((JSONObject) value));
             } else if (value.getClass().equals(JSONArray.class)) {
-                array.put(i, truncate((JSONArray) value));
+                array.put(i, truncateProperties((JSONArray) value));
             }
         }
         return array;
     }
 
+    static boolean isTruncationExempt(String key) {
+        return key.equals(Constants.AMP_REVENUE_RECEIPT) || key.equals(Constants.AMP_REVENUE_RECEIPT_SIG);
+    }
+
     /**
      * Truncate a string to 1024 characters.
      *
@@ -2114,7 +3128,7 @@ public class AmplitudeClient {
             return;
         }
 
-        logThread.post(new Runnable() {
+        postOnLogThread(new Runnable() {
             @Override
             public void run() {
                 if (Utils.isEmptyString(apiKey)) {  // in case initialization failed
@@ -2131,7 +3145,7 @@ public class AmplitudeClient {
             return;
         }
 
-        logThread.postDelayed(new Runnable() {
+        postOnLogThread(new Runnable() {
             @Override
             public void run() {
                 updateScheduled.set(false);
@@ -2154,6 +3168,11 @@ public class AmplitudeClient {
      * @param limit the limit
      */
     protected void updateServer(boolean limit) {
+        // make events buffered for group commit visible to the upload, and store the metadata
+        // that goes with them
+        flushGroupCommit();
+        flushMetadata();
+
         if (optOut || offline) {
             return;
         }
@@ -2163,7 +3182,12 @@ public class AmplitudeClient {
 
         // if returning out of this block, always be sure to set uploadingCurrently to false!!
         if (!uploadingCurrently.getAndSet(true)) {
-            long totalEventCount = dbHelper.getTotalEventCount();
+            // a batch read ahead is only kept if the upload before it succeeded
+            UploadBatch prefetched = nextUploadBatch;
+            nextUploadBatch = null;
+            prefetchedBatch = null;
+
+            long totalEventCount = getEventStore().getTotalEventCount();
             long batchSize = Math.min(
                 limit ? backoffUploadBatchSize : eventUploadMaxBatchSize,
                 totalEventCount
@@ -2175,26 +3199,49 @@ public class AmplitudeClient {
             }
 
             try {
-                List<JSONObject> events = dbHelper.getEvents(lastEventId, batchSize);
-                List<JSONObject> identifys = dbHelper.getIdentifys(lastIdentifyId, batchSize);
-
-                final Pair<Pair<Long, Long>, JSONArray> merged = mergeEventsAndIdentifys(
-                        events, identifys, batchSize);
-                final JSONArray mergedEvents = merged.second;
-                if (mergedEvents.length() == 0) {
-                    uploadingCurrently.set(false);
-                    return;
+                final long maxEventId;
+                final long maxIdentifyId;
+                final String mergedEventsString;
+                // rows evicted since the batch was read must not be sent
+                if (prefetched != null && (prefetched.getCount() > batchSize
+                        || prefetchedEvictionCount != getEventStore().getEvictionCount())) {
+                    prefetched = null;
+                }
+                UploadBatch batch = prefetched != null ? prefetched
+                        : getEventStore().getUploadBatch(lastEventId, lastIdentifyId, batchSize);
+                if (batch != null) {
+                    if (batch.getCount() == 0) {
+                        uploadingCurrently.set(false);
+                        return;
+                    }
+                    maxEventId = batch.getMaxEventId();
+                    maxIdentifyId = batch.getMaxIdentifyId();
+                    mergedEventsString = batch.getEvents();
+                } else {
+                    List<JSONObject> events = getEventStore().getEvents(lastEventId, batchSize);
+                    List<JSONObject> identifys = getEventStore().getIdentifys(lastIdentifyId, batchSize);
+                    Pair<Pair<Long, Long>, JSONArray> merged = mergeEventsAndIdentifys(
+                            events, identifys, batchSize);
+                    if (merged.second.length() == 0) {
+                        uploadingCurrently.set(false);
+                        return;
+                    }
+                    maxEventId = merged.first.first;
+                    maxIdentifyId = merged.first.second;
+                    mergedEventsString = merged.second.toString();
                 }
-                final long maxEventId = merged.first.first;
-                final long maxIdentifyId = merged.first.second;
-                final String mergedEventsString = merged.second.toString();
 
+                uploadDatabaseResets = databaseResets;
                 httpThread.post(new Runnable() {
                     @Override
                     public void run() {
                         makeEventUploadPostRequest(callFactory, mergedEventsString, maxEventId, maxIdentifyId);
                     }
                 });
+                // read the next batch while this one is on the wire
+                if (batch != null && totalEventCount > batch.getCount()) {
+                    prefetchNextBatch(maxEventId, maxIdentifyId, batchSize);
+                }
             } catch (JSONException e) {
                 uploadingCurrently.set(false);
                 logger.e(TAG, e.toString());
@@ -2209,6 +3256,23 @@ public class AmplitudeClient {
         }
     }
 
+    /*
+     * Reads the batch after the one being uploaded, so it is ready to be sent as soon as that
+     * upload succeeds instead of being read only after the rows of the previous one are removed.
+     * Rows up to the max ids of the upload are skipped, so none are sent twice.
+     */
+    private void prefetchNextBatch(long afterEventId, long afterIdentifyId, long batchSize) {
+        UploadBatch batch = getEventStore().getUploadBatch(
+                afterEventId, afterIdentifyId, lastEventId, lastIdentifyId, batchSize);
+        if (batch == null || batch.getCount() == 0) {
+            return;
+        }
+        prefetchedBatch = batch;
+        prefetchedAfterEventId = afterEventId;
+        prefetchedAfterIdentifyId = afterIdentifyId;
+        prefetchedEvictionCount = getEventStore().getEvictionCount();
+    }
+
     /**
      * Internal method to merge unsent events and identifies into a single array by sequence number.
      *
@@ -2313,14 +3377,22 @@ public class AmplitudeClient {
             String stringResponse = response.body().string();
             if (response.code() == 200) {
                 uploadSuccess = true;
-                logThread.post(new Runnable() {
+                postOnLogThread(new Runnable() {
                     @Override
                     public void run() {
-                        if (maxEventId >= 0) dbHelper.removeEvents(maxEventId);
-                        if (maxIdentifyId >= 0) dbHelper.removeIdentifys(maxIdentifyId);
+                        // after a reset the ids belong to rows logged since, which were not sent
+                        if (uploadDatabaseResets == databaseResets) {
+                            if (maxEventId >= 0) getEventStore().removeEvents(maxEventId);
+                            if (maxIdentifyId >= 0) getEventStore().removeIdentifys(maxIdentifyId);
+                        }
+                        if (prefetchedBatch != null && prefetchedAfterEventId == maxEventId
+                                && prefetchedAfterIdentifyId == maxIdentifyId) {
+                            nextUploadBatch = prefetchedBatch;
+                        }
+                        prefetchedBatch = null;
                         uploadingCurrently.set(false);
-                        if (dbHelper.getTotalEventCount() > eventUploadThreshold) {
-                            logThread.post(new Runnable() {
+                        if (getEventStore().getTotalEventCount() > eventUploadThreshold) {
+                            postOnLogThread(new Runnable() {
                                 @Override
                                 public void run() {
                                     updateServer(backoffUpload);
@@ -2342,17 +3414,17 @@ public class AmplitudeClient {
 
                 // If blocked by one massive event, drop it
                 if (backoffUpload && backoffUploadBatchSize == 1) {
-                    if (maxEventId >= 0) dbHelper.removeEvent(maxEventId);
-                    if (maxIdentifyId >= 0) dbHelper.removeIdentify(maxIdentifyId);
+                    if (maxEventId >= 0) getEventStore().removeEvent(maxEventId);
+                    if (maxIdentifyId >= 0) getEventStore().removeIdentify(maxIdentifyId);
                     // maybe we want to reset backoffUploadBatchSize after dropping massive event
                 }
 
                 // Server complained about length of request, backoff and try again
                 backoffUpload = true;
-                int numEvents = Math.min((int)dbHelper.getEventCount(), backoffUploadBatchSize);
+                int numEvents = Math.min((int)getEventStore().getEventCount(), backoffUploadBatchSize);
                 backoffUploadBatchSize = (int)Math.ceil(numEvents / 2.0);
                 logger.w(TAG, "Request too large, will decrease size and attempt to reupload");
-                logThread.post(new Runnable() {
+                postOnLogThread(new Runnable() {
                    @Override
                     public void run() {
                        uploadingCurrently.set(false);
@@ -2465,12 +3537,49 @@ public class AmplitudeClient {
 
     protected void runOnLogThread(Runnable r) {
         if (Thread.currentThread() != logThread) {
-            logThread.post(r);
+            postOnLogThread(r);
         } else {
             r.run();
         }
     }
 
+    /**
+     * Internal method to post work to logThread, held back while the client moves to the shared
+     * threads, see {@link #setUseSharedStorage(boolean)}.
+     *
+     * @param r the runnable
+     */
+    void postOnLogThread(Runnable r) {
+        synchronized (logThreadLock) {
+            if (pendingLogThreadWork != null) {
+                pendingLogThreadWork.add(r);
+                return;
+            }
+        }
+        logThread.post(r);
+    }
+
+    /**
+     * Internal method to post delayed work to logThread, see {@link #postOnLogThread(Runnable)}.
+     *
+     * @param r the runnable
+     * @param delayMillis the delay
+     */
+    void postOnLogThread(final Runnable r, final long delayMillis) {
+        synchronized (logThreadLock) {
+            if (pendingLogThreadWork != null) {
+                pendingLogThreadWork.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        logThread.postDelayed(r, delayMillis);
+                    }
+                });
+                return;
+            }
+        }
+        logThread.postDelayed(r, delayMillis);
+    }
+
     /**
      * Internal method to replace null event fields with JSON null object.
      *
@@ -2529,22 +3638,26 @@ public class AmplitudeClient {
     protected long getCurrentTimeMillis() { return System.currentTimeMillis(); }
 
     /**
-     * Set tracking plan information.
+     * Set tracking plan information. Changes made to the plan afterwards only apply to events
+     * once it is set again.
      * @param plan Plan object
      * @return the AmplitudeClient
      */
     public AmplitudeClient setPlan(Plan plan) {
         this.plan = plan;
+        invalidateEventEnvelope();
         return this;
     }
 
     /**
-     * Set ingestion metadata information.
+     * Set ingestion metadata information. Changes made to the metadata afterwards only apply to
+     * events once it is set again.
      * @param ingestionMetadata IngestionMetadata object
      * @return the AmplitudeClient
      */
     public AmplitudeClient setIngestionMetadata(IngestionMetadata ingestionMetadata) {
         this.ingestionMetadata = ingestionMetadata;
+        invalidateEventEnvelope();
         return this;
     }
 
@@ -0,0 +1,435 @@
+package com.amplitude.api;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BinaryEventFormat
+ * Compact tagged encoding of serialized JSON events. Every value starts with a type tag, strings
+ * and non-integer numbers are length-prefixed, integers are zigzag varints and the keys of the
+ * fixed event envelope are written as small field ids instead of quoted strings. Records are
+ * converted from and to JSON text in a single pass without building a JSONObject tree.
+ * The field table of a released format version must never change.
+ * <b>Note: </b> not thread safe.
+ */
+class BinaryEventFormat {
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INTEGER = 3;
+    private static final int TAG_NUMBER = 4;
+    private static final int TAG_STRING = 5;
+    private static final int TAG_OBJECT = 6;
+    private static final int TAG_ARRAY = 7;
+    private static final int TAG_END = 8;
+
+    // object keys: 0 ends the object, 1 is followed by a literal key, 2 + i is FIELDS_V1[i]
+    private static final int KEY_END = 0;
+    private static final int KEY_LITERAL = 1;
+    private static final int KEY_FIELD_BASE = 2;
+
+    private static final String[] FIELDS_V1 = new String[] {
+        "event_type", "timestamp", "user_id", "device_id", "session_id", "uuid",
+        "sequence_number", "version_name", "os_name", "os_version", "api_level",
+        "device_brand", "device_manufacturer", "device_model", "carrier", "country",
+        "language", "platform", "library", "name", "version", "plan", "branch", "source",
+        "ingestion_metadata", "api_properties", "tracking_options", "location", "lat", "lng",
+        "androidADID", "android_app_set_id", "limit_ad_tracking", "gps_enabled",
+        "event_properties", "user_properties", "groups", "group_properties", "special",
+        "productId", "quantity", "price", "receipt", "receiptSig", "revenue", "revenueType",
+        "$set", "$setOnce", "$unset", "$add", "$append", "$prepend", "$preInsert",
+        "$postInsert", "$remove", "$clearAll",
+    };
+
+    private static final Map<String, Integer> FIELD_IDS_V1 = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < FIELDS_V1.length; i++) {
+            FIELD_IDS_V1.put(FIELDS_V1[i], i);
+        }
+    }
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    // encoder state
+    private byte[] output = new byte[1024];
+    private int outputLength;
+    private String json;
+    private int position;
+    private final StringBuilder stringBuilder = new StringBuilder();
+
+    // decoder state
+    private byte[] input;
+    private int inputPosition;
+
+    /**
+     * Converts a serialized JSON value into the binary format.
+     *
+     * @param json the JSON text
+     * @param prefix a byte written before the record, e.g. a codec marker
+     * @return the record, or null if the text is not valid JSON
+     */
+    byte[] encode(String json, byte prefix) {
+        this.json = json;
+        position = 0;
+        outputLength = 0;
+        writeByte(prefix);
+        try {
+            encodeValue();
+            skipWhitespace();
+            if (position != json.length()) {
+                return null;
+            }
+            return Arrays.copyOf(output, outputLength);
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        } finally {
+            this.json = null;
+            if (output.length > 64 * 1024) {
+                // do not hold on to the buffer of an unusually large event
+                output = new byte[1024];
+            }
+        }
+    }
+
+    /**
+     * Writes a binary record out as JSON text.
+     *
+     * @param data the record
+     * @param offset the position of the record in data
+     * @param builder the builder the JSON text is appended to
+     * @return false if the record is malformed
+     */
+    boolean writeJson(byte[] data, int offset, StringBuilder builder) {
+        input = data;
+        inputPosition = offset;
+        try {
+            writeValue(readByte(), builder);
+            return inputPosition == data.length;
+        } catch (IllegalArgumentException e) {
+            return false;
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        } catch (UnsupportedEncodingException e) {
+            return false;
+        } finally {
+            input = null;
+        }
+    }
+
+    private void encodeValue() {
+        skipWhitespace();
+        char c = json.charAt(position);
+        switch (c) {
+            case '{':
+                position++;
+                writeByte(TAG_OBJECT);
+                skipWhitespace();
+                if (json.charAt(position) == '}') {
+                    position++;
+                } else {
+                    while (true) {
+                        skipWhitespace();
+                        String key = readString();
+                        Integer fieldId = FIELD_IDS_V1.get(key);
+                        if (fieldId != null) {
+                            writeVarint(KEY_FIELD_BASE + fieldId);
+                        } else {
+                            writeVarint(KEY_LITERAL);
+                            writeUtf8(key);
+                        }
+                        skipWhitespace();
+                        expect(':');
+                        encodeValue();
+                        skipWhitespace();
+                        if (json.charAt(position) == ',') {
+                            position++;
+                        } else {
+                            expect('}');
+                            break;
+                        }
+                    }
+                }
+                writeVarint(KEY_END);
+                break;
+            case '[':
+                position++;
+                writeByte(TAG_ARRAY);
+                skipWhitespace();
+                if (json.charAt(position) == ']') {
+                    position++;
+                } else {
+                    while (true) {
+                        encodeValue();
+                        skipWhitespace();
+                        if (json.charAt(position) == ',') {
+                            position++;
+                        } else {
+                            expect(']');
+                            break;
+                        }
+                    }
+                }
+                writeByte(TAG_END);
+                break;
+            case '"':
+                writeByte(TAG_STRING);
+                writeUtf8(readString());
+                break;
+            case 't':
+                expectLiteral("true");
+                writeByte(TAG_TRUE);
+                break;
+            case 'f':
+                expectLiteral("false");
+                writeByte(TAG_FALSE);
+                break;
+            case 'n':
+                expectLiteral("null");
+                writeByte(TAG_NULL);
+                break;
+            default:
+                encodeNumber();
+        }
+    }
+
+    private void encodeNumber() {
+        int start = position;
+        boolean integer = true;
+        while (position < json.length()) {
+            char c = json.charAt(position);
+            if (c == '.' || c == 'e' || c == 'E' || c == '+') {
+                integer = false;
+            } else if (c != '-' && (c < '0' || c > '9')) {
+                break;
+            }
+            position++;
+        }
+        String literal = json.substring(start, position);
+        if (literal.isEmpty()) {
+            throw new IllegalArgumentException("Unexpected character at " + start);
+        }
+        if (integer && literal.length() < 19) {
+            long value = Long.parseLong(literal);
+            // keep the literal when it would not be written back the same way, e.g. "-0"
+            if (Long.toString(value).equals(literal)) {
+                writeByte(TAG_INTEGER);
+                writeVarint((value << 1) ^ (value >> 63));
+                return;
+            }
+        }
+        writeByte(TAG_NUMBER);
+        writeUtf8(literal);
+    }
+
+    private String readString() {
+        expect('"');
+        int start = position;
+        // fast path for strings without escapes
+        while (true) {
+            char c = json.charAt(position);
+            if (c == '"') {
+                position++;
+                return json.substring(start, position - 1);
+            }
+            if (c == '\\') {
+                break;
+            }
+            position++;
+        }
+
+        stringBuilder.setLength(0);
+        stringBuilder.append(json, start, position);
+        while (true) {
+            char c = json.charAt(position++);
+            if (c == '"') {
+                return stringBuilder.toString();
+            }
+            if (c != '\\') {
+                stringBuilder.append(c);
+                continue;
+            }
+            c = json.charAt(position++);
+            switch (c) {
+                case 'b': stringBuilder.append('\b'); break;
+                case 'f': stringBuilder.append('\f'); break;
+                case 'n': stringBuilder.append('\n'); break;
+                case 'r': stringBuilder.append('\r'); break;
+                case 't': stringBuilder.append('\t'); break;
+                case 'u':
+                    stringBuilder.append((char) Integer.parseInt(json.substring(position, position + 4), 16));
+                    position += 4;
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    stringBuilder.append(c);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid escape at " + position);
+            }
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < json.length() && json.charAt(position) <= ' ') {
+            position++;
+        }
+    }
+
+    private void expect(char c) {
+        if (json.charAt(position) != c) {
+            throw new IllegalArgumentException("Expected " + c + " at " + position);
+        }
+        position++;
+    }
+
+    private void expectLiteral(String literal) {
+        if (!json.startsWith(literal, position)) {
+            throw new IllegalArgumentException("Expected " + literal + " at " + position);
+        }
+        position += literal.length();
+    }
+
+    private void writeUtf8(String string) {
+        byte[] bytes;
+        try {
+            bytes = string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException(e);
+        }
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, output, outputLength, bytes.length);
+        outputLength += bytes.length;
+    }
+
+    private void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            output[outputLength++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output[outputLength++] = (byte) value;
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        output[outputLength++] = (byte) value;
+    }
+
+    private void ensureCapacity(int length) {
+        if (outputLength + length > output.length) {
+            output = Arrays.copyOf(output, Math.max(output.length * 2, outputLength + length));
+        }
+    }
+
+    private void writeValue(int tag, StringBuilder builder) throws UnsupportedEncodingException {
+        switch (tag) {
+            case TAG_NULL:
+                builder.append("null");
+                break;
+            case TAG_FALSE:
+                builder.append("false");
+                break;
+            case TAG_TRUE:
+                builder.append("true");
+                break;
+            case TAG_INTEGER:
+                long zigzag = readVarint();
+                builder.append((zigzag >>> 1) ^ -(zigzag & 1));
+                break;
+            case TAG_NUMBER:
+                builder.append(readUtf8());
+                break;
+            case TAG_STRING:
+                writeQuoted(readUtf8(), builder);
+                break;
+            case TAG_OBJECT:
+                builder.append('{');
+                boolean first = true;
+                for (long key = readVarint(); key != KEY_END; key = readVarint()) {
+                    if (!first) {
+                        builder.append(',');
+                    }
+                    first = false;
+                    if (key == KEY_LITERAL) {
+                        writeQuoted(readUtf8(), builder);
+                    } else {
+                        builder.append('"').append(FIELDS_V1[(int) (key - KEY_FIELD_BASE)]).append('"');
+                    }
+                    builder.append(':');
+                    writeValue(readByte(), builder);
+                }
+                builder.append('}');
+                break;
+            case TAG_ARRAY:
+                builder.append('[');
+                for (int element = readByte(), i = 0; element != TAG_END; element = readByte(), i++) {
+                    if (i > 0) {
+                        builder.append(',');
+                    }
+                    writeValue(element, builder);
+                }
+                builder.append(']');
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tag " + tag);
+        }
+    }
+
+    private static void writeQuoted(String string, StringBuilder builder) {
+        builder.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\b': builder.append("\\b"); break;
+                case '\f': builder.append("\\f"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    if (c < ' ') {
+                        builder.append("\\u");
+                        builder.append(HEX_DIGITS[(c >> 12) & 0xF]).append(HEX_DIGITS[(c >> 8) & 0xF]);
+                        builder.append(HEX_DIGITS[(c >> 4) & 0xF]).append(HEX_DIGITS[c & 0xF]);
+                    } else {
+                        builder.append(c);
+                    }
+            }
+        }
+        builder.append('"');
+    }
+
+    private String readUtf8() throws UnsupportedEncodingException {
+        int length = (int) readVarint();
+        if (length < 0 || inputPosition + length > input.length) {
+            throw new IllegalArgumentException("Invalid string length " + length);
+        }
+        String string = new String(input, inputPosition, length, "UTF-8");
+        inputPosition += length;
+        return string;
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = input[inputPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Invalid varint");
+    }
+
+    private int readByte() {
+        return input[inputPosition++] & 0xFF;
+    }
+}
@@ -20,7 +20,7 @@ public class Constants {
     public static final int API_VERSION = 2;
 
     public static final String DATABASE_NAME = PACKAGE_NAME;
-    public static final int DATABASE_VERSION = 4;
+    public static final int DATABASE_VERSION = 7;
 
     public static final String DEFAULT_INSTANCE = "$default_instance";
 
@@ -32,6 +32,14 @@ public class Constants {
     public static final long MIN_TIME_BETWEEN_SESSIONS_MILLIS = 5 * 60 * 1000; // 5m
     public static final long SESSION_TIMEOUT_MILLIS = 30 * 60 * 1000; // 30m
     public static final long IDENTIFY_BATCH_INTERVAL_MILLIS = 30 * 1000; // 30s
+    public static final long GROUP_COMMIT_WINDOW_MILLIS = 100; // 100ms
+    public static final int GROUP_COMMIT_MAX_BATCH_SIZE = 50;
+    public static final long METADATA_FLUSH_PERIOD_MILLIS = 10 * 1000; // 10s
+    public static final int SEQUENCE_NUMBER_RESERVATION = 100;
+    public static final long DATABASE_MAINTENANCE_DELAY_MILLIS = 10 * 1000; // 10s
+    public static final long VACUUM_STEP_INTERVAL_MILLIS = 500; // 500ms
+    public static final int VACUUM_STEP_PAGES = 128;
+    public static final int RING_BUFFER_STORAGE_SIZE = 1024 * 1024; // 1MB per queue
     public static final int MAX_STRING_LENGTH = 1024;
     public static final int MAX_PROPERTY_KEYS = 1000;
 
@@ -58,6 +66,13 @@ public class Constants {
     public static final String AMP_OP_REMOVE = "$remove";
 
     public static final String AMP_REVENUE_EVENT = "revenue_amount";
+
+    // stored event priorities, lower priorities are evicted first when storage is full
+    public static final int EVENT_PRIORITY_LOW = 0;
+    public static final int EVENT_PRIORITY_NORMAL = 1;
+    public static final int EVENT_PRIORITY_HIGH = 2;
+    // MiddlewareExtra key overriding the priority of a logged event, an Integer priority
+    public static final String AMP_EVENT_PRIORITY_EXTRA = "amplitude_event_priority";
     public static final String AMP_REVENUE_PRODUCT_ID = "$productId";
     public static final String AMP_REVENUE_QUANTITY = "$quantity";
     public static final String AMP_REVENUE_PRICE = "$price";
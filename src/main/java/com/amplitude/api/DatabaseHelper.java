@@ -1,24 +1,31 @@
 package com.amplitude.api;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseErrorHandler;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-class DatabaseHelper extends SQLiteOpenHelper {
+class DatabaseHelper extends SQLiteOpenHelper implements EventStore {
     private static final String TAG = DatabaseHelper.class.getName();
 
     static final Map<String, DatabaseHelper> instances = new HashMap<String, DatabaseHelper>();
@@ -27,12 +34,20 @@ class DatabaseHelper extends SQLiteOpenHelper {
     protected static final String LONG_STORE_TABLE_NAME = "long_store";
     private static final String KEY_FIELD = "key";
     private static final String VALUE_FIELD = "value";
+    private static final String TABLE_FIELD = "source";
 
     protected static final String EVENT_TABLE_NAME = "events";
     protected static final String IDENTIFY_TABLE_NAME = "identifys";
     protected static final String IDENTIFY_INTERCEPTOR_TABLE_NAME = "identify_interceptor";
+    protected static final String QUEUE_TABLE_NAME = "queue";
     private static final String ID_FIELD = "id";
     private static final String EVENT_FIELD = "event";
+    private static final String TYPE_FIELD = "type";
+    private static final String PRIORITY_FIELD = "priority";
+    private static final String INSTANCE_FIELD = "instance";
+
+    private static final int QUEUE_TYPE_EVENT = 0;
+    private static final int QUEUE_TYPE_IDENTIFY = 1;
 
     private static final String CREATE_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
@@ -40,21 +55,176 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private static final String CREATE_LONG_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + LONG_STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
             + VALUE_FIELD + " INTEGER);";
+    private static final String PRIORITY_COLUMN = PRIORITY_FIELD + " INTEGER NOT NULL DEFAULT "
+            + Constants.EVENT_PRIORITY_NORMAL;
     private static final String CREATE_EVENTS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + EVENT_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + PRIORITY_COLUMN + ");";
     private static final String CREATE_IDENTIFYS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + IDENTIFY_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + PRIORITY_COLUMN + ");";
     private static final String CREATE_IDENTIFY_INTERCEPTOR_TABLE = "CREATE TABLE IF NOT EXISTS "
             + IDENTIFY_INTERCEPTOR_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + EVENT_FIELD + " TEXT);";
+    private static final String CREATE_QUEUE_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + QUEUE_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + TYPE_FIELD + " INTEGER NOT NULL, " + EVENT_FIELD + " TEXT, " + PRIORITY_COLUMN + ");";
+    private static final String CREATE_QUEUE_TYPE_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + QUEUE_TABLE_NAME + "_" + TYPE_FIELD + " ON " + QUEUE_TABLE_NAME
+            + " (" + TYPE_FIELD + ", " + ID_FIELD + ");";
+
+    // the shared database keeps the rows of every instance in the same tables, keyed by instance
+    private static final String CREATE_SHARED_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + STORE_TABLE_NAME + " (" + INSTANCE_FIELD + " TEXT NOT NULL, " + KEY_FIELD + " TEXT NOT NULL, "
+            + VALUE_FIELD + " TEXT, PRIMARY KEY (" + INSTANCE_FIELD + ", " + KEY_FIELD + "));";
+    private static final String CREATE_SHARED_LONG_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + LONG_STORE_TABLE_NAME + " (" + INSTANCE_FIELD + " TEXT NOT NULL, " + KEY_FIELD + " TEXT NOT NULL, "
+            + VALUE_FIELD + " INTEGER, PRIMARY KEY (" + INSTANCE_FIELD + ", " + KEY_FIELD + "));";
+    private static final String CREATE_SHARED_IDENTIFY_INTERCEPTOR_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + IDENTIFY_INTERCEPTOR_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + INSTANCE_FIELD + " TEXT NOT NULL, " + EVENT_FIELD + " TEXT);";
+    private static final String CREATE_SHARED_QUEUE_TABLE = "CREATE TABLE IF NOT EXISTS "
+            + QUEUE_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + INSTANCE_FIELD + " TEXT NOT NULL, " + TYPE_FIELD + " INTEGER NOT NULL, "
+            + EVENT_FIELD + " TEXT, " + PRIORITY_COLUMN + ");";
+    private static final String CREATE_SHARED_QUEUE_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + QUEUE_TABLE_NAME + "_" + INSTANCE_FIELD + " ON " + QUEUE_TABLE_NAME
+            + " (" + INSTANCE_FIELD + ", " + TYPE_FIELD + ", " + ID_FIELD + ");";
+    private static final String CREATE_SHARED_IDENTIFY_INTERCEPTOR_INDEX = "CREATE INDEX IF NOT EXISTS "
+            + IDENTIFY_INTERCEPTOR_TABLE_NAME + "_" + INSTANCE_FIELD + " ON " + IDENTIFY_INTERCEPTOR_TABLE_NAME
+            + " (" + INSTANCE_FIELD + ", " + ID_FIELD + ");";
+
+    // both key/value tables read with one query, each row tagged with the table it came from
+    private static final String KEY_VALUE_TABLES = "(SELECT '" + STORE_TABLE_NAME + "' AS "
+            + TABLE_FIELD + ", " + KEY_FIELD + ", " + VALUE_FIELD + " FROM " + STORE_TABLE_NAME
+            + " UNION ALL SELECT '" + LONG_STORE_TABLE_NAME + "', " + KEY_FIELD + ", " + VALUE_FIELD
+            + " FROM " + LONG_STORE_TABLE_NAME + ")";
+    private static final String SHARED_KEY_VALUE_TABLES = "(SELECT '" + STORE_TABLE_NAME + "' AS "
+            + TABLE_FIELD + ", " + INSTANCE_FIELD + ", " + KEY_FIELD + ", " + VALUE_FIELD + " FROM "
+            + STORE_TABLE_NAME + " UNION ALL SELECT '" + LONG_STORE_TABLE_NAME + "', " + INSTANCE_FIELD
+            + ", " + KEY_FIELD + ", " + VALUE_FIELD + " FROM " + LONG_STORE_TABLE_NAME + ")";
+
+    /**
+     * Name of the shared database file, and the key of the helper owning its connection in
+     * {@link #instances}, see {@link #getSharedDatabaseHelper(Context, String)}.
+     */
+    static final String SHARED_INSTANCE = "$shared";
 
     File file;
     private String instanceName;
     private boolean callResetListenerOnDatabaseReset = true;
+    private boolean persistentConnection = false;
     private DatabaseResetListener databaseResetListener;
 
+    /**
+     * Row counts of the event tables, kept up to date on insert and delete so counting does not
+     * need a full-table aggregate query. A missing entry means the count is unknown and is read
+     * from the table on next access.
+     */
+    private final Map<String, Long> rowCounts = new HashMap<String, Long>();
+
+    /**
+     * Total size in bytes of the stored event payloads per table, tracked like the row counts.
+     */
+    private final Map<String, Long> payloadSizes = new HashMap<String, Long>();
+
+    /**
+     * Contents of the store and long_store tables by table name, read together on first access
+     * and kept in step on writes, so metadata lookups do not each need a query. A missing entry
+     * means the tables are read again on next access.
+     */
+    private final Map<String, Map<String, Object>> keyValues = new HashMap<String, Map<String, Object>>();
+
+    /**
+     * Maximum number of rows kept in the events and identifys tables, -1 for no limit.
+     */
+    private long eventMaxCount = -1;
+
+    /**
+     * Maximum total size in bytes of the payloads in the events and identifys tables, -1 for no limit.
+     */
+    private long eventMaxBytes = -1;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LOWEST_PRIORITY_FIRST;
+    private long evictionCount = 0;
+
+    /**
+     * Codec for encoded event rows. Rows stay readable when the codec is changed or turned off.
+     */
+    private final EventCodec eventCodec = new EventCodec();
+    private byte eventCodecId = EventCodec.CODEC_NONE;
+
+    /**
+     * Whether events and identifys share the queue table, see {@link #setUnifiedQueue(boolean)}.
+     * Row counts and payload sizes stay keyed by the logical table name either way.
+     */
+    private boolean unifiedQueue = false;
+
+    /**
+     * Files without incremental auto-vacuum are converted with a full VACUUM, which rewrites every
+     * live page, so only once no more than this many pages are in use.
+     */
+    private static final long VACUUM_CONVERT_MAX_PAGES = 256;
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    /**
+     * Maximum size in bytes of the rows read by one query when falling back to chunked reads,
+     * well below the default 2MB CursorWindow.
+     */
+    private static final int READ_CHUNK_BYTES = 512 * 1024;
+
+    /**
+     * Whether a reset copies the readable rows of the old database file into the new one before
+     * the old file is deleted, see {@link #setSalvageOnReset(boolean)}.
+     */
+    private boolean salvageOnReset = false;
+    /**
+     * Whether new database files are created with incremental auto-vacuum, see
+     * {@link #setIncrementalVacuum(boolean)}.
+     */
+    private boolean incrementalVacuum = false;
+    private long salvagedRowCount = 0;
+    private long lostRowCount = 0;
+
+    // tables copied on salvage, key/value tables first so metadata survives even if event reads fail
+    private static final String[] SALVAGED_TABLES = {
+        STORE_TABLE_NAME, LONG_STORE_TABLE_NAME, EVENT_TABLE_NAME, IDENTIFY_TABLE_NAME,
+        IDENTIFY_INTERCEPTOR_TABLE_NAME, QUEUE_TABLE_NAME
+    };
+
+    /**
+     * Number of consecutive rowids read by one salvage query. A corrupt page only fails the
+     * queries touching it, and those ranges are retried row by row.
+     */
+    private static final int SALVAGE_RANGE_ROWS = 100;
+
+    /**
+     * Compiled statements of the fixed queries by SQL, bound to the connection they were compiled
+     * on. Parameters are bound on each use, so every query is parsed and planned once per
+     * connection. Cleared when the connection changes or is closed.
+     */
+    private final Map<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+    private SQLiteDatabase statementDb;
+
+    /**
+     * Whether this helper owns the connection to the shared database file. Its tables hold the
+     * rows of every instance, and it is only used through the helpers scoped to an instance.
+     */
+    private boolean sharedFile = false;
+
+    /**
+     * In shared storage mode, the helper owning the connection to the shared database and the
+     * instance the rows of this helper are stored under, both null for a database of its own.
+     */
+    private DatabaseHelper sharedStorage;
+    private String storageInstance;
+    private String instanceSelection;
+
+    /**
+     * Incremented by the owner of the shared database each time it is created or reset. Helpers
+     * scoped to an instance keep the value they last saw, to notice resets caused by other instances.
+     */
+    private volatile int resetGeneration = 0;
+
     private static final AmplitudeLog logger = AmplitudeLog.getLogger();
 
     @Deprecated
@@ -72,7 +242,39 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return dbHelper;
     }
 
-    private static String getDatabaseName(String instance) {
+    /**
+     * Returns the helper for the rows of the given instance in the shared database, which keeps
+     * the rows of all instances in the same tables, tagged with their instance. Every instance
+     * reads and writes through the one connection of the shared database, always persistent and
+     * with events and identifys in the unified queue table.
+     *
+     * @param context the context
+     * @param instance the instance name
+     * @return the helper scoped to the instance
+     */
+    static synchronized DatabaseHelper getSharedDatabaseHelper(Context context, String instance) {
+        instance = Utils.normalizeInstanceName(instance);
+        DatabaseHelper owner = instances.get(SHARED_INSTANCE);
+        if (owner == null) {
+            owner = new DatabaseHelper(context.getApplicationContext(), SHARED_INSTANCE);
+            owner.sharedFile = true;
+            owner.persistentConnection = true;
+            instances.put(SHARED_INSTANCE, owner);
+        }
+        String key = SHARED_INSTANCE + "/" + instance;
+        DatabaseHelper dbHelper = instances.get(key);
+        if (dbHelper == null) {
+            dbHelper = new DatabaseHelper(context.getApplicationContext(), instance, owner);
+            instances.put(key, dbHelper);
+        }
+        return dbHelper;
+    }
+
+    static boolean databaseExists(Context context, String instance) {
+        return context.getDatabasePath(getDatabaseName(Utils.normalizeInstanceName(instance))).exists();
+    }
+
+    static String getDatabaseName(String instance) {
         return (Utils.isEmptyString(instance) || instance.equals(Constants.DEFAULT_INSTANCE)) ? Constants.DATABASE_NAME : Constants.DATABASE_NAME + "_" + instance;
     }
 
@@ -86,12 +288,287 @@ class DatabaseHelper extends SQLiteOpenHelper {
         instanceName = Utils.normalizeInstanceName(instance);
     }
 
+    private DatabaseHelper(Context context, String instance, DatabaseHelper sharedStorage) {
+        this(context, SHARED_INSTANCE);
+        instanceName = Utils.normalizeInstanceName(instance);
+        this.sharedStorage = sharedStorage;
+        storageInstance = instanceName;
+        instanceSelection = INSTANCE_FIELD + " = " + DatabaseUtils.sqlEscapeString(storageInstance);
+        persistentConnection = true;
+        unifiedQueue = true;
+        resetGeneration = sharedStorage.resetGeneration;
+    }
+
+    /**
+     * @return whether the rows of this helper are stored in the shared database
+     */
+    boolean isSharedStorage() {
+        return sharedStorage != null;
+    }
+
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        if (sharedStorage == null) {
+            return super.getWritableDatabase();
+        }
+        SQLiteDatabase db = sharedStorage.getWritableDatabase();
+        checkSharedReset();
+        return db;
+    }
+
+    @Override
+    public SQLiteDatabase getReadableDatabase() {
+        if (sharedStorage == null) {
+            return super.getReadableDatabase();
+        }
+        SQLiteDatabase db = sharedStorage.getReadableDatabase();
+        checkSharedReset();
+        return db;
+    }
+
+    /*
+        Drops what this helper knows about the shared database once it was created again, e.g.
+        after another instance ran into an error, and lets the listener restore the metadata of
+        this instance, as onCreate does for a database of its own.
+     */
+    private synchronized void checkSharedReset() {
+        int generation = sharedStorage.resetGeneration;
+        if (generation == resetGeneration) {
+            return;
+        }
+        resetGeneration = generation;
+        clearTableStats();
+        keyValues.clear();
+        closeStatements();
+        if (databaseResetListener != null && callResetListenerOnDatabaseReset) {
+            try {
+                callResetListenerOnDatabaseReset = false;  // guards against stack overflow
+                databaseResetListener.onDatabaseReset(sharedStorage.getWritableDatabase());
+            } catch (SQLiteException e) {
+                logger.e(TAG, String.format("databaseReset callback failed after shared database reset"), e);
+            } finally {
+                callResetListenerOnDatabaseReset = true;
+            }
+        }
+    }
+
     void setDatabaseResetListener(DatabaseResetListener databaseResetListener) {
         this.databaseResetListener = databaseResetListener;
     }
 
+    /**
+     * Keep one long-lived connection open with write-ahead logging instead of opening and
+     * closing the database around every operation. The connection is only closed by an
+     * explicit {@link #close()}, e.g. on memory trim, or when recovering from corruption.
+     *
+     * @param persistentConnection whether to keep the connection open between operations
+     */
+    synchronized void setPersistentConnection(boolean persistentConnection) {
+        // the shared database connection is always persistent
+        if (this.persistentConnection == persistentConnection || sharedStorage != null) {
+            return;
+        }
+        // reopen on next access so the journal mode matches the new setting
+        close();
+        this.persistentConnection = persistentConnection;
+    }
+
+    synchronized boolean isPersistentConnection() {
+        return persistentConnection;
+    }
+
+    /**
+     * Caps the number of rows in the events and identifys tables. Inserts past the cap evict
+     * rows in the same transaction, see {@link #trimEventsToCount(SQLiteDatabase, String, long)}.
+     *
+     * @param eventMaxCount the maximum number of rows per table, -1 for no limit
+     */
+    @Override
+    public synchronized void setEventMaxCount(long eventMaxCount) {
+        this.eventMaxCount = eventMaxCount;
+    }
+
+    /**
+     * Caps the total size of the event payloads in the events and identifys tables. Inserts past
+     * the cap evict the oldest rows in the same transaction.
+     *
+     * @param eventMaxBytes the maximum total payload size in bytes, -1 for no limit
+     */
+    @Override
+    public synchronized void setEventMaxBytes(long eventMaxBytes) {
+        this.eventMaxBytes = eventMaxBytes;
+    }
+
+    /**
+     * Store new event rows encoded as BLOBs, see {@link EventCodec}. Existing rows are still
+     * read whatever codec they were written with.
+     *
+     * @param eventCodecId the codec for new event rows, {@link EventCodec#CODEC_NONE} for JSON text
+     */
+    synchronized void setEventCodec(byte eventCodecId) {
+        this.eventCodecId = eventCodecId;
+    }
+
+    /**
+     * Store events and identifys in the single queue table, tagged with their type. Ids are
+     * assigned from one sequence in the order the rows are logged, so an upload batch is read
+     * with one in-order scan instead of merging the two tables by sequence number, see
+     * {@link #getUploadBatch(long, long, long)}. Rows written in the other layout are moved
+     * over by {@link #migrateQueueLayout()}.
+     *
+     * @param unifiedQueue whether to keep events and identifys in the queue table
+     */
+    synchronized void setUnifiedQueue(boolean unifiedQueue) {
+        if (sharedStorage != null) {
+            // the shared database only has the queue table
+            return;
+        }
+        if (this.unifiedQueue != unifiedQueue) {
+            clearTableStats();
+        }
+        this.unifiedQueue = unifiedQueue;
+    }
+
+    synchronized boolean isUnifiedQueue() {
+        return unifiedQueue;
+    }
+
+    /**
+     * When the database has to be reset after an error, first move the old file aside and copy
+     * every row that can still be read into the new database, table by table and range by range,
+     * instead of dropping all unsent events. Rows in unreadable ranges are counted as lost.
+     * Metadata restored by the {@link DatabaseResetListener} takes precedence over salvaged values.
+     *
+     * @param salvageOnReset whether to salvage readable rows on reset
+     */
+    synchronized void setSalvageOnReset(boolean salvageOnReset) {
+        if (sharedStorage != null) {
+            sharedStorage.setSalvageOnReset(salvageOnReset);
+            return;
+        }
+        this.salvageOnReset = salvageOnReset;
+    }
+
+    /**
+     * Create new database files with incremental auto-vacuum, so {@link #incrementalVacuum(int)}
+     * can free pages without converting the file first. Files created without it keep their
+     * layout until incrementalVacuum converts them.
+     *
+     * @param incrementalVacuum whether new files use incremental auto-vacuum
+     */
+    synchronized void setIncrementalVacuum(boolean incrementalVacuum) {
+        if (sharedStorage != null) {
+            sharedStorage.setIncrementalVacuum(incrementalVacuum);
+            return;
+        }
+        this.incrementalVacuum = incrementalVacuum;
+    }
+
+    /**
+     * @return the number of rows copied over by salvaging resets since the helper was created
+     */
+    synchronized long getSalvagedRowCount() {
+        return sharedStorage != null ? sharedStorage.getSalvagedRowCount() : salvagedRowCount;
+    }
+
+    /**
+     * @return the number of rows that could not be read by salvaging resets since the helper
+     * was created
+     */
+    synchronized long getLostRowCount() {
+        return sharedStorage != null ? sharedStorage.getLostRowCount() : lostRowCount;
+    }
+
+    synchronized void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy == null ? EvictionPolicy.LOWEST_PRIORITY_FIRST : evictionPolicy;
+    }
+
+    @Override
+    public synchronized void close() {
+        closeStatements();
+        // the shared connection stays open for the other instances
+        if (sharedStorage == null) {
+            super.close();
+        }
+    }
+
+    /*
+        Returns the cached statement for the SQL on the given connection, compiling it on first
+        use. The statement is shared, callers bind all of its parameters and must not close it.
+     */
+    private SQLiteStatement getStatement(SQLiteDatabase db, String sql) throws SQLiteException {
+        if (db != statementDb) {
+            closeStatements();
+            statementDb = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private void closeStatements() {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        statementDb = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        // the journal mode must be set before the connection is used
+        configureWriteAheadLogging(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // onConfigure is only called from Jelly Bean on
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            configureWriteAheadLogging(db);
+        }
+    }
+
+    private void configureWriteAheadLogging(SQLiteDatabase db) {
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (persistentConnection) {
+            // WAL lets the long-lived connection commit without rewriting the main file,
+            // and keeps it consistent if the process is killed without closing it
+            db.enableWriteAheadLogging();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                && db.isWriteAheadLoggingEnabled()) {
+            // move a file left in WAL mode by an earlier persistent connection back, and
+            // otherwise keep the platform's default journal mode
+            db.disableWriteAheadLogging();
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        clearTableStats();
+        keyValues.clear();
+        if (incrementalVacuum) {
+            // only takes effect before the first table is created, see incrementalVacuum
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        }
+        if (sharedFile) {
+            db.execSQL(CREATE_SHARED_STORE_TABLE);
+            db.execSQL(CREATE_SHARED_LONG_STORE_TABLE);
+            db.execSQL(CREATE_SHARED_IDENTIFY_INTERCEPTOR_TABLE);
+            db.execSQL(CREATE_SHARED_IDENTIFY_INTERCEPTOR_INDEX);
+            db.execSQL(CREATE_SHARED_QUEUE_TABLE);
+            db.execSQL(CREATE_SHARED_QUEUE_INDEX);
+            // the scoped helpers call their own reset listeners, see checkSharedReset
+            resetGeneration++;
+            return;
+        }
         db.execSQL(CREATE_STORE_TABLE);
         db.execSQL(CREATE_LONG_STORE_TABLE);
         // INTEGER PRIMARY KEY AUTOINCREMENT guarantees that all generated values
@@ -100,6 +577,8 @@ class DatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(CREATE_EVENTS_TABLE);
         db.execSQL(CREATE_IDENTIFYS_TABLE);
         db.execSQL(CREATE_IDENTIFY_INTERCEPTOR_TABLE);
+        db.execSQL(CREATE_QUEUE_TABLE);
+        db.execSQL(CREATE_QUEUE_TYPE_INDEX);
 
         // NOTE: the database file can become corrupted between interactions
         // getWriteableDatabase and getReadableDatabase will test for corruption
@@ -120,6 +599,8 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        clearTableStats();
+        keyValues.clear();
         if (oldVersion > newVersion) {
             logger.e(TAG, "onUpgrade() with invalid oldVersion and newVersion");
             resetDatabase(db);
@@ -145,6 +626,20 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 if (newVersion <= 4) break;
 
             case 4:
+                db.execSQL(CREATE_QUEUE_TABLE);
+                db.execSQL(CREATE_QUEUE_TYPE_INDEX);
+                if (newVersion <= 5) break;
+
+            case 5:
+                addPriorityColumns(db);
+                if (newVersion <= 6) break;
+
+            case 6:
+                // existing files switch to incremental auto-vacuum with the VACUUM of the first
+                // maintenance run, only once the client opted in, see incrementalVacuum
+                if (newVersion <= 7) break;
+
+            case 7:
                 break;
 
             default:
@@ -153,21 +648,78 @@ class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    /*
+        Adds the priority column to the event tables created before version 6. Tables created by
+        an earlier step of the same upgrade already have it. Identifys, and the events types the
+        client logs with a high priority, are marked high, except for encoded rows that cannot
+        be matched by type.
+     */
+    private void addPriorityColumns(SQLiteDatabase db) {
+        for (String table : new String[] { EVENT_TABLE_NAME, IDENTIFY_TABLE_NAME, QUEUE_TABLE_NAME }) {
+            if (!hasColumn(db, table, PRIORITY_FIELD)) {
+                db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + PRIORITY_COLUMN);
+            }
+        }
+        String highPriorityEvents = "TYPEOF(" + EVENT_FIELD + ") = 'text' AND ("
+                + getEventTypeMatch(AmplitudeClient.START_SESSION_EVENT) + " OR "
+                + getEventTypeMatch(AmplitudeClient.END_SESSION_EVENT) + " OR "
+                + getEventTypeMatch(Constants.AMP_REVENUE_EVENT) + ")";
+        db.execSQL("UPDATE " + IDENTIFY_TABLE_NAME + " SET " + PRIORITY_FIELD + " = "
+                + Constants.EVENT_PRIORITY_HIGH);
+        db.execSQL("UPDATE " + EVENT_TABLE_NAME + " SET " + PRIORITY_FIELD + " = "
+                + Constants.EVENT_PRIORITY_HIGH + " WHERE " + highPriorityEvents);
+        db.execSQL("UPDATE " + QUEUE_TABLE_NAME + " SET " + PRIORITY_FIELD + " = "
+                + Constants.EVENT_PRIORITY_HIGH + " WHERE " + TYPE_FIELD + " = " + QUEUE_TYPE_IDENTIFY
+                + " OR " + highPriorityEvents);
+    }
+
+    /*
+        Stored events start with their event_type, so the type is matched at the start of the
+        object. Unlike LIKE this is case sensitive, has no wildcards and skips nested properties,
+        and unlike instr it is available in the SQLite of every supported Android version.
+     */
+    private static String getEventTypeMatch(String eventType) {
+        String prefix = "{\"event_type\":\"" + eventType + "\"";
+        return "SUBSTR(" + EVENT_FIELD + ", 1, " + prefix.length() + ") = "
+                + DatabaseUtils.sqlEscapeString(prefix);
+    }
+
+    private static boolean hasColumn(SQLiteDatabase db, String table, String column) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+            int nameColumn = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                if (column.equals(cursor.getString(nameColumn))) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
     private void resetDatabase(SQLiteDatabase db) {
         db.execSQL("DROP TABLE IF EXISTS " + STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + LONG_STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + EVENT_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + IDENTIFY_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + IDENTIFY_INTERCEPTOR_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + QUEUE_TABLE_NAME);
         onCreate(db);
     }
 
-    synchronized long insertOrReplaceKeyValue(String key, String value) {
+    @Override
+    public synchronized long insertOrReplaceKeyValue(String key, String value) {
         return value == null ? deleteKeyFromTable(STORE_TABLE_NAME, key) :
             insertOrReplaceKeyValueToTable(STORE_TABLE_NAME, key, value);
     }
 
-    synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
+    @Override
+    public synchronized long insertOrReplaceKeyLongValue(String key, Long value) {
         return value == null ? deleteKeyFromTable(LONG_STORE_TABLE_NAME, key) :
             insertOrReplaceKeyValueToTable(LONG_STORE_TABLE_NAME, key, value);
     }
@@ -188,7 +740,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             delete();
         } finally {
             if (db != null && db.isOpen()) {
-                close();
+                releaseConnection();
             }
         }
         return result;
@@ -206,24 +758,43 @@ class DatabaseHelper extends SQLiteOpenHelper {
         result = insertKeyValueContentValuesIntoTable(db, table, contentValues);
         if (result == -1) {
             logger.w(TAG, "Insert failed");
+        } else {
+            Map<String, Object> values = keyValues.get(table);
+            if (values != null) {
+                values.put(key, value);
+            }
         }
         return result;
     }
 
     synchronized long insertKeyValueContentValuesIntoTable(SQLiteDatabase db, String table, ContentValues contentValues) throws SQLiteException, StackOverflowError {
-        return db.insertWithOnConflict(
-            table,
-            null,
-            contentValues,
-            SQLiteDatabase.CONFLICT_REPLACE
-        );
+        if (storageInstance != null) {
+            SQLiteStatement statement = getStatement(db, "INSERT OR REPLACE INTO " + table + " ("
+                    + INSTANCE_FIELD + ", " + KEY_FIELD + ", " + VALUE_FIELD + ") VALUES (?, ?, ?)");
+            statement.bindString(1, storageInstance);
+            statement.bindString(2, contentValues.getAsString(KEY_FIELD));
+            bindValue(statement, 3, contentValues.get(VALUE_FIELD));
+            return statement.executeInsert();
+        }
+        SQLiteStatement statement = getStatement(db, "INSERT OR REPLACE INTO " + table
+                + " (" + KEY_FIELD + ", " + VALUE_FIELD + ") VALUES (?, ?)");
+        statement.bindString(1, contentValues.getAsString(KEY_FIELD));
+        bindValue(statement, 2, contentValues.get(VALUE_FIELD));
+        return statement.executeInsert();
     }
 
     synchronized long deleteKeyFromTable(String table, String key) {
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
-            result = db.delete(table, KEY_FIELD + "=?", new String[]{key});
+            SQLiteStatement statement = getStatement(db, "DELETE FROM " + table
+                    + getWhereClause(getInstanceSelection(KEY_FIELD + " = ?")));
+            statement.bindString(1, key);
+            result = statement.executeUpdateDelete();
+            Map<String, Object> values = keyValues.get(table);
+            if (values != null) {
+                values.remove(key);
+            }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("deleteKey from %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -233,32 +804,41 @@ class DatabaseHelper extends SQLiteOpenHelper {
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
-            close();
+            releaseConnection();
         }
         return result;
     }
 
-    synchronized long addEvent(String event) {
-        return addEventToTable(EVENT_TABLE_NAME, event);
+    @Override
+    public synchronized long addEvent(String event) {
+        return addEventToTable(EVENT_TABLE_NAME, event, Constants.EVENT_PRIORITY_NORMAL);
+    }
+
+    @Override
+    public synchronized long addEvent(String event, int priority) {
+        return addEventToTable(EVENT_TABLE_NAME, event, priority);
     }
 
-    synchronized long addIdentify(String identifyEvent) {
-        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent);
+    @Override
+    public synchronized long addIdentify(String identifyEvent) {
+        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent, Constants.EVENT_PRIORITY_HIGH);
     }
 
     synchronized long addIdentifyInterceptor(String identifyEvent) {
-        return addEventToTable(IDENTIFY_INTERCEPTOR_TABLE_NAME, identifyEvent);
+        return addEventToTable(IDENTIFY_INTERCEPTOR_TABLE_NAME, identifyEvent, Constants.EVENT_PRIORITY_NORMAL);
     }
 
-    private synchronized long addEventToTable(String table, String event) {
+    private synchronized long addEventToTable(String table, String event, int priority) {
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(EVENT_FIELD, event);
-            result = insertEventContentValuesIntoTable(db, table, contentValues);
-            if (result == -1) {
-                logger.w(TAG, String.format("Insert into %s failed", table));
+            // insert and any eviction it causes are committed together
+            db.beginTransaction();
+            try {
+                result = insertEventToTable(db, table, event, priority);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("addEvent to %s failed", table), e);
@@ -269,35 +849,189 @@ class DatabaseHelper extends SQLiteOpenHelper {
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
-            close();
+            releaseConnection();
         }
         return result;
     }
 
     synchronized long insertEventContentValuesIntoTable(SQLiteDatabase db, String table, ContentValues contentValues) throws SQLiteException, StackOverflowError {
-        return db.insert(table, null, contentValues);
+        StringBuilder columns = new StringBuilder(EVENT_FIELD);
+        StringBuilder values = new StringBuilder("?");
+        for (String column : new String[] { INSTANCE_FIELD, TYPE_FIELD, PRIORITY_FIELD }) {
+            if (contentValues.containsKey(column)) {
+                columns.append(", ").append(column);
+                values.append(", ?");
+            }
+        }
+        try {
+            SQLiteStatement statement = getStatement(db, "INSERT INTO " + table + " (" + columns
+                    + ") VALUES (" + values + ")");
+            int index = 1;
+            bindValue(statement, index++, contentValues.get(EVENT_FIELD));
+            for (String column : new String[] { INSTANCE_FIELD, TYPE_FIELD, PRIORITY_FIELD }) {
+                if (contentValues.containsKey(column)) {
+                    bindValue(statement, index++, contentValues.get(column));
+                }
+            }
+            return statement.executeInsert();
+        } catch (SQLiteException e) {
+            // failed inserts return -1 without a reset, as SQLiteDatabase.insert does
+            logger.e(TAG, String.format("Insert into %s failed", table), e);
+            return -1;
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else if (value instanceof Long || value instanceof Integer) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    synchronized long insertEventToTable(SQLiteDatabase db, String table, String event) throws SQLiteException, StackOverflowError {
+        return insertEventToTable(db, table, event, IDENTIFY_TABLE_NAME.equals(table)
+                ? Constants.EVENT_PRIORITY_HIGH : Constants.EVENT_PRIORITY_NORMAL);
+    }
+
+    /**
+     * Inserts an event row in the caller's transaction, evicting rows over the caps.
+     *
+     * @param db the writable database
+     * @param table the logical table
+     * @param event the serialized event
+     * @param priority the priority stored with rows of the events and identifys tables
+     * @return the id of the row, or -1 if it was not inserted
+     */
+    synchronized long insertEventToTable(SQLiteDatabase db, String table, String event, int priority) throws SQLiteException, StackOverflowError {
+        ContentValues contentValues = new ContentValues();
+        long payloadSize;
+        byte[] data = eventCodecId == EventCodec.CODEC_NONE ? null : eventCodec.encode(event, eventCodecId);
+        if (data != null) {
+            contentValues.put(EVENT_FIELD, data);
+            payloadSize = data.length;
+        } else {
+            contentValues.put(EVENT_FIELD, event);
+            payloadSize = Utils.getUtf8Length(event);
+        }
+        // the quota counts stored bytes, so encoded rows are charged their encoded size
+        if (eventMaxBytes > 0 && isCappedTable(table) && payloadSize > eventMaxBytes) {
+            logger.w(TAG, String.format(
+                "Event of %d bytes exceeds the storage quota of %d bytes, skipping", payloadSize, eventMaxBytes
+            ));
+            return -1;
+        }
+
+        if (storageInstance != null) {
+            contentValues.put(INSTANCE_FIELD, storageInstance);
+        }
+        if (isQueueTable(table)) {
+            contentValues.put(TYPE_FIELD, getQueueType(table));
+        }
+        if (isCappedTable(table)) {
+            contentValues.put(PRIORITY_FIELD, priority);
+        }
+
+        long result = insertEventContentValuesIntoTable(db, getStorageTable(table), contentValues);
+        if (result == -1) {
+            logger.w(TAG, String.format("Insert into %s failed", table));
+        } else {
+            updateRowCount(table, 1);
+            updatePayloadSize(table, payloadSize);
+            evictEventsOverMaxCount(db, table);
+            evictEventsOverMaxBytes(db);
+        }
+        return result;
+    }
+
+    /**
+     * Unit of work executed by {@link #runInTransaction(Transaction)}.
+     */
+    interface Transaction {
+        void run(SQLiteDatabase db) throws SQLiteException, StackOverflowError;
+    }
+
+    /**
+     * Runs the given work inside a single database transaction, so that all of its writes are
+     * committed together.
+     *
+     * @param transaction the work to run against the writable database
+     * @return true if the transaction was committed, false if it failed and the database was reset
+     */
+    synchronized boolean runInTransaction(Transaction transaction) {
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            boolean successful = false;
+            try {
+                transaction.run(db);
+                db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                db.endTransaction();
+                if (!successful) {
+                    // counts and cached values may include rows that were rolled back
+                    clearTableStats();
+                    keyValues.clear();
+                }
+            }
+            return true;
+        } catch (SQLiteException e) {
+            logger.e(TAG, "runInTransaction failed", e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "runInTransaction failed", e);
+            // potential stack overflow error when getting database on custom Android versions
+            delete();
+        } finally {
+            releaseConnection();
+        }
+        return false;
     }
 
-    synchronized String getValue(String key) {
+    @Override
+    public synchronized String getValue(String key) {
         return (String) getValueFromTable(STORE_TABLE_NAME, key);
     }
 
-    synchronized Long getLongValue(String key) {
+    @Override
+    public synchronized Long getLongValue(String key) {
         return (Long) getValueFromTable(LONG_STORE_TABLE_NAME, key);
     }
 
     protected synchronized Object getValueFromTable(String table, String key) {
+        Map<String, Object> values = keyValues.get(table);
+        if (values != null) {
+            return values.get(key);
+        }
+
         Object value = null;
         Cursor cursor = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
             cursor = queryDb(
-                db, table, new String[]{KEY_FIELD, VALUE_FIELD}, KEY_FIELD + " = ?",
-                new String[]{key}, null, null, null, null
+                db, storageInstance != null ? SHARED_KEY_VALUE_TABLES : KEY_VALUE_TABLES,
+                new String[]{TABLE_FIELD, KEY_FIELD, VALUE_FIELD}, getInstanceSelection(null),
+                null, null, null, null, null
             );
-            if (cursor.moveToFirst()) {
-                value = table.equals(STORE_TABLE_NAME) ? cursor.getString(1) : cursor.getLong(1);
+            Map<String, Object> storeValues = new HashMap<String, Object>();
+            Map<String, Object> longStoreValues = new HashMap<String, Object>();
+            while (cursor.moveToNext()) {
+                if (STORE_TABLE_NAME.equals(cursor.getString(0))) {
+                    storeValues.put(cursor.getString(1), cursor.getString(2));
+                } else {
+                    longStoreValues.put(cursor.getString(1), cursor.getLong(2));
+                }
             }
+            keyValues.put(STORE_TABLE_NAME, storeValues);
+            keyValues.put(LONG_STORE_TABLE_NAME, longStoreValues);
+            values = keyValues.get(table);
+            value = values == null ? null : values.get(key);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getValue from %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -316,16 +1050,18 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseConnection();
         }
         return value;
     }
 
-    synchronized List<JSONObject> getEvents(long upToId, long limit) throws JSONException {
+    @Override
+    public synchronized List<JSONObject> getEvents(long upToId, long limit) throws JSONException {
         return getEventsFromTable(EVENT_TABLE_NAME, upToId, limit);
     }
 
-    synchronized List<JSONObject> getIdentifys(
+    @Override
+    public synchronized List<JSONObject> getIdentifys(
                                         long upToId, long limit) throws JSONException {
         return getEventsFromTable(IDENTIFY_TABLE_NAME, upToId, limit);
     }
@@ -342,7 +1078,9 @@ class DatabaseHelper extends SQLiteOpenHelper {
         try {
             return getEventsBatchFromTable(table, upToId, limit);
         } catch (CursorWindowAllocationException e) {
-            return getEventsRowByRowFromTable(table, upToId, limit);
+            return getEventsInChunksFromTable(table, upToId, limit);
+        } catch (CursorRowTooLargeException e) {
+            return getEventsInChunksFromTable(table, upToId, limit);
         }
     }
 
@@ -353,14 +1091,14 @@ class DatabaseHelper extends SQLiteOpenHelper {
         try {
             SQLiteDatabase db = getReadableDatabase();
             cursor = queryDb(
-                db, table, new String[] { ID_FIELD, EVENT_FIELD },
-                upToId >= 0 ? ID_FIELD + " <= " + upToId : null, null, null, null,
-                ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
+                db, getStorageTable(table), new String[] { ID_FIELD, EVENT_FIELD },
+                getQueueSelection(table, upToId >= 0 ? ID_FIELD + " <= " + upToId : null),
+                null, null, null, ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
             );
 
             while (cursor.moveToNext()) {
                 long eventId = cursor.getLong(0);
-                String event = cursor.getString(1);
+                String event = getEventFromCursor(cursor, 1);
                 if (Utils.isEmptyString(event)) {
                     continue;
                 }
@@ -376,33 +1114,74 @@ class DatabaseHelper extends SQLiteOpenHelper {
             logger.e(TAG, String.format("getEvents from %s failed", table), e);
             delete();
         } catch (IllegalStateException e) {  // put before Runtime since IllegalState extends
-            handleIfCursorRowTooLargeException(e);
+            convertIfCursorRowTooLargeException(e);
         } catch (RuntimeException e) {
             convertIfCursorWindowException(e);
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseConnection();
         }
         return events;
     }
 
-    private List<JSONObject> getEventsRowByRowFromTable(
+    /*
+        Reads the rows in groups sized by their stored length, so each query fits in a cursor
+        window. Rows too large for a window on their own are read in chunks.
+     */
+    private List<JSONObject> getEventsInChunksFromTable(
                                     String table, long upToId, long limit) throws JSONException {
-        List<Long> eventIds = new LinkedList<Long>();
+        List<JSONObject> events = new LinkedList<JSONObject>();
         Cursor cursor = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
             cursor = queryDb(
-                db, table, new String[] { ID_FIELD },
-                upToId >= 0 ? ID_FIELD + " <= " + upToId : null, null, null, null,
-                ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
+                db, getStorageTable(table), new String[] {
+                    ID_FIELD, "LENGTH(CAST(" + EVENT_FIELD + " AS BLOB))", "TYPEOF(" + EVENT_FIELD + ")"
+                },
+                getQueueSelection(table, upToId >= 0 ? ID_FIELD + " <= " + upToId : null),
+                null, null, null, ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
             );
-
-            while (cursor.moveToNext()) {
-                long eventId = cursor.getLong(0);
-                eventIds.add(eventId);
+            int rowCount = cursor.getCount();
+            long[] ids = new long[rowCount];
+            long[] sizes = new long[rowCount];
+            boolean[] encoded = new boolean[rowCount];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                sizes[i] = cursor.getLong(1);
+                encoded[i] = "blob".equals(cursor.getString(2));
+            }
+            cursor.close();
+            cursor = null;
+
+            int start = 0;
+            while (start < rowCount) {
+                if (sizes[start] > READ_CHUNK_BYTES) {
+                    addEventToList(events, ids[start],
+                            readEventInChunks(db, table, ids[start], sizes[start], encoded[start]));
+                    start++;
+                    continue;
+                }
+
+                int end = start;
+                long groupSize = 0;
+                while (end < rowCount && sizes[end] <= READ_CHUNK_BYTES
+                        && groupSize + sizes[end] <= READ_CHUNK_BYTES) {
+                    groupSize += sizes[end];
+                    end++;
+                }
+                cursor = queryDb(
+                    db, getStorageTable(table), new String[] { ID_FIELD, EVENT_FIELD },
+                    getQueueSelection(table, ID_FIELD + " BETWEEN " + ids[start] + " AND " + ids[end - 1]),
+                    null, null, null, ID_FIELD + " ASC", null
+                );
+                while (cursor.moveToNext()) {
+                    addEventToList(events, cursor.getLong(0), getEventFromCursor(cursor, 1));
+                }
+                cursor.close();
+                cursor = null;
+                start = end;
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getEvents from %s failed", table), e);
@@ -418,20 +1197,54 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseConnection();
+        }
+        return events;
+    }
+
+    private static void addEventToList(List<JSONObject> events, long eventId, String event) throws JSONException {
+        if (Utils.isEmptyString(event)) {
+            return;
         }
+        JSONObject obj = new JSONObject(event);
+        obj.put("event_id", eventId);
+        events.add(obj);
+    }
 
-        try {
-            List<JSONObject> events = new LinkedList<JSONObject>();
-            for (Long eventId : eventIds) {
-                JSONObject event = getEventFromTable(table, eventId);
-                if (event != null) {
-                    events.add(event);
+    /*
+        Reads one event payload in pieces of at most READ_CHUNK_BYTES. The pieces are cut from
+        the stored bytes, so a character split between two pieces is joined back before decoding.
+     */
+    private String readEventInChunks(
+            SQLiteDatabase db, String table, long eventId, long size, boolean encoded) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream((int) size);
+        for (long offset = 0; offset < size; offset += READ_CHUNK_BYTES) {
+            Cursor cursor = queryDb(
+                db, getStorageTable(table), new String[] {
+                    "SUBSTR(CAST(" + EVENT_FIELD + " AS BLOB), " + (offset + 1) + ", " + READ_CHUNK_BYTES + ")"
+                },
+                getQueueSelection(table, ID_FIELD + " = " + eventId), null, null, null, null, null
+            );
+            try {
+                if (!cursor.moveToFirst()) {
+                    return null;
                 }
+                byte[] chunk = cursor.getBlob(0);
+                payload.write(chunk, 0, chunk.length);
+            } finally {
+                cursor.close();
             }
-            return events;
-        } finally {
-            close();
+        }
+
+        byte[] data = payload.toByteArray();
+        if (encoded) {
+            return eventCodec.decode(data);
+        }
+        try {
+            return new String(data, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            logger.e(TAG, e.toString());
+            return null;
         }
     }
 
@@ -441,13 +1254,13 @@ class DatabaseHelper extends SQLiteOpenHelper {
         try {
             SQLiteDatabase db = getReadableDatabase();
             cursor = queryDb(
-                db, table, new String[] { EVENT_FIELD },
-               ID_FIELD + " = " + eventId,
+                db, getStorageTable(table), new String[] { EVENT_FIELD },
+                getQueueSelection(table, ID_FIELD + " = " + eventId),
                     null, null, null, null, null
             );
 
             if (cursor.moveToFirst()) {
-                String eventData = cursor.getString(0);
+                String eventData = getEventFromCursor(cursor, 0);
                 if (!Utils.isEmptyString(eventData)) {
                     event = new JSONObject(eventData);
                     event.put("event_id", eventId);
@@ -471,30 +1284,295 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return event;
     }
 
-    synchronized long getEventCount() {
+    /**
+     * Reads the oldest events and identifys straight into an upload batch. In the unified layout
+     * this is one scan of the queue table, otherwise the rows of both tables are merged by
+     * sequence number.
+     *
+     * @return the batch, or null if the rows are too large to read together and should be
+     * fetched in chunks with {@link #getEvents(long, long)} and {@link #getIdentifys(long, long)}
+     */
+    @Override
+    public synchronized UploadBatch getUploadBatch(long upToEventId, long upToIdentifyId, long limit) {
+        return getUploadBatch(-1, -1, upToEventId, upToIdentifyId, limit);
+    }
+
+    @Override
+    public synchronized UploadBatch getUploadBatch(long afterEventId, long afterIdentifyId,
+                                                   long upToEventId, long upToIdentifyId, long limit) {
+        try {
+            return readUploadBatch(afterEventId, afterIdentifyId, upToEventId, upToIdentifyId, limit);
+        } catch (CursorWindowAllocationException e) {
+            return null;
+        } catch (CursorRowTooLargeException e) {
+            return null;
+        }
+    }
+
+    private UploadBatch readUploadBatch(long afterEventId, long afterIdentifyId,
+                                        long upToEventId, long upToIdentifyId, long limit) {
+        UploadBatch batch = new UploadBatch();
+        Cursor events = null;
+        Cursor identifys = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            if (unifiedQueue) {
+                String eventSelection = TYPE_FIELD + " = " + QUEUE_TYPE_EVENT
+                        + getIdRangeSelection(" AND ", afterEventId, upToEventId);
+                String identifySelection = TYPE_FIELD + " = " + QUEUE_TYPE_IDENTIFY
+                        + getIdRangeSelection(" AND ", afterIdentifyId, upToIdentifyId);
+                events = queryDb(
+                    db, QUEUE_TABLE_NAME, new String[] { ID_FIELD, EVENT_FIELD, TYPE_FIELD },
+                    getInstanceSelection("(" + eventSelection + ") OR (" + identifySelection + ")"),
+                    null, null, null,
+                    ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
+                );
+                String event;
+                while ((event = moveToNextEvent(events)) != null) {
+                    if (events.getInt(2) == QUEUE_TYPE_IDENTIFY) {
+                        batch.addIdentify(events.getLong(0), event);
+                    } else {
+                        batch.addEvent(events.getLong(0), event);
+                    }
+                }
+                return batch;
+            }
+
+            events = queryDb(
+                db, EVENT_TABLE_NAME, new String[] { ID_FIELD, EVENT_FIELD },
+                getIdRangeSelection(afterEventId, upToEventId), null, null, null,
+                ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
+            );
+            identifys = queryDb(
+                db, IDENTIFY_TABLE_NAME, new String[] { ID_FIELD, EVENT_FIELD },
+                getIdRangeSelection(afterIdentifyId, upToIdentifyId), null, null, null,
+                ID_FIELD + " ASC", limit >= 0 ? "" + limit : null
+            );
+            String event = moveToNextEvent(events);
+            String identify = moveToNextEvent(identifys);
+            long eventSequenceNumber = event == null ? -1 : UploadBatch.getSequenceNumber(event);
+            long identifySequenceNumber = identify == null ? -1 : UploadBatch.getSequenceNumber(identify);
+            while ((event != null || identify != null) && (limit < 0 || batch.getCount() < limit)) {
+                if (identify == null || (event != null
+                        && UploadBatch.isEventFirst(eventSequenceNumber, identifySequenceNumber))) {
+                    batch.addEvent(events.getLong(0), event);
+                    event = moveToNextEvent(events);
+                    eventSequenceNumber = event == null ? -1 : UploadBatch.getSequenceNumber(event);
+                } else {
+                    batch.addIdentify(identifys.getLong(0), identify);
+                    identify = moveToNextEvent(identifys);
+                    identifySequenceNumber = identify == null ? -1 : UploadBatch.getSequenceNumber(identify);
+                }
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "getUploadBatch failed", e);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "getUploadBatch failed", e);
+            delete();
+        } catch (IllegalStateException e) {  // put before Runtime since IllegalState extends
+            convertIfCursorRowTooLargeException(e);
+        } catch (RuntimeException e) {
+            convertIfCursorWindowException(e);
+        } finally {
+            if (events != null) {
+                events.close();
+            }
+            if (identifys != null) {
+                identifys.close();
+            }
+            releaseConnection();
+        }
+        return batch;
+    }
+
+    /*
+        Returns the selection of the ids after afterId and up to upToId, either bound -1 for none,
+        or null if neither is set.
+     */
+    private static String getIdRangeSelection(long afterId, long upToId) {
+        String selection = getIdRangeSelection("", afterId, upToId);
+        return selection.isEmpty() ? null : selection;
+    }
+
+    private static String getIdRangeSelection(String prefix, long afterId, long upToId) {
+        StringBuilder selection = new StringBuilder();
+        if (afterId >= 0) {
+            selection.append(prefix).append(ID_FIELD).append(" > ").append(afterId);
+        }
+        if (upToId >= 0) {
+            selection.append(selection.length() == 0 ? prefix : " AND ")
+                    .append(ID_FIELD).append(" <= ").append(upToId);
+        }
+        return selection.toString();
+    }
+
+    /*
+        Moves the cursor to the next row with a non-empty event in the second column and returns
+        the event, or null once the rows run out.
+     */
+    private String moveToNextEvent(Cursor cursor) {
+        while (cursor.moveToNext()) {
+            String event = getEventFromCursor(cursor, 1);
+            if (!Utils.isEmptyString(event)) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves unsent events and identifys written in the other storage layout into the one
+     * selected with {@link #setUnifiedQueue(boolean)}. Rows moved into the queue table are
+     * merged by sequence number, so ids keep following the order events were logged in.
+     *
+     * @return true if any rows were moved, their ids have changed
+     */
+    synchronized boolean migrateQueueLayout() {
+        if (sharedStorage != null) {
+            // the shared database only has the queue table
+            return false;
+        }
+        final boolean[] moved = new boolean[] { false };
+        runInTransaction(new Transaction() {
+            @Override
+            public void run(SQLiteDatabase db) throws SQLiteException, StackOverflowError {
+                moved[0] = unifiedQueue ? moveTablesToQueue(db) : moveQueueToTables(db);
+            }
+        });
+        clearTableStats();
+        return moved[0];
+    }
+
+    private boolean moveTablesToQueue(SQLiteDatabase db) throws SQLiteException {
+        List<MigrationRow> events = readRowsForMigration(db, EVENT_TABLE_NAME);
+        List<MigrationRow> identifys = readRowsForMigration(db, IDENTIFY_TABLE_NAME);
+        if (events.isEmpty() && identifys.isEmpty()) {
+            return false;
+        }
+
+        clearTableStats();
+        int eventIndex = 0;
+        int identifyIndex = 0;
+        while (eventIndex < events.size() || identifyIndex < identifys.size()) {
+            boolean takeEvent = identifyIndex == identifys.size() || (eventIndex < events.size()
+                    && UploadBatch.isEventFirst(events.get(eventIndex).sequenceNumber,
+                    identifys.get(identifyIndex).sequenceNumber));
+            MigrationRow row = takeEvent ? events.get(eventIndex++) : identifys.get(identifyIndex++);
+            insertEventToTable(db, takeEvent ? EVENT_TABLE_NAME : IDENTIFY_TABLE_NAME, row.event, row.priority);
+        }
+        db.delete(EVENT_TABLE_NAME, null, null);
+        db.delete(IDENTIFY_TABLE_NAME, null, null);
+        return true;
+    }
+
+    private static class MigrationRow {
+        final long sequenceNumber;
+        final String event;
+        final int priority;
+
+        MigrationRow(long sequenceNumber, String event, int priority) {
+            this.sequenceNumber = sequenceNumber;
+            this.event = event;
+            this.priority = priority;
+        }
+    }
+
+    /*
+        Reads the rows of a separate event table in id order, with their sequence number, -1 if
+        they have none.
+     */
+    private List<MigrationRow> readRowsForMigration(SQLiteDatabase db, String table) throws SQLiteException {
+        List<MigrationRow> rows = new ArrayList<MigrationRow>();
+        Cursor cursor = null;
+        try {
+            cursor = queryDb(
+                db, table, new String[] { EVENT_FIELD, PRIORITY_FIELD }, null, null, null, null,
+                ID_FIELD + " ASC", null
+            );
+            while (cursor.moveToNext()) {
+                String event = getEventFromCursor(cursor, 0);
+                if (Utils.isEmptyString(event)) {
+                    continue;
+                }
+                rows.add(new MigrationRow(UploadBatch.getSequenceNumber(event), event, cursor.getInt(1)));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
+    private boolean moveQueueToTables(SQLiteDatabase db) throws SQLiteException {
+        SQLiteStatement statement = db.compileStatement("SELECT COUNT(*) FROM " + QUEUE_TABLE_NAME);
+        long count;
+        try {
+            count = statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+        if (count == 0) {
+            return false;
+        }
+
+        String columns = EVENT_FIELD + ", " + PRIORITY_FIELD;
+        db.execSQL("INSERT INTO " + EVENT_TABLE_NAME + " (" + columns + ") SELECT " + columns
+                + " FROM " + QUEUE_TABLE_NAME + " WHERE " + TYPE_FIELD + " = " + QUEUE_TYPE_EVENT
+                + " ORDER BY " + ID_FIELD);
+        db.execSQL("INSERT INTO " + IDENTIFY_TABLE_NAME + " (" + columns + ") SELECT " + columns
+                + " FROM " + QUEUE_TABLE_NAME + " WHERE " + TYPE_FIELD + " = " + QUEUE_TYPE_IDENTIFY
+                + " ORDER BY " + ID_FIELD);
+        db.execSQL("DELETE FROM " + QUEUE_TABLE_NAME);
+        return true;
+    }
+
+    /*
+        Reads an event payload column, decoding compressed BLOB rows. Returns null if a
+        compressed row cannot be decoded, so it is skipped like an empty row.
+     */
+    private String getEventFromCursor(Cursor cursor, int column) {
+        if (cursor.getType(column) == Cursor.FIELD_TYPE_BLOB) {
+            return eventCodec.decode(cursor.getBlob(column));
+        }
+        return cursor.getString(column);
+    }
+
+    @Override
+    public synchronized long getEventCount() {
         return getEventCountFromTable(EVENT_TABLE_NAME);
     }
 
-    synchronized long getIdentifyCount() {
+    @Override
+    public synchronized long getIdentifyCount() {
         return getEventCountFromTable(IDENTIFY_TABLE_NAME);
     }
 
-    synchronized long getTotalEventCount() {
+    @Override
+    public synchronized long getTotalEventCount() {
         return getEventCount() + getIdentifyCount();
     }
 
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
     synchronized long getIdentifyInterceptorCount() {
         return getEventCountFromTable(IDENTIFY_INTERCEPTOR_TABLE_NAME);
     }
 
     private synchronized long getEventCountFromTable(String table) {
+        Long count = rowCounts.get(table);
+        if (count != null) {
+            return count;
+        }
+
         long numberRows = 0;
-        SQLiteStatement statement = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
-            String query = "SELECT COUNT(*) FROM " + table;
-            statement = db.compileStatement(query);
-            numberRows = statement.simpleQueryForLong();
+            numberRows = getRowCount(db, table);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getNumberRows for %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -504,14 +1582,284 @@ class DatabaseHelper extends SQLiteOpenHelper {
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
-            if (statement != null) {
-                statement.close();
-            }
-            close();
+            releaseConnection();
         }
         return numberRows;
     }
 
+    private long getRowCount(SQLiteDatabase db, String table) throws SQLiteException {
+        Long count = rowCounts.get(table);
+        if (count != null) {
+            return count;
+        }
+
+        SQLiteStatement statement = getStatement(db, "SELECT COUNT(*) FROM " + getStorageTable(table)
+                + getWhereClause(getQueueSelection(table, null)));
+        long numberRows = statement.simpleQueryForLong();
+        rowCounts.put(table, numberRows);
+        return numberRows;
+    }
+
+    private long getPayloadSize(SQLiteDatabase db, String table) throws SQLiteException {
+        Long size = payloadSizes.get(table);
+        if (size != null) {
+            return size;
+        }
+
+        long payloadSize = queryPayloadSize(db, table, null);
+        payloadSizes.put(table, payloadSize);
+        return payloadSize;
+    }
+
+    private long queryPayloadSize(SQLiteDatabase db, String table, String selection,
+                                  long... selectionArgs) throws SQLiteException {
+        SQLiteStatement statement = getStatement(db, "SELECT IFNULL(SUM(LENGTH(CAST(" + EVENT_FIELD
+                + " AS BLOB))), 0) FROM " + getStorageTable(table)
+                + getWhereClause(getQueueSelection(table, selection)));
+        bindLongs(statement, selectionArgs);
+        return statement.simpleQueryForLong();
+    }
+
+    private static void bindLongs(SQLiteStatement statement, long[] args) {
+        for (int i = 0; i < args.length; i++) {
+            statement.bindLong(i + 1, args[i]);
+        }
+    }
+
+    /**
+     * Returns up to maxPages free pages of the database file to the file system, so the file
+     * shrinks after bulk deletes without a VACUUM of the whole file. Files created before
+     * incremental auto-vacuum was enabled are converted once, with a full VACUUM, when little
+     * data is left in them. Failures are logged and leave the database as it is.
+     *
+     * @param maxPages the maximum number of pages to free
+     * @return the number of free pages left, 0 if there is nothing to do for now
+     */
+    synchronized long incrementalVacuum(int maxPages) {
+        long freePages = 0;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            freePages = simpleQueryForLong(db, "PRAGMA freelist_count");
+            if (freePages == 0) {
+                return 0;
+            }
+            if (simpleQueryForLong(db, "PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+                if (simpleQueryForLong(db, "PRAGMA page_count") - freePages > VACUUM_CONVERT_MAX_PAGES) {
+                    return 0;
+                }
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+                return simpleQueryForLong(db, "PRAGMA freelist_count");
+            }
+            // each step of the pragma frees one page, execSQL would only step once
+            cursor = db.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+            cursor.getCount();
+            cursor.close();
+            cursor = null;
+            freePages = simpleQueryForLong(db, "PRAGMA freelist_count");
+        } catch (SQLiteException e) {
+            // a failed vacuum leaves the file as it was, no reason to drop the events in it
+            logger.e(TAG, "incrementalVacuum failed", e);
+            freePages = 0;
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "incrementalVacuum failed", e);
+            freePages = 0;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseConnection();
+        }
+        return freePages;
+    }
+
+    private static long simpleQueryForLong(SQLiteDatabase db, String sql) throws SQLiteException {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    synchronized long getTotalPayloadSize() {
+        long totalSize = 0;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            totalSize = getPayloadSize(db, EVENT_TABLE_NAME) + getPayloadSize(db, IDENTIFY_TABLE_NAME);
+        } catch (SQLiteException e) {
+            logger.e(TAG, "getTotalPayloadSize failed", e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "getTotalPayloadSize failed", e);
+            // potential stack overflow error when getting database on custom Android versions
+            delete();
+        } finally {
+            releaseConnection();
+        }
+        return totalSize;
+    }
+
+    private static boolean isCappedTable(String table) {
+        return EVENT_TABLE_NAME.equals(table) || IDENTIFY_TABLE_NAME.equals(table);
+    }
+
+    private boolean isQueueTable(String table) {
+        return unifiedQueue && isCappedTable(table);
+    }
+
+    private static int getQueueType(String table) {
+        return IDENTIFY_TABLE_NAME.equals(table) ? QUEUE_TYPE_IDENTIFY : QUEUE_TYPE_EVENT;
+    }
+
+    /*
+        Returns the table the rows of the given event table are stored in, which is the queue
+        table for events and identifys in the unified layout.
+     */
+    private String getStorageTable(String table) {
+        return isQueueTable(table) ? QUEUE_TABLE_NAME : table;
+    }
+
+    /*
+        Restricts a selection on an event table to the rows of that table, which in the unified
+        layout means the rows of its type in the queue table.
+     */
+    private String getQueueSelection(String table, String selection) {
+        if (!isQueueTable(table)) {
+            return getInstanceSelection(selection);
+        }
+        String typeSelection = TYPE_FIELD + " = " + getQueueType(table);
+        return getInstanceSelection(selection == null ? typeSelection : typeSelection + " AND (" + selection + ")");
+    }
+
+    /*
+        Restricts a selection to the rows of this instance when they are kept in the shared database.
+     */
+    private String getInstanceSelection(String selection) {
+        if (instanceSelection == null) {
+            return selection;
+        }
+        return selection == null ? instanceSelection : instanceSelection + " AND (" + selection + ")";
+    }
+
+    private static String getWhereClause(String selection) {
+        return selection == null ? "" : " WHERE " + selection;
+    }
+
+    private void evictEventsOverMaxBytes(SQLiteDatabase db) throws SQLiteException {
+        if (eventMaxBytes <= 0) {
+            return;
+        }
+        long eventsSize = getPayloadSize(db, EVENT_TABLE_NAME);
+        long identifysSize = getPayloadSize(db, IDENTIFY_TABLE_NAME);
+        while (eventsSize + identifysSize > eventMaxBytes) {
+            // take the oldest rows of whichever table holds more data, a small batch at a time
+            // since the rows needed to get back under the quota cannot be selected in one query
+            String table = eventsSize >= identifysSize ? EVENT_TABLE_NAME : IDENTIFY_TABLE_NAME;
+            long count = getRowCount(db, table);
+            long numEventsToRemove = Math.min(
+                    Math.max(1, count / 10),
+                    Constants.EVENT_REMOVE_BATCH_SIZE
+            );
+            if (trimEventsToCount(db, table, count - numEventsToRemove) == 0) {
+                break;
+            }
+            eventsSize = getPayloadSize(db, EVENT_TABLE_NAME);
+            identifysSize = getPayloadSize(db, IDENTIFY_TABLE_NAME);
+        }
+    }
+
+    private void evictEventsOverMaxCount(SQLiteDatabase db, String table) throws SQLiteException {
+        if (eventMaxCount <= 0 || !isCappedTable(table)) {
+            return;
+        }
+        if (getRowCount(db, table) <= eventMaxCount) {
+            return;
+        }
+        // drop a whole batch once the cap is exceeded, so the next inserts do not evict again
+        long numEventsToRemove = Math.min(
+                Math.max(1, eventMaxCount / 10),
+                Constants.EVENT_REMOVE_BATCH_SIZE
+        );
+        trimEventsToCount(db, table, Math.max(0, eventMaxCount - numEventsToRemove + 1));
+    }
+
+    /**
+     * Evicts rows from the table, in the order given by the eviction policy, until at most
+     * targetCount rows remain. Runs as a single statement on the given database, so it can be
+     * part of the caller's insert transaction.
+     *
+     * @param db the writable database
+     * @param table the table to trim
+     * @param targetCount the number of rows to keep
+     * @return the number of rows evicted
+     */
+    synchronized long trimEventsToCount(SQLiteDatabase db, String table, long targetCount) throws SQLiteException {
+        long numberToEvict = getRowCount(db, table) - targetCount;
+        if (numberToEvict <= 0) {
+            return 0;
+        }
+
+        evictionCount++;
+        return deleteEventRows(db, table, ID_FIELD + " IN (SELECT " + ID_FIELD + " FROM "
+                + getStorageTable(table) + getWhereClause(getQueueSelection(table, null))
+                + " ORDER BY " + evictionPolicy.getEvictionOrder(table) + " LIMIT ?)", numberToEvict);
+    }
+
+    /*
+        Deletes the selected rows with a single statement, keeping the tracked row count and
+        payload size of the table in step.
+     */
+    private long deleteEventRows(SQLiteDatabase db, String table, String selection,
+                                 long... selectionArgs) throws SQLiteException {
+        long removedSize = payloadSizes.containsKey(table)
+                ? queryPayloadSize(db, table, selection, selectionArgs) : 0;
+        SQLiteStatement statement = getStatement(db, "DELETE FROM " + getStorageTable(table)
+                + getWhereClause(getQueueSelection(table, selection)));
+        bindLongs(statement, selectionArgs);
+        int removed = statement.executeUpdateDelete();
+        updateRowCount(table, -removed);
+        updatePayloadSize(table, -removedSize);
+        return removed;
+    }
+
+    /**
+     * Reads the priority of each stored event, e.g. to keep it when the events are moved to
+     * another store.
+     *
+     * @return the priorities by event id
+     */
+    synchronized Map<Long, Integer> getEventPriorities() {
+        Map<Long, Integer> priorities = new HashMap<Long, Integer>();
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            cursor = queryDb(
+                db, getStorageTable(EVENT_TABLE_NAME), new String[] { ID_FIELD, PRIORITY_FIELD },
+                getQueueSelection(EVENT_TABLE_NAME, null), null, null, null, null, null
+            );
+            while (cursor.moveToNext()) {
+                priorities.put(cursor.getLong(0), cursor.getInt(1));
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "getEventPriorities failed", e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "getEventPriorities failed", e);
+            // potential stack overflow error when getting database on custom Android versions
+            delete();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseConnection();
+        }
+        return priorities;
+    }
+
     synchronized long getNthEventId(long n) {
         return getNthEventIdFromTable(EVENT_TABLE_NAME, n);
     }
@@ -530,13 +1878,12 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
     private synchronized long getNthEventIdFromTable(String table, long n, String orderBy) {
         long nthEventId = -1;
-        SQLiteStatement statement = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
-            String query = "SELECT " + ID_FIELD + " FROM " + table + " ORDER BY " + ID_FIELD +
-                    " " + orderBy + " LIMIT 1 OFFSET " + (n - 1);
-            statement = db.compileStatement(query);
-            nthEventId = -1;
+            SQLiteStatement statement = getStatement(db, "SELECT " + ID_FIELD + " FROM "
+                    + getStorageTable(table) + getWhereClause(getQueueSelection(table, null))
+                    + " ORDER BY " + ID_FIELD + " " + orderBy + " LIMIT 1 OFFSET ?");
+            statement.bindLong(1, n - 1);
             try {
                 nthEventId = statement.simpleQueryForLong();
             } catch (SQLiteDoneException e) {
@@ -551,19 +1898,18 @@ class DatabaseHelper extends SQLiteOpenHelper {
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
-            if (statement != null) {
-                statement.close();
-            }
-            close();
+            releaseConnection();
         }
         return nthEventId;
     }
 
-    synchronized void removeEvents(long maxId) {
+    @Override
+    public synchronized void removeEvents(long maxId) {
         removeEventsFromTable(EVENT_TABLE_NAME, maxId);
     }
 
-    synchronized void removeIdentifys(long maxId) {
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
         removeEventsFromTable(IDENTIFY_TABLE_NAME, maxId);
     }
 
@@ -574,7 +1920,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private synchronized void removeEventsFromTable(String table, long maxId) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " <= " + maxId, null);
+            deleteEventRows(db, table, ID_FIELD + " <= ?", maxId);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvents from %s failed", table), e);
             delete();
@@ -582,15 +1928,17 @@ class DatabaseHelper extends SQLiteOpenHelper {
             logger.e(TAG, String.format("removeEvents from %s failed", table), e);
             delete();
         } finally {
-            close();
+            releaseConnection();
         }
     }
 
-    synchronized void removeEvent(long id) {
+    @Override
+    public synchronized void removeEvent(long id) {
         removeEventFromTable(EVENT_TABLE_NAME, id);
     }
 
-    synchronized void removeIdentify(long id) {
+    @Override
+    public synchronized void removeIdentify(long id) {
         removeEventFromTable(IDENTIFY_TABLE_NAME, id);
     }
 
@@ -601,7 +1949,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private synchronized void removeEventFromTable(String table, long id) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " = " + id, null);
+            deleteEventRows(db, table, ID_FIELD + " = ?", id);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvent from %s failed", table), e);
             delete();
@@ -609,17 +1957,52 @@ class DatabaseHelper extends SQLiteOpenHelper {
             logger.e(TAG, String.format("removeEvent from %s failed", table), e);
             delete();
         } finally {
-            close();
+            releaseConnection();
+        }
+    }
+
+    private void updateRowCount(String table, long delta) {
+        Long count = rowCounts.get(table);
+        if (count != null) {
+            rowCounts.put(table, Math.max(0, count + delta));
         }
     }
 
+    private void updatePayloadSize(String table, long delta) {
+        Long size = payloadSizes.get(table);
+        if (size != null) {
+            payloadSizes.put(table, Math.max(0, size + delta));
+        }
+    }
+
+    private void clearTableStats() {
+        rowCounts.clear();
+        payloadSizes.clear();
+    }
+
     private void delete() {
+        if (sharedStorage != null) {
+            sharedStorage.deleteSharedDatabase();
+            try {
+                // the listener restores the metadata of this instance, see checkSharedReset
+                getWritableDatabase();
+            } catch (SQLiteException e) {
+                logger.e(TAG, "reopening shared database failed", e);
+            }
+            return;
+        }
         // This only gets called if the database somehow gets corrupted AFTER being fetched
         // ie after the call to getWriteableDatabase / getReadableDatabase
         // or if a SQL exception occurs during the interaction
+        clearTableStats();
+        keyValues.clear();
+        File salvageFile = null;
         try {
             close();
-            file.delete();
+            if (salvageOnReset) {
+                salvageFile = moveDatabaseFilesForSalvage();
+            }
+            deleteDatabaseFiles();
         } catch (SecurityException e) {
             logger.e(TAG, "delete failed", e);
         } finally {
@@ -635,11 +2018,189 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 finally {
                     callResetListenerOnDatabaseReset = true;
                     if (db != null && db.isOpen()) {
-                        close();
+                        releaseConnection();
                     }
                 }
             }
         }
+        if (salvageFile != null) {
+            salvageRows(salvageFile);
+        }
+    }
+
+    /*
+        Resets the shared database on behalf of one of its instances. onCreate starts a new
+        generation once the database is opened again, the instances notice it on their next access.
+     */
+    private synchronized void deleteSharedDatabase() {
+        delete();
+    }
+
+    /*
+        Renames the database file, with its write-ahead log and rollback journal, so the old
+        rows can still be read once the new database is created. Returns null if it cannot be moved.
+     */
+    private File moveDatabaseFilesForSalvage() {
+        File salvageFile = new File(file.getPath() + "-salvage");
+        deleteSalvageFiles(salvageFile);
+        if (!file.exists() || !file.renameTo(salvageFile)) {
+            return null;
+        }
+        new File(file.getPath() + "-wal").renameTo(new File(salvageFile.getPath() + "-wal"));
+        new File(file.getPath() + "-journal").renameTo(new File(salvageFile.getPath() + "-journal"));
+        return salvageFile;
+    }
+
+    private static void deleteSalvageFiles(File salvageFile) {
+        salvageFile.delete();
+        new File(salvageFile.getPath() + "-wal").delete();
+        new File(salvageFile.getPath() + "-shm").delete();
+        new File(salvageFile.getPath() + "-journal").delete();
+    }
+
+    /*
+        Copies the readable rows of the moved database file into the new database, then deletes
+        the moved file. Failures are logged and end the salvage, they never reset the new database.
+     */
+    private void salvageRows(File salvageFile) {
+        long salvaged = salvagedRowCount;
+        long lost = lostRowCount;
+        SQLiteDatabase damaged = null;
+        SQLiteDatabase db = null;
+        try {
+            // the default handler would delete the file on corruption before anything is read
+            damaged = SQLiteDatabase.openDatabase(salvageFile.getPath(), null,
+                    SQLiteDatabase.OPEN_READWRITE, new DatabaseErrorHandler() {
+                        @Override
+                        public void onCorruption(SQLiteDatabase dbObj) {
+                            logger.w(TAG, "Salvaged database is corrupt, reading what is left");
+                        }
+                    });
+            db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (String table : SALVAGED_TABLES) {
+                    salvageTable(damaged, db, table);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "salvage failed", e);
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "salvage failed", e);
+        } finally {
+            if (damaged != null && damaged.isOpen()) {
+                damaged.close();
+            }
+            deleteSalvageFiles(salvageFile);
+            // salvaged rows were written directly, count them again on next access
+            clearTableStats();
+            keyValues.clear();
+            if (db != null && db.isOpen()) {
+                releaseConnection();
+            }
+        }
+        logger.w(TAG, String.format("Database reset salvaged %d rows, %d rows could not be read",
+                salvagedRowCount - salvaged, lostRowCount - lost));
+    }
+
+    private void salvageTable(SQLiteDatabase damaged, SQLiteDatabase db, String table) {
+        long minRowId;
+        long maxRowId;
+        Cursor cursor = null;
+        try {
+            cursor = damaged.rawQuery("SELECT MIN(rowid), MAX(rowid) FROM " + table, null);
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return;
+            }
+            minRowId = cursor.getLong(0);
+            maxRowId = cursor.getLong(1);
+        } catch (SQLiteException e) {
+            // missing from older schemas, or the table root itself is unreadable
+            logger.w(TAG, String.format("Cannot salvage table %s: %s", table, e.getMessage()));
+            return;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        for (long start = minRowId; start <= maxRowId; start += SALVAGE_RANGE_ROWS) {
+            long end = Math.min(maxRowId, start + SALVAGE_RANGE_ROWS - 1);
+            try {
+                copySalvagedRows(damaged, db, table, "rowid BETWEEN " + start + " AND " + end);
+            } catch (RuntimeException e) {
+                // corrupt pages fail with a SQLiteException, rows too large for the cursor
+                // window with an IllegalStateException. Rows copied before the failure are
+                // ignored as duplicates on retry
+                for (long rowId = start; rowId <= end; rowId++) {
+                    try {
+                        copySalvagedRows(damaged, db, table, "rowid = " + rowId);
+                    } catch (RuntimeException rowException) {
+                        lostRowCount++;
+                    }
+                }
+            }
+        }
+    }
+
+    private void copySalvagedRows(SQLiteDatabase damaged, SQLiteDatabase db, String table,
+                                  String selection) throws SQLiteException {
+        Cursor cursor = null;
+        try {
+            cursor = damaged.query(table, null, selection, null, null, null, null);
+            while (cursor.moveToNext()) {
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    String column = cursor.getColumnName(i);
+                    switch (cursor.getType(i)) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            values.putNull(column);
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values.put(column, cursor.getLong(i));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values.put(column, cursor.getDouble(i));
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            values.put(column, cursor.getBlob(i));
+                            break;
+                        default:
+                            values.put(column, cursor.getString(i));
+                    }
+                }
+                // keeps the ids, and values restored by the reset listener win over stale ones
+                if (db.insertWithOnConflict(table, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                    salvagedRowCount++;
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void deleteDatabaseFiles() {
+        file.delete();
+        // write-ahead log and shared memory files must go with the database file, otherwise
+        // a stale log could be replayed into the freshly created database
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+        new File(file.getPath() + "-journal").delete();
+    }
+
+    /*
+        Closes the connection at the end of an operation, unless the helper has been configured
+        to keep a single long-lived connection open.
+     */
+    private void releaseConnection() {
+        if (!persistentConnection) {
+            close();
+        }
     }
 
     boolean dbFileExists() {
@@ -659,14 +2220,38 @@ class DatabaseHelper extends SQLiteOpenHelper {
         If it is, then we want to reset the database to clear the bad data
      */
     private void handleIfCursorRowTooLargeException(IllegalStateException e) {
-        String message = e.getMessage();
-        if (!Utils.isEmptyString(message) && message.contains("Couldn't read") && message.contains("CursorWindow")) {
+        if (isCursorRowTooLargeException(e)) {
             delete();
         } else {
             throw e;
         }
     }
 
+    /*
+        Event reads rethrow the CursorWindow row too big exception as a CursorRowTooLargeException
+        instead, so the rows can be read again in chunks rather than dropping the database.
+     */
+    private static void convertIfCursorRowTooLargeException(IllegalStateException e) {
+        if (isCursorRowTooLargeException(e)) {
+            throw new CursorRowTooLargeException(e.getMessage());
+        }
+        throw e;
+    }
+
+    private static boolean isCursorRowTooLargeException(IllegalStateException e) {
+        String message = e.getMessage();
+        return !Utils.isEmptyString(message) && message.contains("Couldn't read") && message.contains("CursorWindow");
+    }
+
+    /**
+     * Thrown when a row read in a batch does not fit in a CursorWindow.
+     */
+    private static class CursorRowTooLargeException extends RuntimeException {
+        CursorRowTooLargeException(String message) {
+            super(message);
+        }
+    }
+
     /*
         Checks if the RuntimeException is an android.database.CursorWindowAllocationException.
         If it is, then wrap the message in Amplitude's CursorWindowAllocationException so the
@@ -0,0 +1,77 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Event
+ * An event as logged by the client, before it is saved. Written straight to the stored JSON by an
+ * {@link EventWriter}, and only turned into a JSONObject tree for the middleware and the identify
+ * interceptor, which work on the JSON object.
+ * <b>Note: </b> the property objects are the caller's, they are not copied and may be null.
+ */
+class Event {
+
+    final String eventType;
+    final long timestamp;
+    final String userId;
+    final String deviceId;
+    final long sessionId;
+    final String uuid;
+    final long sequenceNumber;
+    final EventEnvelope envelope;
+    final JSONObject apiProperties;
+    final JSONObject eventProperties;
+    final JSONObject userProperties;
+    final JSONObject groups;
+    final JSONObject groupProperties;
+
+    Event(String eventType, long timestamp, String userId, String deviceId, long sessionId,
+          String uuid, long sequenceNumber, EventEnvelope envelope, JSONObject apiProperties,
+          JSONObject eventProperties, JSONObject userProperties, JSONObject groups,
+          JSONObject groupProperties) {
+        this.eventType = eventType;
+        this.timestamp = timestamp;
+        this.userId = userId;
+        this.deviceId = deviceId;
+        this.sessionId = sessionId;
+        this.uuid = uuid;
+        this.sequenceNumber = sequenceNumber;
+        this.envelope = envelope;
+        this.apiProperties = apiProperties;
+        this.eventProperties = eventProperties;
+        this.userProperties = userProperties;
+        this.groups = groups;
+        this.groupProperties = groupProperties;
+    }
+
+    boolean isIdentify() {
+        return eventType.equals(Constants.IDENTIFY_EVENT) ||
+                eventType.equals(Constants.GROUP_IDENTIFY_EVENT);
+    }
+
+    /**
+     * Builds the event as a JSONObject, with the fields in the order they are written. The
+     * properties are truncated in place, see {@link AmplitudeClient#truncate(JSONObject)}, those of
+     * an {@link EventProperties} are copied first.
+     *
+     * @return the event
+     */
+    JSONObject toJSONObject() throws JSONException {
+        JSONObject event = new JSONObject();
+        event.put("event_type", eventType);
+        event.put("timestamp", timestamp);
+        event.put("user_id", userId == null ? JSONObject.NULL : userId);
+        event.put("device_id", deviceId == null ? JSONObject.NULL : deviceId);
+        event.put("session_id", sessionId);
+        event.put("uuid", uuid);
+        event.put("sequence_number", sequenceNumber);
+        envelope.applyTo(event);
+        event.put("api_properties", apiProperties);
+        event.put("event_properties", AmplitudeClient.truncateProperties(EventProperties.toMutable(eventProperties)));
+        event.put("user_properties", AmplitudeClient.truncateProperties(EventProperties.toMutable(userProperties)));
+        event.put("groups", AmplitudeClient.truncateProperties(EventProperties.toMutable(groups)));
+        event.put("group_properties", AmplitudeClient.truncateProperties(EventProperties.toMutable(groupProperties)));
+        return event;
+    }
+}
@@ -0,0 +1,99 @@
+package com.amplitude.api;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *  <h1>EventBatch</h1>
+ *  A list of events to log together with {@link AmplitudeClient#logEvents(EventBatch)}, for
+ *  example when importing or replaying events recorded earlier:
+ *  {@code EventBatch batch = new EventBatch().add("Song Played", properties, timestamp, false);}
+ *  <br><br>
+ *  The whole batch is handed to the background thread at once and written to the database in a
+ *  single transaction, instead of one task and one write per event.
+ */
+public class EventBatch {
+
+    /**
+     * The class identifier tag used in logging. TAG = {@code "com.amplitude.api.EventBatch";}
+     */
+    private static final String TAG = EventBatch.class.getName();
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * Adds an event without properties.
+     *
+     * @param eventType    the event type
+     * @param timestamp    the timestamp in millisecond since epoch
+     * @param outOfSession the out of session, see {@link AmplitudeClient#logEvent(String, JSONObject, boolean)}
+     * @return the same EventBatch
+     */
+    public EventBatch add(String eventType, long timestamp, boolean outOfSession) {
+        return addEntry(eventType, null, timestamp, outOfSession);
+    }
+
+    /**
+     * Adds an event. The properties are copied the same way logEvent copies them, so only
+     * changes to their nested values reach the logged event.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties
+     * @param timestamp       the timestamp in millisecond since epoch
+     * @param outOfSession    the out of session
+     * @return the same EventBatch
+     */
+    public EventBatch add(String eventType, JSONObject eventProperties, long timestamp, boolean outOfSession) {
+        return addEntry(eventType, Utils.cloneJSONObject(eventProperties), timestamp, outOfSession);
+    }
+
+    /**
+     * Adds an event, the immutable properties are not copied.
+     *
+     * @param eventType       the event type
+     * @param eventProperties the event properties
+     * @param timestamp       the timestamp in millisecond since epoch
+     * @param outOfSession    the out of session
+     * @return the same EventBatch
+     */
+    public EventBatch add(String eventType, EventProperties eventProperties, long timestamp, boolean outOfSession) {
+        return addEntry(eventType, eventProperties == null ? null : eventProperties.getProperties(),
+                timestamp, outOfSession);
+    }
+
+    /**
+     * @return the number of events in the batch
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    List<Entry> getEntries() {
+        return entries;
+    }
+
+    private EventBatch addEntry(String eventType, JSONObject eventProperties, long timestamp, boolean outOfSession) {
+        if (Utils.isEmptyString(eventType)) {
+            AmplitudeLog.getLogger().e(TAG, "Argument eventType cannot be null or blank in add(), ignoring");
+            return this;
+        }
+        entries.add(new Entry(eventType, eventProperties, timestamp, outOfSession));
+        return this;
+    }
+
+    static class Entry {
+        final String eventType;
+        final JSONObject eventProperties;
+        final long timestamp;
+        final boolean outOfSession;
+
+        Entry(String eventType, JSONObject eventProperties, long timestamp, boolean outOfSession) {
+            this.eventType = eventType;
+            this.eventProperties = eventProperties;
+            this.timestamp = timestamp;
+            this.outOfSession = outOfSession;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.amplitude.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * EventCodec
+ * Encodes stored event payloads either compressed with deflate, primed with a preset dictionary
+ * of the envelope fields every event repeats, or in the compact {@link BinaryEventFormat}.
+ * Encoded payloads start with a codec marker byte so rows written by different codecs can be
+ * told apart. The dictionary of a released codec must never change, add a new marker instead.
+ * <b>Note: </b> not thread safe.
+ */
+class EventCodec {
+
+    private static final String TAG = EventCodec.class.getName();
+
+    static final byte CODEC_NONE = 0;
+    static final byte CODEC_DEFLATE_V1 = 1;
+    static final byte CODEC_BINARY_V1 = 2;
+
+    // deflate finds matches closer to the end of the dictionary cheaper, so the most
+    // frequent strings come last
+    private static final byte[] DICTIONARY_V1 = getUtf8Bytes(
+        "\"receipt\":\"receiptSig\":\"productId\":\"quantity\":\"price\":\"special\":\"session_start\""
+        + "\"session_end\"\"revenue_amount\"\"$identify\"\"$groupidentify\"\"$set\":{\"$setOnce\":{"
+        + "\"$unset\":{\"$add\":{\"$append\":{\"plan\":{\"branch\":\"source\":\"version\":"
+        + "\"ingestion_metadata\":{\"location\":{\"lat\":\"lng\":\"androidADID\":\"android_app_set_id\":"
+        + "\"country\":\"language\":\"carrier\":\"device_brand\":\"device_manufacturer\":"
+        + "\"device_model\":\"os_name\":\"android\",\"os_version\":\"api_level\":\"version_name\":"
+        + "\"platform\":\"Android\",\"library\":{\"name\":\"amplitude-android\",\"version\":\""
+        + "\"api_properties\":{\"tracking_options\":{\"limit_ad_tracking\":false,"
+        + "\"gps_enabled\":false},\"event_properties\":{},\"user_properties\":{},"
+        + "\"groups\":{},\"group_properties\":{}}{\"event_type\":\"timestamp\":"
+        + "\"user_id\":\"device_id\":\"session_id\":\"uuid\":\"sequence_number\":"
+    );
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private Deflater deflater;
+    private Inflater inflater;
+    private final byte[] buffer = new byte[4096];
+    private final BinaryEventFormat binaryFormat = new BinaryEventFormat();
+
+    /**
+     * Encodes an event payload.
+     *
+     * @param event the serialized event
+     * @param codec the codec to use, {@link #CODEC_DEFLATE_V1} or {@link #CODEC_BINARY_V1}
+     * @return the encoded payload, starting with the codec marker, or null if the event cannot
+     * be encoded with the codec
+     */
+    byte[] encode(String event, byte codec) {
+        if (codec == CODEC_BINARY_V1) {
+            return binaryFormat.encode(event, CODEC_BINARY_V1);
+        }
+        return deflate(event);
+    }
+
+    private byte[] deflate(String event) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        byte[] input = getUtf8Bytes(event);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 16);
+        output.write(CODEC_DEFLATE_V1);
+
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY_V1);
+        deflater.setInput(input);
+        deflater.finish();
+        while (!deflater.finished()) {
+            int length = deflater.deflate(buffer);
+            output.write(buffer, 0, length);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Decodes an encoded event payload.
+     *
+     * @param data the encoded payload
+     * @return the serialized event, or null if the payload cannot be decoded
+     */
+    String decode(byte[] data) {
+        if (data == null || data.length == 0) {
+            return null;
+        }
+        if (data[0] == CODEC_BINARY_V1) {
+            StringBuilder builder = new StringBuilder(data.length * 2);
+            if (!binaryFormat.writeJson(data, 1, builder)) {
+                logger.e(TAG, "Failed to decode binary event payload");
+                return null;
+            }
+            return builder.toString();
+        }
+        if (data[0] != CODEC_DEFLATE_V1) {
+            logger.e(TAG, String.format("Unknown event codec %d", data[0]));
+            return null;
+        }
+
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+        inflater.reset();
+        inflater.setInput(data, 1, data.length - 1);
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY_V1);
+                    } else if (inflater.needsInput()) {
+                        logger.e(TAG, "Truncated event payload");
+                        return null;
+                    }
+                }
+                output.write(buffer, 0, length);
+            }
+            return output.toString("UTF-8");
+        } catch (DataFormatException e) {
+            logger.e(TAG, "Failed to decode event payload", e);
+        } catch (UnsupportedEncodingException e) {
+            logger.e(TAG, e.toString());
+        }
+        return null;
+    }
+
+    private static byte[] getUtf8Bytes(String string) {
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            return string.getBytes();
+        }
+    }
+}
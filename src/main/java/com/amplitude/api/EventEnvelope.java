@@ -0,0 +1,72 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * EventEnvelope
+ * The fields every event carries that only change with the client configuration or the device
+ * info: the tracked device fields, platform, library, plan and ingestion metadata. Built once
+ * and copied into each event, instead of being gathered again for every event. Nested objects
+ * are copied into each event, so changes to one event, e.g. by a middleware, do not reach others.
+ * <b>Note: </b> immutable once built.
+ */
+class EventEnvelope {
+
+    private final String[] keys;
+    private final Object[] values;
+    // names of the nested objects' fields, null for the other values
+    private final String[][] nestedKeys;
+
+    /**
+     * @param fields the envelope fields, nested objects must not be changed afterwards
+     */
+    EventEnvelope(JSONObject fields) {
+        keys = getKeys(fields);
+        values = new Object[keys.length];
+        nestedKeys = new String[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = fields.opt(keys[i]);
+            if (values[i] instanceof JSONObject) {
+                nestedKeys[i] = getKeys((JSONObject) values[i]);
+            }
+        }
+    }
+
+    private static String[] getKeys(JSONObject object) {
+        String[] keys = new String[object.length()];
+        Iterator<String> iterator = object.keys();
+        for (int i = 0; iterator.hasNext(); i++) {
+            keys[i] = iterator.next();
+        }
+        return keys;
+    }
+
+    /**
+     * Puts the envelope fields into an event, in the order they were added.
+     *
+     * @param event the event
+     */
+    void applyTo(JSONObject event) throws JSONException {
+        for (int i = 0; i < keys.length; i++) {
+            Object value = values[i];
+            if (nestedKeys[i] != null) {
+                value = new JSONObject((JSONObject) value, nestedKeys[i]);
+            }
+            event.put(keys[i], value);
+        }
+    }
+
+    /**
+     * Writes the envelope fields as fields of the event being written, no copies are made.
+     *
+     * @param writer the writer of the event
+     */
+    void writeTo(EventWriter writer) throws JSONException {
+        for (int i = 0; i < keys.length; i++) {
+            writer.field(keys[i], values[i]);
+        }
+    }
+}
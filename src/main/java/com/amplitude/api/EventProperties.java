@@ -0,0 +1,274 @@
+package com.amplitude.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ *  <h1>EventProperties</h1>
+ *  An immutable set of event properties. Properties are added with a {@link Builder}, for example:
+ *  {@code EventProperties properties = new EventProperties.Builder().put("color", "green")
+ *  .put("count", 3).build();}
+ *  <br><br>
+ *  Once built, the properties can not be changed, so the SDK hands them to its background thread
+ *  as they are, without the copy it makes of a {@code JSONObject} passed to logEvent. Nested
+ *  properties are EventProperties themselves and arrays are copied when they are added, so no
+ *  change made after {@link Builder#build()} reaches a logged event.
+ */
+public class EventProperties {
+
+    /**
+     * The class identifier tag used in logging. TAG = {@code "com.amplitude.api.EventProperties";}
+     */
+    private static final String TAG = EventProperties.class.getName();
+
+    private final JSONObject properties;
+
+    private EventProperties(JSONObject properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * @return the number of properties
+     */
+    public int size() {
+        return properties.length();
+    }
+
+    /**
+     * Returns a copy of the properties that can be changed freely.
+     *
+     * @return the properties as a JSONObject
+     */
+    public JSONObject toJSONObject() {
+        return copy(properties);
+    }
+
+    /*
+     * Internal method to get the properties without copying them, they must not be changed.
+     */
+    JSONObject getProperties() {
+        return properties;
+    }
+
+    /**
+     * Returns a copy of the properties if they belong to an EventProperties, otherwise the
+     * properties themselves.
+     *
+     * @param properties the properties, may be null
+     * @return properties that may be changed
+     */
+    static JSONObject toMutable(JSONObject properties) {
+        return properties instanceof FrozenObject ? copy(properties) : properties;
+    }
+
+    private static JSONObject copy(JSONObject object) {
+        JSONObject copy = new JSONObject();
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            try {
+                copy.put(key, copyValue(object.opt(key)));
+            } catch (JSONException e) {
+                AmplitudeLog.getLogger().e(TAG, e.toString());
+            }
+        }
+        return copy;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof JSONObject) {
+            return copy((JSONObject) value);
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < array.length(); i++) {
+                copy.put(copyValue(array.opt(i)));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    /*
+     * Marks the objects owned by EventProperties, which are never changed once built.
+     */
+    private static class FrozenObject extends JSONObject {
+    }
+
+    /**
+     * Builds {@link EventProperties}. Each method adds a property, replacing an earlier value of
+     * the same property, and returns the same Builder, so calls can be chained. A Builder can be
+     * used again after {@link #build()}, without changing the EventProperties already built.
+     */
+    public static class Builder {
+
+        private JSONObject properties = new FrozenObject();
+
+        // whether properties is shared with a built EventProperties
+        private boolean built = false;
+
+        /**
+         * @param key   the property name
+         * @param value the property value
+         * @return the same Builder
+         */
+        public Builder put(String key, String value) {
+            return putValue(key, value);
+        }
+
+        /**
+         * @param key   the property name
+         * @param value the property value
+         * @return the same Builder
+         */
+        public Builder put(String key, boolean value) {
+            return putValue(key, value);
+        }
+
+        /**
+         * @param key   the property name
+         * @param value the property value
+         * @return the same Builder
+         */
+        public Builder put(String key, long value) {
+            return putValue(key, value);
+        }
+
+        /**
+         * @param key   the property name
+         * @param value the property value, must be a finite number
+         * @return the same Builder
+         */
+        public Builder put(String key, double value) {
+            return putValue(key, value);
+        }
+
+        /**
+         * @param key   the property name
+         * @param value the nested properties
+         * @return the same Builder
+         */
+        public Builder put(String key, EventProperties value) {
+            return putValue(key, value == null ? null : value.properties);
+        }
+
+        /**
+         * @param key    the property name
+         * @param values the property values, copied when added
+         * @return the same Builder
+         */
+        public Builder put(String key, String[] values) {
+            if (values == null) {
+                return putValue(key, null);
+            }
+            JSONArray array = new JSONArray();
+            for (String value : values) array.put(value);
+            return putValue(key, array);
+        }
+
+        /**
+         * @param key    the property name
+         * @param values the property values, copied when added
+         * @return the same Builder
+         */
+        public Builder put(String key, boolean[] values) {
+            if (values == null) {
+                return putValue(key, null);
+            }
+            JSONArray array = new JSONArray();
+            for (boolean value : values) array.put(value);
+            return putValue(key, array);
+        }
+
+        /**
+         * @param key    the property name
+         * @param values the property values, copied when added
+         * @return the same Builder
+         */
+        public Builder put(String key, long[] values) {
+            if (values == null) {
+                return putValue(key, null);
+            }
+            JSONArray array = new JSONArray();
+            for (long value : values) array.put(value);
+            return putValue(key, array);
+        }
+
+        /**
+         * @param key    the property name
+         * @param values the property values, copied when added, must be finite numbers
+         * @return the same Builder
+         */
+        public Builder put(String key, double[] values) {
+            if (values == null) {
+                return putValue(key, null);
+            }
+            JSONArray array = new JSONArray();
+            try {
+                for (double value : values) array.put(value);
+            } catch (JSONException e) {
+                AmplitudeLog.getLogger().e(TAG, String.format(
+                    "Error converting values of property %s to JSON: %s", key, e.toString()
+                ));
+                return this;
+            }
+            return putValue(key, array);
+        }
+
+        /**
+         * Removes a property.
+         *
+         * @param key the property name
+         * @return the same Builder
+         */
+        public Builder remove(String key) {
+            return putValue(key, null);
+        }
+
+        /**
+         * @return the properties added so far
+         */
+        public EventProperties build() {
+            built = true;
+            return new EventProperties(properties);
+        }
+
+        private Builder putValue(String key, Object value) {
+            if (Utils.isEmptyString(key)) {
+                AmplitudeLog.getLogger().w(TAG, "Attempting to add a property with a null or empty name, ignoring");
+                return this;
+            }
+
+            if (built) {
+                // nested values are never changed, so a shallow copy is enough
+                JSONObject copy = new FrozenObject();
+                Iterator<String> keys = properties.keys();
+                try {
+                    while (keys.hasNext()) {
+                        String name = keys.next();
+                        copy.put(name, properties.opt(name));
+                    }
+                } catch (JSONException e) {
+                    AmplitudeLog.getLogger().e(TAG, e.toString());
+                }
+                properties = copy;
+                built = false;
+            }
+
+            try {
+                if (value == null) {
+                    properties.remove(key);
+                } else {
+                    properties.put(key, value);
+                }
+            } catch (JSONException e) {
+                AmplitudeLog.getLogger().e(TAG, e.toString());
+            }
+            return this;
+        }
+    }
+}
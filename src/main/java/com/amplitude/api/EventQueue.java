@@ -0,0 +1,68 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * EventQueue
+ * Persistent first-in first-out queue of string records with increasing ids, the storage
+ * behind a {@link QueueEventStore}. <b>Note: </b> not thread safe, callers must synchronize.
+ */
+interface EventQueue {
+
+    /**
+     * Appends a record to the queue.
+     *
+     * @param record the record
+     * @return the id of the record, or -1 if the record cannot be stored
+     */
+    long append(String record) throws IOException;
+
+    /**
+     * Reads the oldest records, in id order.
+     *
+     * @param upToId only return records with an id up to and including this one, -1 for all
+     * @param limit the maximum number of records to return, -1 for no limit
+     * @return the records as (id, record) pairs
+     */
+    List<Pair<Long, String>> read(long upToId, long limit) throws IOException;
+
+    /**
+     * Removes all records with an id up to and including maxId.
+     */
+    void removeUpTo(long maxId) throws IOException;
+
+    /**
+     * Removes a single record.
+     */
+    void remove(long id) throws IOException;
+
+    /**
+     * Returns the id of the n-th oldest record, or -1 if there are fewer records.
+     */
+    long getNthId(long n) throws IOException;
+
+    long getCount() throws IOException;
+
+    /**
+     * Returns the total size in bytes of the records in the queue.
+     */
+    long getPayloadSize() throws IOException;
+
+    /**
+     * Releases open files, they are reopened on next access.
+     */
+    void close();
+
+    /**
+     * Drops all records, keeping ids increasing for records appended afterwards.
+     */
+    void reset();
+
+    /**
+     * Deletes the queue files.
+     */
+    void delete();
+}
@@ -0,0 +1,138 @@
+package com.amplitude.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * EventStore
+ * Persistent storage for the unsent event and identify queues and the SDK key/value metadata.
+ * Events and identifys are kept in two separate queues with their own increasing ids.
+ * {@link DatabaseHelper} is the default SQLite implementation.
+ */
+interface EventStore {
+
+    /**
+     * Appends an event to the event queue.
+     *
+     * @param event the serialized event
+     * @return the id of the stored event, or -1 if it could not be stored
+     */
+    long addEvent(String event);
+
+    /**
+     * Appends an event to the event queue, see {@link #addEvent(String)}. Stores that evict by
+     * priority drop events of a lower priority first once they are full.
+     *
+     * @param event the serialized event
+     * @param priority the priority, one of the Constants.EVENT_PRIORITY values
+     * @return the id of the stored event, or -1 if it could not be stored
+     */
+    long addEvent(String event, int priority);
+
+    /**
+     * Appends an identify to the identify queue.
+     *
+     * @param identifyEvent the serialized identify
+     * @return the id of the stored identify, or -1 if it could not be stored
+     */
+    long addIdentify(String identifyEvent);
+
+    /**
+     * Fetches the oldest events, in id order, with their id set as "event_id".
+     *
+     * @param upToId only return events with an id up to and including this one, -1 for all
+     * @param limit the maximum number of events to return, -1 for no limit
+     * @return the events
+     */
+    List<JSONObject> getEvents(long upToId, long limit) throws JSONException;
+
+    /**
+     * Fetches the oldest identifys, see {@link #getEvents(long, long)}.
+     */
+    List<JSONObject> getIdentifys(long upToId, long limit) throws JSONException;
+
+    /**
+     * Reads the oldest events and identifys, merged in the order they were logged, straight into
+     * an upload batch without parsing them.
+     *
+     * @param upToEventId only include events with an id up to and including this one, -1 for all
+     * @param upToIdentifyId only include identifys with an id up to and including this one, -1 for all
+     * @param limit the maximum number of events and identifys to include, -1 for no limit
+     * @return the batch, or null if it cannot be read this way and the events should be fetched
+     * with {@link #getEvents(long, long)} and {@link #getIdentifys(long, long)} instead
+     */
+    UploadBatch getUploadBatch(long upToEventId, long upToIdentifyId, long limit);
+
+    /**
+     * Reads the events and identifys logged after those of a batch that is still being uploaded,
+     * so the next batch can be read before the rows of the previous one are removed, see
+     * {@link #getUploadBatch(long, long, long)}.
+     *
+     * @param afterEventId only include events with a greater id, -1 for no lower bound
+     * @param afterIdentifyId only include identifys with a greater id, -1 for no lower bound
+     * @param upToEventId only include events with an id up to and including this one, -1 for all
+     * @param upToIdentifyId only include identifys with an id up to and including this one, -1 for all
+     * @param limit the maximum number of events and identifys to include, -1 for no limit
+     * @return the batch, or null if it cannot be read this way
+     */
+    UploadBatch getUploadBatch(long afterEventId, long afterIdentifyId,
+                               long upToEventId, long upToIdentifyId, long limit);
+
+    /**
+     * Removes all events with an id up to and including maxId.
+     */
+    void removeEvents(long maxId);
+
+    /**
+     * Removes all identifys with an id up to and including maxId.
+     */
+    void removeIdentifys(long maxId);
+
+    void removeEvent(long id);
+
+    void removeIdentify(long id);
+
+    long getEventCount();
+
+    long getIdentifyCount();
+
+    long getTotalEventCount();
+
+    /**
+     * Counts the evictions, which drop rows before they are uploaded. A batch read before the
+     * count changed may hold rows that are gone.
+     *
+     * @return the number of evictions so far
+     */
+    long getEvictionCount();
+
+    /**
+     * Caps the number of stored events and identifys, each queue separately. Oldest entries are
+     * dropped first once the cap is exceeded.
+     *
+     * @param eventMaxCount the maximum number of entries per queue, -1 for no limit
+     */
+    void setEventMaxCount(long eventMaxCount);
+
+    /**
+     * Caps the total payload size of the stored events and identifys.
+     *
+     * @param eventMaxBytes the maximum total payload size in bytes, -1 for no limit
+     */
+    void setEventMaxBytes(long eventMaxBytes);
+
+    long insertOrReplaceKeyValue(String key, String value);
+
+    long insertOrReplaceKeyLongValue(String key, Long value);
+
+    String getValue(String key);
+
+    Long getLongValue(String key);
+
+    /**
+     * Releases open files and connections, they are reopened on next access.
+     */
+    void close();
+}
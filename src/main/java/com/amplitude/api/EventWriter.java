@@ -0,0 +1,237 @@
+package com.amplitude.api;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+
+/**
+ * EventWriter
+ * Serializes an {@link Event} to the JSON string that is stored for upload, in a single pass into
+ * a buffer that is reused between events. Escapes strings and formats values the same way
+ * JSONObject.toString() does. The property limits of {@link AmplitudeClient#truncate(JSONObject)}
+ * are applied while the properties are written, the caller's objects are left unchanged.
+ * <b>Note: </b> not thread safe, only use on logThread.
+ */
+class EventWriter {
+
+    private static final String TAG = EventWriter.class.getName();
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // events larger than this do not keep their buffer around
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private StringBuilder buffer = new StringBuilder(INITIAL_CAPACITY);
+
+    private boolean firstField;
+
+    /**
+     * @param event the event
+     * @return the event as a JSON object string
+     * @throws JSONException if a property is not a finite number
+     */
+    String write(Event event) throws JSONException {
+        buffer.setLength(0);
+        buffer.append('{');
+        firstField = true;
+        try {
+            field("event_type", event.eventType);
+            field("timestamp", event.timestamp);
+            field("user_id", event.userId);
+            field("device_id", event.deviceId);
+            field("session_id", event.sessionId);
+            field("uuid", event.uuid);
+            field("sequence_number", event.sequenceNumber);
+            event.envelope.writeTo(this);
+            field("api_properties", event.apiProperties);
+            properties("event_properties", event.eventProperties);
+            properties("user_properties", event.userProperties);
+            properties("groups", event.groups);
+            properties("group_properties", event.groupProperties);
+            return buffer.append('}').toString();
+        } finally {
+            if (buffer.capacity() > MAX_RETAINED_CAPACITY) {
+                buffer = new StringBuilder(INITIAL_CAPACITY);
+            }
+        }
+    }
+
+    /**
+     * Writes a top level field of the event.
+     *
+     * @param name the field name
+     * @param value the value, a JSON value or null
+     */
+    void field(String name, Object value) throws JSONException {
+        name(name);
+        value(value);
+    }
+
+    private void field(String name, long value) {
+        name(name);
+        buffer.append(value);
+    }
+
+    private void properties(String name, JSONObject properties) throws JSONException {
+        name(name);
+        if (properties == null) {
+            buffer.append("{}");
+        } else {
+            truncatedObject(properties);
+        }
+    }
+
+    private void name(String name) {
+        if (!firstField) {
+            buffer.append(',');
+        }
+        firstField = false;
+        string(name);
+        buffer.append(':');
+    }
+
+    private void value(Object value) throws JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            buffer.append("null");
+        } else if (value instanceof String) {
+            string((String) value);
+        } else if (value instanceof JSONObject) {
+            object((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            array((JSONArray) value);
+        } else if (value instanceof Boolean) {
+            buffer.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Number) {
+            buffer.append(JSONObject.numberToString((Number) value));
+        } else {
+            string(value.toString());
+        }
+    }
+
+    private void object(JSONObject object) throws JSONException {
+        buffer.append('{');
+        Iterator<String> keys = object.keys();
+        boolean first = true;
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!first) {
+                buffer.append(',');
+            }
+            first = false;
+            string(key);
+            buffer.append(':');
+            value(object.opt(key));
+        }
+        buffer.append('}');
+    }
+
+    private void array(JSONArray array) throws JSONException {
+        buffer.append('[');
+        for (int i = 0; i < array.length(); i++) {
+            if (i > 0) {
+                buffer.append(',');
+            }
+            value(array.opt(i));
+        }
+        buffer.append(']');
+    }
+
+    private void truncatedValue(Object value) throws JSONException {
+        if (value instanceof String) {
+            string((String) value, Constants.MAX_STRING_LENGTH);
+        } else if (value instanceof JSONObject) {
+            truncatedObject((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            truncatedArray((JSONArray) value);
+        } else {
+            value(value);
+        }
+    }
+
+    private void truncatedObject(JSONObject object) throws JSONException {
+        if (object.length() > Constants.MAX_PROPERTY_KEYS) {
+            logger.w(TAG, "Warning: too many properties (more than 1000), ignoring");
+            buffer.append("{}");
+            return;
+        }
+
+        buffer.append('{');
+        Iterator<String> keys = object.keys();
+        boolean first = true;
+        while (keys.hasNext()) {
+            String key = keys.next();
+            if (!first) {
+                buffer.append(',');
+            }
+            first = false;
+            string(key);
+            buffer.append(':');
+            // do not truncate revenue receipt and receipt sig fields
+            if (AmplitudeClient.isTruncationExempt(key)) {
+                value(object.opt(key));
+            } else {
+                truncatedValue(object.opt(key));
+            }
+        }
+        buffer.append('}');
+    }
+
+    private void truncatedArray(JSONArray array) throws JSONException {
+        buffer.append('[');
+        for (int i = 0; i < array.length(); i++) {
+            if (i > 0) {
+                buffer.append(',');
+            }
+            truncatedValue(array.opt(i));
+        }
+        buffer.append(']');
+    }
+
+    private void string(String value) {
+        string(value, value.length());
+    }
+
+    /*
+        Writes a string of at most maxLength characters.
+     */
+    private void string(String value, int maxLength) {
+        buffer.append('"');
+        for (int i = 0, length = Math.min(value.length(), maxLength); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    buffer.append('\\').append(c);
+                    break;
+                case '\t':
+                    buffer.append("\\t");
+                    break;
+                case '\b':
+                    buffer.append("\\b");
+                    break;
+                case '\n':
+                    buffer.append("\\n");
+                    break;
+                case '\r':
+                    buffer.append("\\r");
+                    break;
+                case '\f':
+                    buffer.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        buffer.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        buffer.append(c);
+                    }
+                    break;
+            }
+        }
+        buffer.append('"');
+    }
+}
@@ -0,0 +1,38 @@
+package com.amplitude.api;
+
+/**
+ * EvictionPolicy
+ * Decides which rows are dropped first when an event table grows past its maximum size.
+ */
+interface EvictionPolicy {
+
+    /**
+     * Drops the earliest logged rows first.
+     */
+    EvictionPolicy OLDEST_FIRST = new EvictionPolicy() {
+        @Override
+        public String getEvictionOrder(String table) {
+            return "id ASC";
+        }
+    };
+
+    /**
+     * Drops the rows of the lowest priority first, the earliest logged first within a priority.
+     * Only for the events and identifys tables, which store a priority with each row.
+     */
+    EvictionPolicy LOWEST_PRIORITY_FIRST = new EvictionPolicy() {
+        @Override
+        public String getEvictionOrder(String table) {
+            return "priority ASC, id ASC";
+        }
+    };
+
+    /**
+     * Returns the SQL ORDER BY clause ranking the rows of the table, rows sorted first are
+     * evicted first.
+     *
+     * @param table the table rows are evicted from
+     * @return the ORDER BY clause, without the ORDER BY keywords
+     */
+    String getEvictionOrder(String table);
+}
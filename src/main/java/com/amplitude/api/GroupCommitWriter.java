@@ -0,0 +1,164 @@
+package com.amplitude.api;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * GroupCommitWriter
+ * This is the internal class for buffering events on the log thread and writing them, together
+ * with the event metadata in long_store, in a single database transaction. A burst of events
+ * then costs one commit instead of several per event. <b>Note: </b> only use on logThread.
+ */
+class GroupCommitWriter {
+
+    private final AmplitudeClient client;
+
+    private long windowMillis;
+
+    private int maxBatchSize;
+
+    // pending rows in the order they were logged
+    private final List<PendingEvent> pendingEvents = new ArrayList<PendingEvent>();
+
+    private boolean metadataDirty = false;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    GroupCommitWriter(
+            long windowMillis,
+            int maxBatchSize,
+            AmplitudeClient client
+    ) {
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.client = client;
+    }
+
+    /**
+     * Queue an event for the next group commit.
+     *
+     * @param table the table the event is written to
+     * @param event the serialized event
+     * @param priority the priority of the event, see {@link EventStore#addEvent(String, int)}
+     */
+    void addEvent(String table, String event, int priority) {
+        pendingEvents.add(new PendingEvent(table, event, priority));
+        if (pendingEvents.size() >= maxBatchSize) {
+            flush();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Mark the client event metadata as changed, so it is written with the next group commit.
+     */
+    void markMetadataDirty() {
+        metadataDirty = true;
+        scheduleFlush();
+    }
+
+    int getPendingEventCount() {
+        return pendingEvents.size();
+    }
+
+    void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.getAndSet(true)) {
+            return;
+        }
+
+        client.postOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                flush();
+            }
+        }, windowMillis);
+    }
+
+    /**
+     * Write all pending events and the event metadata in one transaction.
+     */
+    void flush() {
+        if (pendingEvents.isEmpty() && !metadataDirty) {
+            return;
+        }
+
+        final List<PendingEvent> batch = new ArrayList<PendingEvent>(pendingEvents);
+        pendingEvents.clear();
+        metadataDirty = false;
+
+        final DatabaseHelper dbHelper = client.dbHelper;
+        final EventStore eventStore = client.getEventStore();
+        final long[] lastIds = new long[] { client.lastEventId, client.lastIdentifyId };
+        if (eventStore != dbHelper) {
+            // other storage engines append the events themselves, only metadata goes to SQLite
+            for (PendingEvent row : batch) {
+                if (DatabaseHelper.IDENTIFY_TABLE_NAME.equals(row.table)) {
+                    lastIds[1] = eventStore.addIdentify(row.event);
+                } else {
+                    lastIds[0] = eventStore.addEvent(row.event, row.priority);
+                }
+            }
+        }
+        boolean committed = dbHelper.runInTransaction(new DatabaseHelper.Transaction() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                if (eventStore == dbHelper) {
+                    for (PendingEvent row : batch) {
+                        long id = dbHelper.insertEventToTable(db, row.table, row.event, row.priority);
+                        if (DatabaseHelper.IDENTIFY_TABLE_NAME.equals(row.table)) {
+                            lastIds[1] = id;
+                        } else {
+                            lastIds[0] = id;
+                        }
+                    }
+                }
+                dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME,
+                        AmplitudeClient.SEQUENCE_NUMBER_KEY, client.sequenceNumber);
+                dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME,
+                        AmplitudeClient.LAST_EVENT_TIME_KEY, client.lastEventTime);
+                dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME,
+                        AmplitudeClient.LAST_EVENT_ID_KEY, lastIds[0]);
+                dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME,
+                        AmplitudeClient.LAST_IDENTIFY_ID_KEY, lastIds[1]);
+            }
+        });
+
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (committed || eventStore != dbHelper) {
+            client.lastEventId = lastIds[0];
+            client.lastIdentifyId = lastIds[1];
+        } else {
+            // the database was reset, none of the batch was written
+            client.lastEventId = -1;
+            client.lastIdentifyId = -1;
+        }
+        client.onGroupCommit(committed || eventStore != dbHelper ? batch.size() : 0);
+    }
+
+    private static class PendingEvent {
+        final String table;
+        final String event;
+        final int priority;
+
+        PendingEvent(String table, String event, int priority) {
+            this.table = table;
+            this.event = event;
+            this.priority = priority;
+        }
+    }
+}
@@ -17,8 +17,6 @@ class IdentifyInterceptor {
 
     private final DatabaseHelper dbHelper;
 
-    private final WorkerThread logThread;
-
     private long identifyBatchIntervalMillis;
 
     private final AtomicBoolean transferScheduled = new AtomicBoolean(false);
@@ -33,12 +31,10 @@ class IdentifyInterceptor {
 
     public  IdentifyInterceptor (
             DatabaseHelper dbHelper,
-            WorkerThread logThread,
             long identifyBatchIntervalMillis,
             AmplitudeClient client
     ) {
         this.dbHelper = dbHelper;
-        this.logThread = logThread;
         this.identifyBatchIntervalMillis = identifyBatchIntervalMillis;
         if (dbHelper.getIdentifyInterceptorCount() > 0) {
             lastIdentifyInterceptorId = dbHelper.getLastIdentifyInterceptorId();
@@ -83,6 +79,19 @@ class IdentifyInterceptor {
         }
     }
 
+    /**
+     * Intercept an event that is neither an identify nor a group identify, such events are never
+     * intercepted themselves, so only the identity of the event is needed.
+     *
+     * @param userId the user id of the event
+     * @param deviceId the device id of the event
+     */
+    void intercept(String userId, String deviceId) {
+        isIdentityUpdated(userId, deviceId);
+        // send out the identify for older identity before the event
+        transferInterceptedIdentify();
+    }
+
     /**
      * Sets min time for identify batch millis.
      *
@@ -116,7 +125,7 @@ class IdentifyInterceptor {
             return;
         }
 
-        logThread.postDelayed(new Runnable() {
+        client.postOnLogThread(new Runnable() {
             @Override
             public void run() {
                 transferScheduled.set(false);
@@ -184,26 +193,35 @@ class IdentifyInterceptor {
 
     private boolean isIdentityUpdated(JSONObject event) {
         try {
-            if (!identitySet.getAndSet(true)) {
-                userId = event.getString("user_id");
-                deviceId = event.getString("device_id");
-                return true;
-            }
-            boolean isUpdated = false;
-            if (isIdUpdated(userId, event.getString("user_id"))) {
-                userId = event.getString("user_id");
-                isUpdated = true;
-            }
-            if (isIdUpdated(deviceId, event.getString("device_id"))) {
-                deviceId = event.getString("device_id");
-                isUpdated = true;
-            }
-            return isUpdated;
+            return isIdentityUpdated(getId(event, "user_id"), getId(event, "device_id"));
         } catch (JSONException e) {
             return true;
         }
     }
 
+    private static String getId(JSONObject event, String key) throws JSONException {
+        Object id = event.get(key);
+        return id == JSONObject.NULL ? null : id.toString();
+    }
+
+    private boolean isIdentityUpdated(String eventUserId, String eventDeviceId) {
+        if (!identitySet.getAndSet(true)) {
+            userId = eventUserId;
+            deviceId = eventDeviceId;
+            return true;
+        }
+        boolean isUpdated = false;
+        if (isIdUpdated(userId, eventUserId)) {
+            userId = eventUserId;
+            isUpdated = true;
+        }
+        if (isIdUpdated(deviceId, eventDeviceId)) {
+            deviceId = eventDeviceId;
+            isUpdated = true;
+        }
+        return isUpdated;
+    }
+
     private boolean isIdUpdated(String id, String updateId) {
         if (id == null && updateId == null) {
             return false;
@@ -0,0 +1,410 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * MappedRingBuffer
+ * Fixed size queue of string records in a memory mapped file used as a circular buffer.
+ * Appending copies the record into the mapping and removing records only moves the persisted
+ * head, so no system calls are made per event while the data still survives a process kill.
+ * Once the buffer is full the oldest records are overwritten.
+ * <b>Note: </b> not thread safe, callers must synchronize.
+ */
+class MappedRingBuffer implements EventQueue {
+
+    private static final String TAG = MappedRingBuffer.class.getName();
+
+    private static final int MAGIC = 0x414d5242;
+    private static final int VERSION = 1;
+
+    // magic, version, capacity, head id and head offset
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 8 + 4;
+    private static final int HEAD_ID_POSITION = 12;
+    private static final int HEAD_OFFSET_POSITION = 20;
+
+    // payload length with the removed flag, record id and payload checksum
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4;
+    private static final int REMOVED_FLAG = 0x80000000;
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private final File file;
+    private final int capacity;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+
+    // offsets of the records from headId on, in id order, kept as a circular array
+    private int[] offsets = new int[64];
+    private int offsetStart = 0;
+    private int offsetCount = 0;
+
+    private long headId = 1;
+    private int headOffset = 0;
+    private int tailOffset = 0;
+    private int usedBytes = 0;
+    private long count = 0;
+    private long payloadSize = 0;
+    private boolean opened = false;
+
+    /**
+     * @param file the backing file
+     * @param capacity the size of the record area in bytes
+     */
+    MappedRingBuffer(File file, int capacity) {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Appends a record to the buffer, overwriting the oldest records if there is no space left.
+     *
+     * @param record the record
+     * @return the id of the record, or -1 if the record is larger than the buffer
+     */
+    @Override
+    public long append(String record) throws IOException {
+        open();
+        byte[] payload = record.getBytes("UTF-8");
+        int size = RECORD_HEADER_SIZE + payload.length;
+        if (size >= capacity) {
+            logger.w(TAG, String.format(
+                "Record of %d bytes does not fit in %s, skipping", payload.length, file.getName()
+            ));
+            return -1;
+        }
+
+        int dropped = 0;
+        while (usedBytes + size >= capacity) {
+            popHead();
+            dropped++;
+        }
+        if (dropped > 0) {
+            logger.w(TAG, String.format("%s is full, dropped %d oldest records", file.getName(), dropped));
+            // move the head past the dropped records before they are overwritten
+            writeHeader();
+        }
+
+        long id = headId + offsetCount;
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        bytes.putInt(payload.length).putLong(id).putInt(checksum(payload)).put(payload);
+        put(tailOffset, bytes.array());
+
+        addOffset(tailOffset);
+        tailOffset = wrap(tailOffset + size);
+        usedBytes += size;
+        count++;
+        payloadSize += payload.length;
+        return id;
+    }
+
+    @Override
+    public List<Pair<Long, String>> read(long upToId, long limit) throws IOException {
+        open();
+        List<Pair<Long, String>> records = new LinkedList<Pair<Long, String>>();
+        long lastId = headId + offsetCount - 1;
+        if (upToId >= 0) {
+            lastId = Math.min(upToId, lastId);
+        }
+        for (long id = headId; id <= lastId; id++) {
+            if (limit >= 0 && records.size() >= limit) {
+                break;
+            }
+            int offset = getOffset((int) (id - headId));
+            int lengthAndFlag = getRecordHeader(offset).getInt();
+            if ((lengthAndFlag & REMOVED_FLAG) != 0) {
+                continue;
+            }
+            byte[] payload = get(wrap(offset + RECORD_HEADER_SIZE), lengthAndFlag);
+            records.add(new Pair<Long, String>(id, new String(payload, "UTF-8")));
+        }
+        return records;
+    }
+
+    @Override
+    public void removeUpTo(long maxId) throws IOException {
+        open();
+        if (offsetCount == 0 || maxId < headId) {
+            return;
+        }
+        while (offsetCount > 0 && headId <= maxId) {
+            popHead();
+        }
+        writeHeader();
+    }
+
+    @Override
+    public void remove(long id) throws IOException {
+        open();
+        if (id < headId || id >= headId + offsetCount) {
+            return;
+        }
+        int offset = getOffset((int) (id - headId));
+        int lengthAndFlag = getRecordHeader(offset).getInt();
+        if ((lengthAndFlag & REMOVED_FLAG) != 0) {
+            return;
+        }
+        // flag the record in place, its space is reclaimed once the head passes it
+        put(offset, ByteBuffer.allocate(4).putInt(lengthAndFlag | REMOVED_FLAG).array());
+        count--;
+        payloadSize -= lengthAndFlag;
+
+        while (offsetCount > 0 && (getRecordHeader(getOffset(0)).getInt() & REMOVED_FLAG) != 0) {
+            popHead();
+        }
+        writeHeader();
+    }
+
+    @Override
+    public long getNthId(long n) throws IOException {
+        open();
+        if (n <= 0) {
+            return -1;
+        }
+        for (int i = 0; i < offsetCount; i++) {
+            if ((getRecordHeader(getOffset(i)).getInt() & REMOVED_FLAG) == 0 && --n == 0) {
+                return headId + i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long getCount() throws IOException {
+        open();
+        return count;
+    }
+
+    @Override
+    public long getPayloadSize() throws IOException {
+        open();
+        return payloadSize;
+    }
+
+    /**
+     * Flushes the mapping to disk and closes the file, it is mapped again on next access.
+     */
+    @Override
+    public void close() {
+        closeFile();
+        clear();
+    }
+
+    @Override
+    public void reset() {
+        long firstId = opened ? headId + offsetCount : 1;
+        closeFile();
+        file.delete();
+        clear();
+        try {
+            open();
+            headId = Math.max(headId, firstId);
+            writeHeader();
+        } catch (IOException e) {
+            logger.e(TAG, "reset failed", e);
+        }
+    }
+
+    @Override
+    public void delete() {
+        closeFile();
+        file.delete();
+        clear();
+    }
+
+    private void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+
+        clear();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        boolean created = randomAccessFile.length() != HEADER_SIZE + capacity;
+        if (created) {
+            randomAccessFile.setLength(HEADER_SIZE + capacity);
+        }
+        buffer = randomAccessFile.getChannel().map(
+                FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+
+        if (!created && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION
+                && buffer.getInt(8) == capacity) {
+            headId = buffer.getLong(HEAD_ID_POSITION);
+            headOffset = buffer.getInt(HEAD_OFFSET_POSITION);
+            if (headOffset < 0 || headOffset >= capacity) {
+                logger.w(TAG, "Resetting corrupted head of " + file);
+                headOffset = 0;
+            } else {
+                scan();
+            }
+        } else if (!created) {
+            logger.w(TAG, "Resetting unreadable " + file);
+        }
+        tailOffset = wrap(headOffset + usedBytes);
+        writeHeader();
+        opened = true;
+    }
+
+    /*
+        Rebuilds the record index by walking the records from the head. The walk stops at the
+        first record that is torn, corrupted or left over from an earlier pass over the buffer.
+     */
+    private void scan() {
+        int offset = headOffset;
+        int scanned = 0;
+        long id = headId;
+        while (scanned + RECORD_HEADER_SIZE < capacity) {
+            ByteBuffer header = getRecordHeader(offset);
+            int lengthAndFlag = header.getInt();
+            long recordId = header.getLong();
+            int checksum = header.getInt();
+            int length = lengthAndFlag & ~REMOVED_FLAG;
+            if (length >= capacity - scanned - RECORD_HEADER_SIZE) {
+                break;
+            }
+            int size = RECORD_HEADER_SIZE + length;
+            byte[] payload = get(wrap(offset + RECORD_HEADER_SIZE), length);
+            if (checksum(payload) != checksum) {
+                break;
+            }
+            if (recordId != id) {
+                // the head id is written before the head offset, so a process killed in
+                // between leaves the head offset on records that were already removed
+                if (offsetCount == 0 && recordId < id) {
+                    offset = wrap(offset + size);
+                    scanned += size;
+                    headOffset = offset;
+                    continue;
+                }
+                break;
+            }
+
+            addOffset(offset);
+            if ((lengthAndFlag & REMOVED_FLAG) == 0) {
+                count++;
+                payloadSize += length;
+            }
+            usedBytes += size;
+            scanned += size;
+            offset = wrap(offset + size);
+            id++;
+        }
+    }
+
+    private void popHead() {
+        int offset = getOffset(0);
+        offsetStart = (offsetStart + 1) % offsets.length;
+        offsetCount--;
+
+        int lengthAndFlag = getRecordHeader(offset).getInt();
+        int length = lengthAndFlag & ~REMOVED_FLAG;
+        if ((lengthAndFlag & REMOVED_FLAG) == 0) {
+            count--;
+            payloadSize -= length;
+        }
+        usedBytes -= RECORD_HEADER_SIZE + length;
+        headId++;
+        headOffset = offsetCount > 0 ? getOffset(0) : tailOffset;
+    }
+
+    private void writeHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, capacity);
+        // head id first, see scan()
+        buffer.putLong(HEAD_ID_POSITION, headId);
+        buffer.putInt(HEAD_OFFSET_POSITION, headOffset);
+    }
+
+    private ByteBuffer getRecordHeader(int offset) {
+        return ByteBuffer.wrap(get(offset, RECORD_HEADER_SIZE));
+    }
+
+    private void put(int offset, byte[] bytes) {
+        int first = Math.min(bytes.length, capacity - offset);
+        buffer.position(HEADER_SIZE + offset);
+        buffer.put(bytes, 0, first);
+        if (first < bytes.length) {
+            buffer.position(HEADER_SIZE);
+            buffer.put(bytes, first, bytes.length - first);
+        }
+    }
+
+    private byte[] get(int offset, int length) {
+        byte[] bytes = new byte[length];
+        int first = Math.min(length, capacity - offset);
+        buffer.position(HEADER_SIZE + offset);
+        buffer.get(bytes, 0, first);
+        if (first < length) {
+            buffer.position(HEADER_SIZE);
+            buffer.get(bytes, first, length - first);
+        }
+        return bytes;
+    }
+
+    private int wrap(long offset) {
+        return (int) (offset % capacity);
+    }
+
+    private int getOffset(int index) {
+        return offsets[(offsetStart + index) % offsets.length];
+    }
+
+    private void addOffset(int offset) {
+        if (offsetCount == offsets.length) {
+            int[] grown = new int[offsets.length * 2];
+            for (int i = 0; i < offsetCount; i++) {
+                grown[i] = getOffset(i);
+            }
+            offsets = grown;
+            offsetStart = 0;
+        }
+        offsets[(offsetStart + offsetCount) % offsets.length] = offset;
+        offsetCount++;
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private void closeFile() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                logger.w(TAG, e);
+            }
+            randomAccessFile = null;
+        }
+    }
+
+    private void clear() {
+        offsetStart = 0;
+        offsetCount = 0;
+        headId = 1;
+        headOffset = 0;
+        tailOffset = 0;
+        usedBytes = 0;
+        count = 0;
+        payloadSize = 0;
+        opened = false;
+    }
+}
@@ -0,0 +1,89 @@
+package com.amplitude.api;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * MetadataCache
+ * This is the internal class for coalescing the client metadata writes to long_store. Values
+ * are kept in memory and written together, in a single transaction, once the flush period
+ * elapses or the client flushes explicitly, so only the latest value of each key is written.
+ * Values not yet flushed are lost if the process is killed, see
+ * {@link AmplitudeClient#enableMetadataWriteBehind(long)} for how the client recovers.
+ * <b>Note: </b> only use on logThread.
+ */
+class MetadataCache {
+
+    private final AmplitudeClient client;
+
+    private long flushMillis;
+
+    // latest unwritten value per long_store key
+    private final Map<String, Long> pendingValues = new LinkedHashMap<String, Long>();
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    MetadataCache(long flushMillis, AmplitudeClient client) {
+        this.flushMillis = flushMillis;
+        this.client = client;
+    }
+
+    /**
+     * Set a long_store value, it is written with the next flush.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    void putLongValue(String key, long value) {
+        pendingValues.put(key, value);
+        scheduleFlush();
+    }
+
+    int getPendingValueCount() {
+        return pendingValues.size();
+    }
+
+    void setFlushMillis(long flushMillis) {
+        this.flushMillis = flushMillis;
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.getAndSet(true)) {
+            return;
+        }
+
+        client.postOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                flush();
+            }
+        }, flushMillis);
+    }
+
+    /**
+     * Write all pending values in one transaction.
+     */
+    void flush() {
+        if (pendingValues.isEmpty()) {
+            return;
+        }
+
+        final Map<String, Long> values = new LinkedHashMap<String, Long>(pendingValues);
+        pendingValues.clear();
+
+        final DatabaseHelper dbHelper = client.dbHelper;
+        dbHelper.runInTransaction(new DatabaseHelper.Transaction() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                for (Map.Entry<String, Long> entry : values.entrySet()) {
+                    dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME,
+                            entry.getKey(), entry.getValue());
+                }
+            }
+        });
+    }
+}
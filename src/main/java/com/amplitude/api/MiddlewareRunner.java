@@ -45,6 +45,10 @@ public class MiddlewareRunner {
         runMiddlewares(middlewareList, payload, next);
     }
 
+    boolean isEmpty() {
+        return middlewares.isEmpty();
+    }
+
     void flush() {
         for (Middleware middleware : middlewares) {
             if (middleware instanceof MiddlewareExtended) {
@@ -0,0 +1,320 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * QueueEventStore
+ * Base {@link EventStore} that keeps the event and identify queues in two file backed
+ * {@link EventQueue}s instead of SQLite tables. Key/value metadata stays in the instance's
+ * {@link DatabaseHelper}. A queue that fails to read or write is reset, like the database.
+ */
+abstract class QueueEventStore implements EventStore {
+
+    private static final String TAG = QueueEventStore.class.getName();
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private final DatabaseHelper dbHelper;
+    private final File directory;
+    private final EventQueue eventQueue;
+    private final EventQueue identifyQueue;
+    private long eventMaxCount = -1;
+    private long eventMaxBytes = -1;
+    private long evictionCount = 0;
+
+    QueueEventStore(File directory, DatabaseHelper dbHelper, EventQueue eventQueue, EventQueue identifyQueue) {
+        this.directory = directory;
+        this.dbHelper = dbHelper;
+        this.eventQueue = eventQueue;
+        this.identifyQueue = identifyQueue;
+    }
+
+    @Override
+    public synchronized long addEvent(String event) {
+        return addToQueue(eventQueue, event);
+    }
+
+    /**
+     * Queues only evict from the head, the priority is ignored.
+     */
+    @Override
+    public synchronized long addEvent(String event, int priority) {
+        return addEvent(event);
+    }
+
+    @Override
+    public synchronized long addIdentify(String identifyEvent) {
+        return addToQueue(identifyQueue, identifyEvent);
+    }
+
+    private long addToQueue(EventQueue queue, String event) {
+        long payloadSize = Utils.getUtf8Length(event);
+        if (eventMaxBytes > 0 && payloadSize > eventMaxBytes) {
+            logger.w(TAG, String.format(
+                "Event of %d bytes exceeds the storage quota of %d bytes, skipping", payloadSize, eventMaxBytes
+            ));
+            return -1;
+        }
+
+        try {
+            long id = queue.append(event);
+            evictEventsOverMaxCount(queue);
+            evictEventsOverMaxBytes();
+            return id;
+        } catch (IOException e) {
+            logger.e(TAG, "addEvent failed", e);
+            // Hard to recover from a broken queue, just start fresh
+            queue.reset();
+        }
+        return -1;
+    }
+
+    private void evictEventsOverMaxCount(EventQueue queue) throws IOException {
+        if (eventMaxCount <= 0) {
+            return;
+        }
+        long count = queue.getCount();
+        if (count <= eventMaxCount) {
+            return;
+        }
+        // drop a whole batch once the cap is exceeded, so the next appends do not evict again
+        long numEventsToRemove = Math.min(
+                Math.max(1, eventMaxCount / 10),
+                Constants.EVENT_REMOVE_BATCH_SIZE
+        );
+        evictionCount++;
+        queue.removeUpTo(queue.getNthId(count - Math.max(0, eventMaxCount - numEventsToRemove + 1)));
+    }
+
+    private void evictEventsOverMaxBytes() throws IOException {
+        if (eventMaxBytes <= 0) {
+            return;
+        }
+        while (eventQueue.getPayloadSize() + identifyQueue.getPayloadSize() > eventMaxBytes) {
+            // take the oldest entries of whichever queue holds more data
+            EventQueue queue = eventQueue.getPayloadSize() >= identifyQueue.getPayloadSize() ?
+                    eventQueue : identifyQueue;
+            long count = queue.getCount();
+            if (count == 0) {
+                break;
+            }
+            long numEventsToRemove = Math.min(
+                    Math.max(1, count / 10),
+                    Constants.EVENT_REMOVE_BATCH_SIZE
+            );
+            evictionCount++;
+            queue.removeUpTo(queue.getNthId(numEventsToRemove));
+        }
+    }
+
+    @Override
+    public synchronized List<JSONObject> getEvents(long upToId, long limit) throws JSONException {
+        return getEventsFromQueue(eventQueue, upToId, limit);
+    }
+
+    @Override
+    public synchronized List<JSONObject> getIdentifys(long upToId, long limit) throws JSONException {
+        return getEventsFromQueue(identifyQueue, upToId, limit);
+    }
+
+    /**
+     * The queues have separate id sequences, so the records of both are merged by sequence number.
+     */
+    @Override
+    public synchronized UploadBatch getUploadBatch(long upToEventId, long upToIdentifyId, long limit) {
+        List<Pair<Long, String>> events = readQueue(eventQueue, upToEventId, limit);
+        List<Pair<Long, String>> identifys = readQueue(identifyQueue, upToIdentifyId, limit);
+        UploadBatch batch = new UploadBatch();
+        int eventIndex = 0;
+        int identifyIndex = 0;
+        while ((eventIndex < events.size() || identifyIndex < identifys.size())
+                && (limit < 0 || batch.getCount() < limit)) {
+            if (identifyIndex == identifys.size() || (eventIndex < events.size() && UploadBatch.isEventFirst(
+                    UploadBatch.getSequenceNumber(events.get(eventIndex).second),
+                    UploadBatch.getSequenceNumber(identifys.get(identifyIndex).second)))) {
+                Pair<Long, String> event = events.get(eventIndex++);
+                batch.addEvent(event.first, event.second);
+            } else {
+                Pair<Long, String> identify = identifys.get(identifyIndex++);
+                batch.addIdentify(identify.first, identify.second);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Queues are only read from the head, so a batch after the rows still being uploaded is not
+     * read ahead, those rows would be read again with it.
+     */
+    @Override
+    public synchronized UploadBatch getUploadBatch(long afterEventId, long afterIdentifyId,
+                                                   long upToEventId, long upToIdentifyId, long limit) {
+        if (afterEventId < 0 && afterIdentifyId < 0) {
+            return getUploadBatch(upToEventId, upToIdentifyId, limit);
+        }
+        return null;
+    }
+
+    private List<Pair<Long, String>> readQueue(EventQueue queue, long upToId, long limit) {
+        List<Pair<Long, String>> records = new ArrayList<Pair<Long, String>>();
+        try {
+            for (Pair<Long, String> record : queue.read(upToId, limit)) {
+                if (!Utils.isEmptyString(record.second)) {
+                    records.add(record);
+                }
+            }
+        } catch (IOException e) {
+            logger.e(TAG, "getEvents failed", e);
+            queue.reset();
+            records.clear();
+        }
+        return records;
+    }
+
+    private List<JSONObject> getEventsFromQueue(
+            EventQueue queue, long upToId, long limit) throws JSONException {
+        List<JSONObject> events = new LinkedList<JSONObject>();
+        try {
+            for (Pair<Long, String> record : queue.read(upToId, limit)) {
+                if (Utils.isEmptyString(record.second)) {
+                    continue;
+                }
+
+                JSONObject obj = new JSONObject(record.second);
+                obj.put("event_id", record.first);
+                events.add(obj);
+            }
+        } catch (IOException e) {
+            logger.e(TAG, "getEvents failed", e);
+            queue.reset();
+            events.clear();
+        }
+        return events;
+    }
+
+    @Override
+    public synchronized void removeEvents(long maxId) {
+        removeFromQueue(eventQueue, maxId, true);
+    }
+
+    @Override
+    public synchronized void removeIdentifys(long maxId) {
+        removeFromQueue(identifyQueue, maxId, true);
+    }
+
+    @Override
+    public synchronized void removeEvent(long id) {
+        removeFromQueue(eventQueue, id, false);
+    }
+
+    @Override
+    public synchronized void removeIdentify(long id) {
+        removeFromQueue(identifyQueue, id, false);
+    }
+
+    private void removeFromQueue(EventQueue queue, long id, boolean upTo) {
+        try {
+            if (upTo) {
+                queue.removeUpTo(id);
+            } else {
+                queue.remove(id);
+            }
+        } catch (IOException e) {
+            logger.e(TAG, "removeEvents failed", e);
+            queue.reset();
+        }
+    }
+
+    @Override
+    public synchronized long getEventCount() {
+        return getCountFromQueue(eventQueue);
+    }
+
+    @Override
+    public synchronized long getIdentifyCount() {
+        return getCountFromQueue(identifyQueue);
+    }
+
+    @Override
+    public synchronized long getTotalEventCount() {
+        return getEventCount() + getIdentifyCount();
+    }
+
+    @Override
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private long getCountFromQueue(EventQueue queue) {
+        try {
+            return queue.getCount();
+        } catch (IOException e) {
+            logger.e(TAG, "getEventCount failed", e);
+            queue.reset();
+        }
+        return 0;
+    }
+
+    synchronized long getTotalPayloadSize() {
+        try {
+            return eventQueue.getPayloadSize() + identifyQueue.getPayloadSize();
+        } catch (IOException e) {
+            logger.e(TAG, "getTotalPayloadSize failed", e);
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized void setEventMaxCount(long eventMaxCount) {
+        this.eventMaxCount = eventMaxCount;
+    }
+
+    @Override
+    public synchronized void setEventMaxBytes(long eventMaxBytes) {
+        this.eventMaxBytes = eventMaxBytes;
+    }
+
+    @Override
+    public long insertOrReplaceKeyValue(String key, String value) {
+        return dbHelper.insertOrReplaceKeyValue(key, value);
+    }
+
+    @Override
+    public long insertOrReplaceKeyLongValue(String key, Long value) {
+        return dbHelper.insertOrReplaceKeyLongValue(key, value);
+    }
+
+    @Override
+    public String getValue(String key) {
+        return dbHelper.getValue(key);
+    }
+
+    @Override
+    public Long getLongValue(String key) {
+        return dbHelper.getLongValue(key);
+    }
+
+    @Override
+    public synchronized void close() {
+        eventQueue.close();
+        identifyQueue.close();
+    }
+
+    /**
+     * Deletes the queues and their directory, e.g. once their events have been moved elsewhere.
+     */
+    synchronized void delete() {
+        eventQueue.delete();
+        identifyQueue.delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,52 @@
+package com.amplitude.api;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * RingBufferEventStore
+ * {@link EventStore} that keeps the event and identify queues in fixed size memory mapped ring
+ * buffers, one file per queue. Meant for high frequency event streams: logging an event is a
+ * memory copy, and the oldest events are overwritten once a buffer is full.
+ */
+class RingBufferEventStore extends QueueEventStore {
+
+    static final Map<String, RingBufferEventStore> instances = new HashMap<String, RingBufferEventStore>();
+
+    /**
+     * Returns the store of the instance, creating it with the given buffer size if needed.
+     *
+     * @param bufferSize the size in bytes of each queue's buffer
+     */
+    static synchronized RingBufferEventStore getEventStore(Context context, String instance, int bufferSize) {
+        instance = Utils.normalizeInstanceName(instance);
+        RingBufferEventStore eventStore = instances.get(instance);
+        if (eventStore == null) {
+            eventStore = new RingBufferEventStore(
+                getDirectory(context, instance),
+                DatabaseHelper.getDatabaseHelper(context, instance),
+                bufferSize
+            );
+            instances.put(instance, eventStore);
+        }
+        return eventStore;
+    }
+
+    static boolean exists(Context context, String instance) {
+        return getDirectory(context, Utils.normalizeInstanceName(instance)).exists();
+    }
+
+    private static File getDirectory(Context context, String instance) {
+        return new File(context.getApplicationContext().getFilesDir(),
+                DatabaseHelper.getDatabaseName(instance) + "_ring");
+    }
+
+    RingBufferEventStore(File directory, DatabaseHelper dbHelper, int bufferSize) {
+        super(directory, dbHelper,
+                new MappedRingBuffer(new File(directory, DatabaseHelper.EVENT_TABLE_NAME), bufferSize),
+                new MappedRingBuffer(new File(directory, DatabaseHelper.IDENTIFY_TABLE_NAME), bufferSize));
+    }
+}
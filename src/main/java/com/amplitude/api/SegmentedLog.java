@@ -0,0 +1,515 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * SegmentedLog
+ * Append-only queue of string records with increasing ids, stored in a directory of segment
+ * files. Records are never rewritten: removing the oldest records advances a persisted head id,
+ * and a segment file is deleted once all of its records are removed. Records removed out of
+ * order are remembered next to the head id until the head passes them.
+ * <b>Note: </b> not thread safe, callers must synchronize.
+ */
+class SegmentedLog implements EventQueue {
+
+    private static final String TAG = SegmentedLog.class.getName();
+
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    private static final String HEAD_FILE_NAME = "head";
+    private static final String HEAD_TEMP_FILE_NAME = "head.tmp";
+
+    // payload length, record id and payload checksum
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4;
+    private static final int RECORD_MAX_SIZE = 64 * 1024 * 1024;
+    static final int SEGMENT_MAX_SIZE = 256 * 1024;
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private final File directory;
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final TreeSet<Long> removedIds = new TreeSet<Long>();
+    private long headId = 1;
+    private long nextId = 1;
+    private long payloadSize = 0;
+    private FileOutputStream appendStream;
+    private boolean opened = false;
+
+    private static class Segment {
+        final long baseId;
+        final File file;
+        int[] offsets = new int[64];
+        int count = 0;
+        long length = 0;
+
+        Segment(long baseId, File file) {
+            this.baseId = baseId;
+            this.file = file;
+        }
+
+        long getLastId() {
+            return baseId + count - 1;
+        }
+
+        void addRecord(long offset) {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = (int) offset;
+        }
+
+        int getPayloadLength(long id) {
+            int index = (int) (id - baseId);
+            long end = index + 1 < count ? offsets[index + 1] : length;
+            return (int) (end - offsets[index] - RECORD_HEADER_SIZE);
+        }
+    }
+
+    SegmentedLog(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Appends a record to the log.
+     *
+     * @param record the record
+     * @return the id of the record
+     */
+    @Override
+    public long append(String record) throws IOException {
+        open();
+        byte[] payload = record.getBytes("UTF-8");
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.length >= SEGMENT_MAX_SIZE || segment.getLastId() + 1 != nextId) {
+            segment = createSegment(nextId);
+        }
+        if (appendStream == null) {
+            appendStream = new FileOutputStream(segment.file, true);
+        }
+
+        long id = nextId;
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length).putLong(id).putInt(checksum(payload)).put(payload);
+        // a single write, so a killed process leaves at most one partial record at the tail
+        appendStream.write(buffer.array());
+
+        segment.addRecord(segment.length);
+        segment.length += buffer.capacity();
+        nextId++;
+        payloadSize += payload.length;
+        return id;
+    }
+
+    /**
+     * Reads the oldest records, in id order.
+     *
+     * @param upToId only return records with an id up to and including this one, -1 for all
+     * @param limit the maximum number of records to return, -1 for no limit
+     * @return the records as (id, record) pairs
+     */
+    @Override
+    public List<Pair<Long, String>> read(long upToId, long limit) throws IOException {
+        open();
+        List<Pair<Long, String>> records = new LinkedList<Pair<Long, String>>();
+        long lastId = upToId >= 0 ? Math.min(upToId, nextId - 1) : nextId - 1;
+        for (Segment segment : segments) {
+            if (limit >= 0 && records.size() >= limit) {
+                break;
+            }
+            if (segment.baseId > lastId) {
+                break;
+            }
+            if (segment.count == 0 || segment.getLastId() < headId) {
+                continue;
+            }
+
+            long firstId = Math.max(headId, segment.baseId);
+            long segmentLastId = Math.min(lastId, segment.getLastId());
+            FileInputStream input = new FileInputStream(segment.file);
+            try {
+                input.getChannel().position(segment.offsets[(int) (firstId - segment.baseId)]);
+                DataInputStream data = new DataInputStream(new BufferedInputStream(input));
+                for (long id = firstId; id <= segmentLastId; id++) {
+                    if (limit >= 0 && records.size() >= limit) {
+                        break;
+                    }
+                    byte[] payload = readRecord(data, id);
+                    if (payload == null) {
+                        throw new IOException("Corrupted record " + id + " in " + segment.file);
+                    }
+                    if (!removedIds.contains(id)) {
+                        records.add(new Pair<Long, String>(id, new String(payload, "UTF-8")));
+                    }
+                }
+            } finally {
+                input.close();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Removes all records with an id up to and including maxId.
+     */
+    @Override
+    public void removeUpTo(long maxId) throws IOException {
+        open();
+        long newHeadId = Math.min(maxId + 1, nextId);
+        if (newHeadId <= headId) {
+            return;
+        }
+        for (long id = headId; id < newHeadId; id++) {
+            if (!removedIds.remove(id)) {
+                payloadSize -= getPayloadLength(id);
+            }
+        }
+        headId = newHeadId;
+        advanceHead();
+        writeHead();
+        deleteRemovedSegments();
+    }
+
+    /**
+     * Removes a single record.
+     */
+    @Override
+    public void remove(long id) throws IOException {
+        open();
+        if (id < headId || id >= nextId || removedIds.contains(id)) {
+            return;
+        }
+        payloadSize -= getPayloadLength(id);
+        removedIds.add(id);
+        advanceHead();
+        writeHead();
+        deleteRemovedSegments();
+    }
+
+    /**
+     * Returns the id of the n-th oldest record, or -1 if there are fewer records.
+     */
+    @Override
+    public long getNthId(long n) throws IOException {
+        open();
+        if (n <= 0) {
+            return -1;
+        }
+        for (long id = headId; id < nextId; id++) {
+            if (!removedIds.contains(id) && --n == 0) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public long getCount() throws IOException {
+        open();
+        return nextId - headId - removedIds.size();
+    }
+
+    /**
+     * Returns the total size in bytes of the records in the log.
+     */
+    @Override
+    public long getPayloadSize() throws IOException {
+        open();
+        return payloadSize;
+    }
+
+    /**
+     * Closes the open segment file, it is reopened on the next append.
+     */
+    @Override
+    public void close() {
+        closeAppendStream();
+    }
+
+    /**
+     * Drops all records, keeping ids increasing for records appended afterwards.
+     */
+    @Override
+    public void reset() {
+        closeAppendStream();
+        deleteFiles();
+        long firstId = opened ? nextId : 1;
+        clear();
+        try {
+            open();
+            headId = Math.max(headId, firstId);
+            nextId = Math.max(nextId, firstId);
+            writeHead();
+        } catch (IOException e) {
+            logger.e(TAG, "reset failed", e);
+        }
+    }
+
+    /**
+     * Deletes the log and its directory.
+     */
+    @Override
+    public void delete() {
+        closeAppendStream();
+        deleteFiles();
+        directory.delete();
+        clear();
+    }
+
+    private void open() throws IOException {
+        if (opened) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+
+        clear();
+        long persistedHeadId = readHead();
+
+        List<Long> baseIds = new ArrayList<Long>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.endsWith(SEGMENT_FILE_SUFFIX)) {
+                    continue;
+                }
+                try {
+                    baseIds.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.w(TAG, "Ignoring unknown file " + file);
+                }
+            }
+        }
+        Collections.sort(baseIds);
+
+        // scan the segments, everything after a torn or corrupted record is dropped
+        boolean truncated = false;
+        for (Long baseId : baseIds) {
+            File file = getSegmentFile(baseId);
+            Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (truncated || (last != null && last.getLastId() + 1 != baseId)) {
+                truncated = true;
+                file.delete();
+                continue;
+            }
+            Segment segment = new Segment(baseId, file);
+            truncated = !scanSegment(segment);
+            segments.add(segment);
+        }
+
+        long firstId = segments.isEmpty() ? 1 : segments.get(0).baseId;
+        headId = Math.max(persistedHeadId, firstId);
+        nextId = segments.isEmpty() ? headId :
+                Math.max(headId, segments.get(segments.size() - 1).getLastId() + 1);
+
+        Iterator<Long> iterator = removedIds.iterator();
+        while (iterator.hasNext()) {
+            long id = iterator.next();
+            if (id < headId || id >= nextId) {
+                iterator.remove();
+            }
+        }
+        advanceHead();
+
+        payloadSize = 0;
+        for (Segment segment : segments) {
+            for (long id = Math.max(headId, segment.baseId); id <= segment.getLastId(); id++) {
+                if (!removedIds.contains(id)) {
+                    payloadSize += segment.getPayloadLength(id);
+                }
+            }
+        }
+        opened = true;
+        deleteRemovedSegments();
+    }
+
+    /*
+        Reads the record index of a segment. Returns false if the segment ends with a torn or
+        corrupted record, in which case the file is truncated to the last valid record.
+     */
+    private boolean scanSegment(Segment segment) throws IOException {
+        long fileLength = segment.file.length();
+        long position = 0;
+        boolean valid = true;
+        DataInputStream data = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(segment.file)));
+        try {
+            while (position < fileLength) {
+                long id = segment.baseId + segment.count;
+                byte[] payload = fileLength - position >= RECORD_HEADER_SIZE ? readRecord(data, id) : null;
+                if (payload == null) {
+                    valid = false;
+                    break;
+                }
+                segment.addRecord(position);
+                position += RECORD_HEADER_SIZE + payload.length;
+            }
+        } finally {
+            data.close();
+        }
+
+        segment.length = position;
+        if (!valid) {
+            logger.w(TAG, String.format("Truncating %s at %d bytes", segment.file, position));
+            RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+            try {
+                file.setLength(position);
+            } finally {
+                file.close();
+            }
+        }
+        return valid;
+    }
+
+    /*
+        Reads the record at the current position, returns null if it is torn or corrupted.
+     */
+    private static byte[] readRecord(DataInputStream data, long expectedId) throws IOException {
+        try {
+            int length = data.readInt();
+            long id = data.readLong();
+            int checksum = data.readInt();
+            if (length < 0 || length > RECORD_MAX_SIZE || id != expectedId) {
+                return null;
+            }
+            byte[] payload = new byte[length];
+            data.readFully(payload);
+            return checksum(payload) == checksum ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static int checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    private Segment createSegment(long baseId) throws IOException {
+        closeAppendStream();
+        Segment segment = new Segment(baseId, getSegmentFile(baseId));
+        // truncate anything left behind under the same name
+        appendStream = new FileOutputStream(segment.file, false);
+        segments.add(segment);
+        return segment;
+    }
+
+    private File getSegmentFile(long baseId) {
+        return new File(directory, String.format("%019d%s", baseId, SEGMENT_FILE_SUFFIX));
+    }
+
+    private int getPayloadLength(long id) {
+        for (Segment segment : segments) {
+            if (id >= segment.baseId && id <= segment.getLastId()) {
+                return segment.getPayloadLength(id);
+            }
+        }
+        return 0;
+    }
+
+    private void advanceHead() {
+        while (!removedIds.isEmpty() && removedIds.first() == headId) {
+            removedIds.pollFirst();
+            headId++;
+        }
+    }
+
+    private void deleteRemovedSegments() {
+        while (!segments.isEmpty() && segments.get(0).getLastId() < headId) {
+            Segment segment = segments.remove(0);
+            if (segments.isEmpty()) {
+                closeAppendStream();
+            }
+            segment.file.delete();
+        }
+    }
+
+    private long readHead() throws IOException {
+        File file = new File(directory, HEAD_FILE_NAME);
+        if (!file.exists()) {
+            return 1;
+        }
+        DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            long persistedHeadId = data.readLong();
+            int removedCount = data.readInt();
+            for (int i = 0; i < removedCount; i++) {
+                removedIds.add(data.readLong());
+            }
+            return persistedHeadId;
+        } catch (EOFException e) {
+            logger.w(TAG, "Ignoring truncated head file " + file);
+            removedIds.clear();
+            return 1;
+        } finally {
+            data.close();
+        }
+    }
+
+    private void writeHead() throws IOException {
+        // write a new file and rename it over the old one, so the head is never half written
+        File temp = new File(directory, HEAD_TEMP_FILE_NAME);
+        DataOutputStream data = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            data.writeLong(headId);
+            data.writeInt(removedIds.size());
+            for (Long id : removedIds) {
+                data.writeLong(id);
+            }
+        } finally {
+            data.close();
+        }
+        if (!temp.renameTo(new File(directory, HEAD_FILE_NAME))) {
+            throw new IOException("Cannot write head file in " + directory);
+        }
+    }
+
+    private void closeAppendStream() {
+        if (appendStream != null) {
+            try {
+                appendStream.close();
+            } catch (IOException e) {
+                logger.w(TAG, e);
+            }
+            appendStream = null;
+        }
+    }
+
+    private void deleteFiles() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private void clear() {
+        segments.clear();
+        removedIds.clear();
+        headId = 1;
+        nextId = 1;
+        payloadSize = 0;
+        opened = false;
+    }
+}
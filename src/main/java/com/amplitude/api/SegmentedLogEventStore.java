@@ -0,0 +1,47 @@
+package com.amplitude.api;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * SegmentedLogEventStore
+ * {@link EventStore} that keeps the event and identify queues in append-only segmented logs
+ * instead of SQLite tables. Logging an event is a sequential append, and removing uploaded
+ * events advances the log head and deletes whole segment files, so this first-in first-out
+ * workload causes no B-tree page rewrites.
+ */
+class SegmentedLogEventStore extends QueueEventStore {
+
+    static final Map<String, SegmentedLogEventStore> instances = new HashMap<String, SegmentedLogEventStore>();
+
+    static synchronized SegmentedLogEventStore getEventStore(Context context, String instance) {
+        instance = Utils.normalizeInstanceName(instance);
+        SegmentedLogEventStore eventStore = instances.get(instance);
+        if (eventStore == null) {
+            eventStore = new SegmentedLogEventStore(
+                getDirectory(context, instance),
+                DatabaseHelper.getDatabaseHelper(context, instance)
+            );
+            instances.put(instance, eventStore);
+        }
+        return eventStore;
+    }
+
+    static boolean exists(Context context, String instance) {
+        return getDirectory(context, Utils.normalizeInstanceName(instance)).exists();
+    }
+
+    private static File getDirectory(Context context, String instance) {
+        return new File(context.getApplicationContext().getFilesDir(),
+                DatabaseHelper.getDatabaseName(instance) + "_log");
+    }
+
+    SegmentedLogEventStore(File directory, DatabaseHelper dbHelper) {
+        super(directory, dbHelper,
+                new SegmentedLog(new File(directory, DatabaseHelper.EVENT_TABLE_NAME)),
+                new SegmentedLog(new File(directory, DatabaseHelper.IDENTIFY_TABLE_NAME)));
+    }
+}
@@ -0,0 +1,174 @@
+package com.amplitude.api;
+
+/**
+ * UploadBatch
+ * Builds the JSON array of an upload request straight from the stored event strings. Rows are
+ * appended as they are read, with their id spliced in as "event_id", so the batch is never
+ * parsed into objects and only one copy of it is held in memory.
+ * <b>Note: </b> not thread safe.
+ */
+class UploadBatch {
+
+    private static final String TAG = UploadBatch.class.getName();
+
+    private static final String SEQUENCE_NUMBER_KEY = "\"sequence_number\"";
+
+    private static final AmplitudeLog logger = AmplitudeLog.getLogger();
+
+    private final StringBuilder events = new StringBuilder(1024).append('[');
+    private int count = 0;
+    private long maxEventId = -1;
+    private long maxIdentifyId = -1;
+
+    /**
+     * Appends a stored event to the batch.
+     *
+     * @param eventId the id of the stored row
+     * @param event the serialized event, a JSON object
+     */
+    void addEvent(long eventId, String event) {
+        maxEventId = eventId;
+        append(eventId, event);
+    }
+
+    /**
+     * Appends a stored identify to the batch, see {@link #addEvent(long, String)}.
+     */
+    void addIdentify(long identifyId, String identify) {
+        maxIdentifyId = identifyId;
+        append(identifyId, identify);
+    }
+
+    private void append(long id, String event) {
+        int start = skipWhitespace(event, 0);
+        int end = event.length() - 1;
+        while (end > start && Character.isWhitespace(event.charAt(end))) {
+            end--;
+        }
+        if (start >= end || event.charAt(start) != '{' || event.charAt(end) != '}') {
+            // still counted in the max ids, so the row is removed with the rest of the batch
+            logger.e(TAG, String.format("Skipping malformed event %d", id));
+            return;
+        }
+
+        if (count > 0) {
+            events.append(',');
+        }
+        events.append("{\"event_id\":").append(id);
+        int next = skipWhitespace(event, start + 1);
+        if (next < end) {
+            events.append(',').append(event, next, end + 1);
+        } else {
+            events.append('}');
+        }
+        count++;
+    }
+
+    /**
+     * @return the number of events and identifys in the batch
+     */
+    int getCount() {
+        return count;
+    }
+
+    long getMaxEventId() {
+        return maxEventId;
+    }
+
+    long getMaxIdentifyId() {
+        return maxIdentifyId;
+    }
+
+    /**
+     * @return the batch as a JSON array
+     */
+    String getEvents() {
+        String json = events.append(']').toString();
+        events.setLength(events.length() - 1);
+        return json;
+    }
+
+    /**
+     * Whether the event goes before the identify in an upload, events are ordered by sequence
+     * number and events logged before v2.1.0 have none, those go first.
+     *
+     * @param eventSequenceNumber the sequence number of the event, -1 if it has none
+     * @param identifySequenceNumber the sequence number of the identify
+     */
+    static boolean isEventFirst(long eventSequenceNumber, long identifySequenceNumber) {
+        return eventSequenceNumber < 0 || eventSequenceNumber < identifySequenceNumber;
+    }
+
+    /**
+     * Reads the top level "sequence_number" of a serialized event without parsing it.
+     *
+     * @param event the serialized event
+     * @return the sequence number, or -1 if the event has none
+     */
+    static long getSequenceNumber(String event) {
+        int depth = 0;
+        int length = event.length();
+        for (int i = 0; i < length; i++) {
+            char c = event.charAt(i);
+            if (c == '"') {
+                if (depth == 1 && event.startsWith(SEQUENCE_NUMBER_KEY, i)) {
+                    int colon = skipWhitespace(event, i + SEQUENCE_NUMBER_KEY.length());
+                    if (colon < length && event.charAt(colon) == ':') {
+                        return parseLong(event, skipWhitespace(event, colon + 1));
+                    }
+                }
+                i = skipString(event, i);
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+        }
+        return -1;
+    }
+
+    /*
+        Returns the index of the quote closing the string that starts at the given index.
+     */
+    private static int skipString(String json, int start) {
+        for (int i = start + 1; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return json.length();
+    }
+
+    private static int skipWhitespace(String json, int start) {
+        int i = start;
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static long parseLong(String json, int start) {
+        int i = start;
+        boolean negative = i < json.length() && json.charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long value = 0;
+        int digits = 0;
+        for (; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c < '0' || c > '9') {
+                break;
+            }
+            value = value * 10 + (c - '0');
+            digits++;
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        return negative ? -value : value;
+    }
+}
@@ -99,6 +99,31 @@ public class Utils {
         return (s == null || s.length() == 0);
     }
 
+    /**
+     * Returns the length of the string in bytes when encoded as UTF-8, without encoding it.
+     */
+    static long getUtf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
     static String normalizeInstanceName(String instance) {
         if (isEmptyString(instance)) {
             instance = Constants.DEFAULT_INSTANCE;
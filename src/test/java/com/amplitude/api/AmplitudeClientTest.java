@@ -1,5 +1,8 @@
 package com.amplitude.api;
 
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
 import org.json.JSONArray;
@@ -19,6 +22,7 @@ import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLooper;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -38,6 +42,7 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 import static org.robolectric.Shadows.shadowOf;
 
@@ -261,6 +266,76 @@ public class AmplitudeClientTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testEventEnvelope() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.addEventMiddleware(new Middleware() {
+            @Override
+            public void run(MiddlewarePayload payload, MiddlewareNext next) {
+                try {
+                    // changes to one event do not reach the events logged after it
+                    if (payload.event.getString("event_type").equals("test1")) {
+                        payload.event.getJSONObject("library").put("name", "changed");
+                    }
+                } catch (JSONException e) {
+                    fail(e.toString());
+                }
+                next.run(payload);
+            }
+        });
+        amplitude.logEvent("test1");
+        amplitude.logEvent("test2");
+        amplitude.setLibraryName("amplitude-unity");
+        amplitude.setPlan(new Plan().setBranch("main"));
+        amplitude.logEvent("test3");
+        looper.runToEndOfTasks();
+
+        JSONArray events = getUnsentEvents(3);
+        assertEquals("changed", events.getJSONObject(0).getJSONObject("library").getString("name"));
+        assertEquals(Constants.LIBRARY, events.getJSONObject(1).getJSONObject("library").getString("name"));
+        assertFalse(events.getJSONObject(1).has("plan"));
+        assertEquals("amplitude-unity", events.getJSONObject(2).getJSONObject("library").getString("name"));
+        assertEquals("main", events.getJSONObject(2).getJSONObject("plan").getString("branch"));
+        assertEquals(Constants.PLATFORM, events.getJSONObject(2).getString("platform"));
+    }
+
+    @Test
+    public void testLogEventProperties() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        EventProperties properties = new EventProperties.Builder()
+                .put("color", "green")
+                .put("nested", new EventProperties.Builder().put("count", 1).build())
+                .build();
+        amplitude.logEvent("test1", properties, 1000, false);
+        looper.runToEndOfTasks();
+
+        amplitude.addEventMiddleware(new Middleware() {
+            @Override
+            public void run(MiddlewarePayload payload, MiddlewareNext next) {
+                try {
+                    if (payload.event.getString("event_type").equals("test2")) {
+                        payload.event.getJSONObject("event_properties").getJSONObject("nested").put("count", 2);
+                    }
+                } catch (JSONException e) {
+                    fail(e.toString());
+                }
+                next.run(payload);
+            }
+        });
+        amplitude.logEvent("test2", properties, 2000, true);
+        amplitude.logEvent("test3", properties, 3000, false);
+        looper.runToEndOfTasks();
+
+        JSONArray events = getUnsentEvents(3);
+        assertEquals(1000, events.getJSONObject(0).getLong("timestamp"));
+        assertEquals("green", events.getJSONObject(0).getJSONObject("event_properties").getString("color"));
+        assertEquals(-1, events.getJSONObject(1).getLong("session_id"));
+        assertEquals(2, events.getJSONObject(1).getJSONObject("event_properties").getJSONObject("nested").getInt("count"));
+        // the middleware changed a copy, not the logged properties
+        assertEquals(1, events.getJSONObject(2).getJSONObject("event_properties").getJSONObject("nested").getInt("count"));
+        assertEquals(1, properties.toJSONObject().getJSONObject("nested").getInt("count"));
+    }
+
     @Test
     public void testIdentifyMultipleOperations() throws JSONException {
         String property1 = "string value";
@@ -1059,6 +1134,112 @@ public class AmplitudeClientTest extends BaseTest {
         assertEquals(dbHelper.getTotalEventCount(), 1);
     }
 
+    @Test
+    public void testPrefetchNextUploadBatch() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(amplitude.httpThread.getLooper());
+        amplitude.setEventUploadMaxBatchSize(2);
+        amplitude.setEventUploadThreshold(1);
+        amplitude.setOffline(true);
+        for (int i = 0; i < 5; i++) {
+            amplitude.logEvent(String.format("test%d", i));
+        }
+        looper.runToEndOfTasks();
+        assertEquals(5, getUnsentEventCount());
+
+        // a failed upload drops the batch read ahead, the same rows are sent again
+        amplitude.setOffline(false);
+        looper.runToEndOfTasks();
+        server.enqueue(new MockResponse().setResponseCode(500));
+        httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(5, getUnsentEventCount());
+
+        amplitude.updateServer();
+        looper.runToEndOfTasks();
+        List<String> uploaded = new ArrayList<String>();
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = runRequest(amplitude);
+            JSONArray events = getEventsFromRequest(request);
+            for (int j = 0; j < events.length(); j++) {
+                uploaded.add(events.getJSONObject(j).optString("event_type"));
+            }
+            looper.runToEndOfTasks();
+            looper.runToEndOfTasks();
+        }
+        assertEquals(Arrays.asList("test0", "test1", "test2", "test3", "test4"), uploaded);
+        assertEquals(0, getUnsentEventCount());
+    }
+
+    @Test
+    public void testDatabaseResetDuringUpload() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setEventUploadMaxBatchSize(2);
+        amplitude.setOffline(true);
+        for (int i = 0; i < 5; i++) {
+            amplitude.logEvent(String.format("test%d", i));
+        }
+        looper.runToEndOfTasks();
+        amplitude.setOffline(false);
+        looper.runToEndOfTasks();
+
+        // the database is reset while the first batch is uploaded and the next one is read ahead
+        assertFalse(amplitude.dbHelper.runInTransaction(new DatabaseHelper.Transaction() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                throw new SQLiteException("test");
+            }
+        }));
+        amplitude.logEvent("new1");
+        amplitude.logEvent("new2");
+        looper.runToEndOfTasks();
+        assertEquals(2, getUnsentEventCount());
+
+        // the ids of the uploaded batch now belong to the new events, they are kept
+        runRequest(amplitude);
+        looper.runToEndOfTasks();
+        assertEquals(2, getUnsentEventCount());
+
+        amplitude.updateServer();
+        looper.runToEndOfTasks();
+        JSONArray events = getEventsFromRequest(runRequest(amplitude));
+        looper.runToEndOfTasks();
+        assertEquals(2, events.length());
+        assertEquals("new1", events.getJSONObject(0).optString("event_type"));
+        assertEquals("new2", events.getJSONObject(1).optString("event_type"));
+        assertEquals(0, getUnsentEventCount());
+    }
+
+    @Test
+    public void testEvictionDropsPrefetchedBatch() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setEventUploadMaxBatchSize(2);
+        amplitude.setOffline(true);
+        for (int i = 0; i < 5; i++) {
+            amplitude.logEvent(String.format("test%d", i));
+        }
+        looper.runToEndOfTasks();
+        amplitude.setOffline(false);
+        looper.runToEndOfTasks();
+
+        // test2 is read ahead with test3, then evicted while the first batch is uploaded
+        DatabaseHelper dbHelper = amplitude.dbHelper;
+        assertEquals(3, dbHelper.trimEventsToCount(
+                dbHelper.getWritableDatabase(), DatabaseHelper.EVENT_TABLE_NAME, 2));
+        runRequest(amplitude);
+        looper.runToEndOfTasks();
+        assertEquals(2, getUnsentEventCount());
+
+        amplitude.updateServer();
+        looper.runToEndOfTasks();
+        JSONArray events = getEventsFromRequest(runRequest(amplitude));
+        looper.runToEndOfTasks();
+        assertEquals(2, events.length());
+        assertEquals("test3", events.getJSONObject(0).optString("event_type"));
+        assertEquals("test4", events.getJSONObject(1).optString("event_type"));
+        assertEquals(0, getUnsentEventCount());
+    }
+
     @Test
     public void testBackoffRemoveIdentify() {
         long [] timestamps = {1, 1, 2, 3, 4, 5};
@@ -1195,6 +1376,422 @@ public class AmplitudeClientTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testGroupCommit() {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.enableGroupCommit(60 * 1000, 3);
+        looper.runOneTask();
+
+        amplitude.logEvent("test1");
+        amplitude.identify(new Identify().unset("key1"));
+        looper.runOneTask();
+        looper.runOneTask();
+
+        // events are buffered until the batch is full or the window elapses
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(getUnsentIdentifyCount(), 0);
+
+        amplitude.logEvent("test2");
+        looper.runOneTask();
+
+        // full batch is written together with the metadata
+        assertEquals(getUnsentEventCount(), 2);
+        assertEquals(getUnsentIdentifyCount(), 1);
+        assertEquals(amplitude.lastEventId, 2);
+        assertEquals(amplitude.lastIdentifyId, 1);
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY), Long.valueOf(2));
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.LAST_IDENTIFY_ID_KEY), Long.valueOf(1));
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), Long.valueOf(3));
+
+        amplitude.logEvent("test3");
+        looper.runToEndOfTasks();
+
+        // remaining event is written once the window elapses
+        assertEquals(getUnsentEventCount(), 3);
+        assertEquals(getLastUnsentEvent().optString("event_type"), "test3");
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), Long.valueOf(4));
+    }
+
+    @Test
+    public void testGroupCommitEventId() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.enableGroupCommit(60 * 1000, 3);
+        looper.runOneTask();
+
+        // a buffered event has no id until the batch is written
+        assertEquals(0, amplitude.logEvent("test1", null, null, null, null, null, 1000, false, true));
+        assertEquals(0, getUnsentEventCount());
+
+        amplitude.disableGroupCommit();
+        looper.runToEndOfTasks();
+        assertEquals(1, amplitude.lastEventId);
+        assertEquals(2, amplitude.logEvent("test2", null, null, null, null, null, 2000, false, true));
+    }
+
+    @Test
+    public void testLogEvents() throws JSONException {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.enableGroupCommit(60 * 1000, 3);
+        looper.runOneTask();
+        GroupCommitWriter writer = amplitude.groupCommitWriter;
+
+        amplitude.logEvent("before");
+        looper.runOneTask();
+        assertEquals(getUnsentEventCount(), 0);
+
+        EventBatch batch = new EventBatch()
+                .add("test1", 1000, false)
+                .add("test2", new JSONObject().put("key", "value"), 2000, false)
+                .add("test3", new EventProperties.Builder().put("count", 3).build(), 3000, true)
+                .add("", 4000, false)
+                .add("test4", 5000, false);
+        assertEquals(4, batch.size());
+        amplitude.logEvents(batch);
+
+        // the whole batch crosses to the log thread in one task and is written together, after
+        // the event buffered before it, even though it is larger than the group commit batch
+        looper.runOneTask();
+        JSONArray events = getUnsentEvents(5);
+        assertEquals("before", events.getJSONObject(0).getString("event_type"));
+        for (int i = 1; i < 5; i++) {
+            assertEquals("test" + i, events.getJSONObject(i).getString("event_type"));
+            assertEquals(i + 1, events.getJSONObject(i).getLong("sequence_number"));
+        }
+        assertEquals("value", events.getJSONObject(2).getJSONObject("event_properties").getString("key"));
+        assertEquals(3, events.getJSONObject(3).getJSONObject("event_properties").getInt("count"));
+        assertEquals(-1, events.getJSONObject(3).getLong("session_id"));
+        assertEquals(5000, events.getJSONObject(4).getLong("timestamp"));
+        assertEquals(amplitude.lastEventId, 5);
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY), Long.valueOf(5));
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), Long.valueOf(5));
+
+        // the client goes back to its own group commit writer
+        assertSame(writer, amplitude.groupCommitWriter);
+        assertEquals(0, writer.getPendingEventCount());
+    }
+
+    @Test
+    public void testMetadataWriteBehind() {
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.enableMetadataWriteBehind(60 * 1000);
+        looper.runOneTask();
+
+        amplitude.logEvent("test1");
+        looper.runOneTask();
+        amplitude.logEvent("test2");
+        looper.runOneTask();
+
+        // events are written right away, metadata is held apart from the sequence reservation
+        assertEquals(getUnsentEventCount(), 2);
+        assertEquals(amplitude.lastEventId, 2);
+        assertEquals(amplitude.sequenceNumber, 2);
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), Long.valueOf(100));
+        assertNotEquals(dbHelper.getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY), Long.valueOf(2));
+        assertTrue(amplitude.metadataCache.getPendingValueCount() > 0);
+
+        // pending metadata is written once the flush period elapses
+        looper.runToEndOfTasks();
+        assertEquals(amplitude.metadataCache.getPendingValueCount(), 0);
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.LAST_EVENT_ID_KEY), Long.valueOf(2));
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.LAST_EVENT_TIME_KEY), Long.valueOf(amplitude.lastEventTime));
+
+        // after a restart sequence numbers continue past the reservation
+        amplitude.initialized = false;
+        amplitude.initialize(context, apiKey);
+        looper.runToEndOfTasks();
+        assertEquals(amplitude.sequenceNumber, 100);
+        assertEquals(amplitude.lastEventId, -1);
+        amplitude.logEvent("test3");
+        looper.runToEndOfTasks();
+        assertEquals(getLastUnsentEvent().optLong("sequence_number"), 101);
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), Long.valueOf(200));
+
+        amplitude.disableMetadataWriteBehind();
+        looper.runToEndOfTasks();
+        assertNull(amplitude.metadataCache);
+        assertEquals(dbHelper.getLongValue(AmplitudeClient.SEQUENCE_NUMBER_KEY), Long.valueOf(101));
+    }
+
+    @Test
+    public void testSegmentedLogStorage() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.logEvent("test1");
+        amplitude.identify(new Identify().unset("key1"));
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 1);
+        assertEquals(getUnsentIdentifyCount(), 1);
+
+        // switching storage moves unsent events into the logs
+        amplitude.initialized = false;
+        amplitude.setUseSegmentedLogStorage(true).initialize(context, apiKey);
+        looper.runToEndOfTasks();
+        EventStore eventStore = amplitude.getEventStore();
+        assertTrue(eventStore instanceof SegmentedLogEventStore);
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(getUnsentIdentifyCount(), 0);
+        assertEquals(eventStore.getEventCount(), 1);
+        assertEquals(eventStore.getIdentifyCount(), 1);
+
+        amplitude.logEvent("test2");
+        looper.runToEndOfTasks();
+        assertEquals(eventStore.getEventCount(), 2);
+        assertEquals(amplitude.lastEventId, 2);
+
+        amplitude.setOffline(false);
+        looper.runToEndOfTasks();
+        RecordedRequest request = runRequest(amplitude);
+        JSONArray events = getEventsFromRequest(request);
+        looper.runToEndOfTasks();
+        assertEquals(events.length(), 3);
+        assertEquals(events.getJSONObject(0).optString("event_type"), "test1");
+        assertEquals(events.getJSONObject(2).optString("event_type"), "test2");
+        assertEquals(eventStore.getTotalEventCount(), 0);
+
+        // switching back moves leftover events into the database and removes the logs
+        amplitude.setOffline(true);
+        amplitude.logEvent("test3");
+        looper.runToEndOfTasks();
+        amplitude.initialized = false;
+        amplitude.setUseSegmentedLogStorage(false).initialize(context, apiKey);
+        looper.runToEndOfTasks();
+        assertSame(amplitude.getEventStore(), amplitude.dbHelper);
+        assertEquals(getUnsentEventCount(), 1);
+        assertEquals(getLastUnsentEvent().optString("event_type"), "test3");
+        assertFalse(SegmentedLogEventStore.exists(context, amplitude.instanceName));
+    }
+
+    @Test
+    public void testMoveUnsentEventsKeepsRowsThatCannotBeMoved() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < Constants.MAX_STRING_LENGTH; i++) {
+            large.append('a');
+        }
+        JSONObject properties = new JSONObject();
+        for (int i = 0; i < 3; i++) {
+            properties.put("large" + i, large.toString());
+        }
+        amplitude.setOffline(true);
+        amplitude.logEvent("test1");
+        amplitude.logEvent("test2", properties);
+        amplitude.logEvent("test3");
+        looper.runToEndOfTasks();
+        assertEquals(3, getUnsentEventCount());
+
+        // the new store rejects test2, which is kept with the rows after it
+        amplitude.initialized = false;
+        amplitude.setEventMaxBytes(2 * Constants.MAX_STRING_LENGTH);
+        amplitude.setUseSegmentedLogStorage(true).initialize(context, apiKey);
+        looper.runToEndOfTasks();
+        EventStore eventStore = amplitude.getEventStore();
+        assertEquals(1, eventStore.getEventCount());
+        assertEquals("test1", eventStore.getEvents(-1, -1).get(0).optString("event_type"));
+        assertEquals(2, getUnsentEventCount());
+        assertEquals(amplitude.lastEventId, 1);
+    }
+
+    @Test
+    public void testMoveUnsentEventsKeepsPriority() {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        MiddlewareExtra extra = new MiddlewareExtra();
+        extra.put(Constants.AMP_EVENT_PRIORITY_EXTRA, Constants.EVENT_PRIORITY_LOW);
+        amplitude.logEvent("test1", null, extra);
+        amplitude.logEvent("test2");
+        looper.runToEndOfTasks();
+
+        try {
+            amplitude.initialized = false;
+            amplitude.setUseSharedStorage(true).initialize(context, apiKey);
+            looper.runToEndOfTasks();
+            looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+            looper.runToEndOfTasks();
+            assertTrue(amplitude.dbHelper.isSharedStorage());
+            assertEquals(2, amplitude.dbHelper.getEventCount());
+            Map<Long, Integer> priorities = amplitude.dbHelper.getEventPriorities();
+            assertEquals(Constants.EVENT_PRIORITY_LOW, (int) priorities.get(amplitude.dbHelper.getNthEventId(1)));
+            assertEquals(Constants.EVENT_PRIORITY_NORMAL, (int) priorities.get(amplitude.dbHelper.getNthEventId(2)));
+        } finally {
+            AmplitudeClient.sharedLogThread.quit();
+            AmplitudeClient.sharedHttpThread.quit();
+            AmplitudeClient.sharedLogThread = null;
+            AmplitudeClient.sharedHttpThread = null;
+        }
+    }
+
+    @Test
+    public void testRingBufferStorage() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.setUseSegmentedLogStorage(true);
+        amplitude.initialized = false;
+        amplitude.initialize(context, apiKey);
+        amplitude.logEvent("test1");
+        looper.runToEndOfTasks();
+        assertEquals(amplitude.getEventStore().getEventCount(), 1);
+
+        // switching from the segmented log moves its events into the ring buffer
+        amplitude.initialized = false;
+        amplitude.setUseRingBufferStorage(true).initialize(context, apiKey);
+        looper.runToEndOfTasks();
+        EventStore eventStore = amplitude.getEventStore();
+        assertTrue(eventStore instanceof RingBufferEventStore);
+        assertEquals(eventStore.getEventCount(), 1);
+        assertFalse(SegmentedLogEventStore.exists(context, amplitude.instanceName));
+
+        amplitude.logEvent("test2");
+        amplitude.setOffline(false);
+        looper.runToEndOfTasks();
+        RecordedRequest request = runRequest(amplitude);
+        JSONArray events = getEventsFromRequest(request);
+        looper.runToEndOfTasks();
+        assertEquals(events.length(), 2);
+        assertEquals(events.getJSONObject(0).optString("event_type"), "test1");
+        assertEquals(events.getJSONObject(1).optString("event_type"), "test2");
+        assertEquals(eventStore.getTotalEventCount(), 0);
+    }
+
+    @Test
+    public void testUnifiedEventQueue() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.logEvent("test1");
+        amplitude.identify(new Identify().unset("key1"));
+        looper.runToEndOfTasks();
+
+        // switching layout moves unsent events into the queue table in logged order
+        amplitude.initialized = false;
+        amplitude.setUseUnifiedEventQueue(true).initialize(context, apiKey);
+        looper.runToEndOfTasks();
+        assertTrue(amplitude.dbHelper.isUnifiedQueue());
+        assertEquals(getUnsentEventCount(), 1);
+        assertEquals(getUnsentIdentifyCount(), 1);
+
+        amplitude.logEvent("test2");
+        looper.runToEndOfTasks();
+        amplitude.setOffline(false);
+        looper.runToEndOfTasks();
+        RecordedRequest request = runRequest(amplitude);
+        JSONArray events = getEventsFromRequest(request);
+        looper.runToEndOfTasks();
+        assertEquals(events.length(), 3);
+        assertEquals(events.getJSONObject(0).optString("event_type"), "test1");
+        assertEquals(events.getJSONObject(1).optString("event_type"), Constants.IDENTIFY_EVENT);
+        assertEquals(events.getJSONObject(2).optString("event_type"), "test2");
+        assertEquals(amplitude.dbHelper.getTotalEventCount(), 0);
+        amplitude.dbHelper.setUnifiedQueue(false);
+    }
+
+    @Test
+    public void testSharedStorage() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+        amplitude.setOffline(true);
+        amplitude.logEvent("test1");
+        looper.runToEndOfTasks();
+        String deviceId = amplitude.getDeviceId();
+
+        AmplitudeClient other = new AmplitudeClient("other");
+        try {
+            // switching moves metadata and unsent events into the shared database
+            amplitude.initialized = false;
+            WorkerThread otherLogThread = other.logThread;
+            amplitude.setUseSharedStorage(true).initialize(context, apiKey);
+            other.setUseSharedStorage(true).initialize(context, "1cc2c1978ebab0f6451112a8f5df4f4e");
+            assertSame(AmplitudeClient.sharedLogThread, amplitude.logThread);
+            assertSame(amplitude.logThread, other.logThread);
+            assertSame(amplitude.httpThread, other.httpThread);
+            looper.runToEndOfTasks();
+            Shadows.shadowOf(otherLogThread.getLooper()).runToEndOfTasks();
+            looper = Shadows.shadowOf(amplitude.logThread.getLooper());
+            looper.runToEndOfTasks();
+            assertTrue(amplitude.dbHelper.isSharedStorage());
+            assertEquals(deviceId, amplitude.getDeviceId());
+            assertEquals(1, amplitude.dbHelper.getEventCount());
+            assertEquals(0, DatabaseHelper.getDatabaseHelper(context).getEventCount());
+
+            other.setOffline(true);
+            other.logEvent("test2");
+            looper.runToEndOfTasks();
+            assertEquals(1, amplitude.dbHelper.getEventCount());
+            assertEquals(1, other.dbHelper.getEventCount());
+
+            // each client still uploads only its own events
+            amplitude.setOffline(false);
+            looper.runToEndOfTasks();
+            RecordedRequest request = runRequest(amplitude);
+            JSONArray events = getEventsFromRequest(request);
+            looper.runToEndOfTasks();
+            assertEquals(1, events.length());
+            assertEquals("test1", events.getJSONObject(0).optString("event_type"));
+            assertEquals(0, amplitude.dbHelper.getEventCount());
+            assertEquals(1, other.dbHelper.getEventCount());
+        } finally {
+            AmplitudeClient.sharedLogThread.quit();
+            AmplitudeClient.sharedHttpThread.quit();
+            AmplitudeClient.sharedLogThread = null;
+            AmplitudeClient.sharedHttpThread = null;
+        }
+    }
+
+    @Test
+    public void testSharedThreadsRunAfterOwnThread() {
+        final List<String> order = new ArrayList<String>();
+        AmplitudeClient other = new AmplitudeClient("other");
+        WorkerThread ownLogThread = other.logThread;
+        try {
+            other.runOnLogThread(new Runnable() {
+                @Override
+                public void run() {
+                    order.add("own");
+                }
+            });
+            other.setUseSharedStorage(true);
+            other.runOnLogThread(new Runnable() {
+                @Override
+                public void run() {
+                    order.add("shared");
+                }
+            });
+            assertSame(AmplitudeClient.sharedLogThread, other.logThread);
+
+            // work posted after the switch waits for the client's own thread
+            ShadowLooper sharedLooper = Shadows.shadowOf(other.logThread.getLooper());
+            sharedLooper.runToEndOfTasks();
+            assertTrue(order.isEmpty());
+            Shadows.shadowOf(ownLogThread.getLooper()).runToEndOfTasks();
+            assertEquals(1, order.size());
+            sharedLooper.runToEndOfTasks();
+            assertEquals(Arrays.asList("own", "shared"), order);
+        } finally {
+            AmplitudeClient.sharedLogThread.quit();
+            AmplitudeClient.sharedHttpThread.quit();
+            AmplitudeClient.sharedLogThread = null;
+            AmplitudeClient.sharedHttpThread = null;
+        }
+    }
+
+    @Test
+    public void testGetEventPriority() {
+        assertEquals(Constants.EVENT_PRIORITY_NORMAL, AmplitudeClient.getEventPriority("test", null));
+        assertEquals(Constants.EVENT_PRIORITY_HIGH, AmplitudeClient.getEventPriority(Constants.IDENTIFY_EVENT, null));
+        assertEquals(Constants.EVENT_PRIORITY_HIGH, AmplitudeClient.getEventPriority(Constants.AMP_REVENUE_EVENT, null));
+        assertEquals(Constants.EVENT_PRIORITY_HIGH, AmplitudeClient.getEventPriority(AmplitudeClient.START_SESSION_EVENT, null));
+
+        MiddlewareExtra extra = new MiddlewareExtra();
+        assertEquals(Constants.EVENT_PRIORITY_NORMAL, AmplitudeClient.getEventPriority("test", extra));
+        extra.put(Constants.AMP_EVENT_PRIORITY_EXTRA, Constants.EVENT_PRIORITY_LOW);
+        assertEquals(Constants.EVENT_PRIORITY_LOW, AmplitudeClient.getEventPriority("test", extra));
+        assertEquals(Constants.EVENT_PRIORITY_LOW, AmplitudeClient.getEventPriority(AmplitudeClient.END_SESSION_EVENT, extra));
+    }
+
     @Test
     public void testSetOffline() throws JSONException {
         ShadowLooper looper = Shadows.shadowOf(amplitude.logThread.getLooper());
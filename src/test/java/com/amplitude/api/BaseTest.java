@@ -117,6 +117,8 @@ public class BaseTest {
         // and https://github.com/robolectric/robolectric/issues/1622
         Amplitude.instances.clear();
         DatabaseHelper.instances.clear();
+        SegmentedLogEventStore.instances.clear();
+        RingBufferEventStore.instances.clear();
 
         if (withServer) {
             server = new MockWebServer();
@@ -152,6 +154,8 @@ public class BaseTest {
 
         Amplitude.instances.clear();
         DatabaseHelper.instances.clear();
+        SegmentedLogEventStore.instances.clear();
+        RingBufferEventStore.instances.clear();
     }
 
     public RecordedRequest runRequest(AmplitudeClient amplitude) {
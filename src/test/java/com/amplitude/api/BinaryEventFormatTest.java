@@ -0,0 +1,77 @@
+package com.amplitude.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@Config(manifest=Config.NONE)
+public class BinaryEventFormatTest {
+
+    private String roundTrip(BinaryEventFormat format, String json) {
+        byte[] record = format.encode(json, EventCodec.CODEC_BINARY_V1);
+        StringBuilder builder = new StringBuilder();
+        assertTrue(format.writeJson(record, 1, builder));
+        return builder.toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws JSONException {
+        BinaryEventFormat format = new BinaryEventFormat();
+        JSONObject event = new JSONObject()
+                .put("event_type", "test \"quoted\" \\ \n \u0001 é 中")
+                .put("timestamp", 1700000000000L)
+                .put("session_id", -1)
+                .put("price", 1.25)
+                .put("flag", true)
+                .put("missing", JSONObject.NULL)
+                .put("event_properties", new JSONObject()
+                        .put("list", new JSONArray().put(1).put("two").put(new JSONObject()).put(new JSONArray()))
+                        .put("custom key", Long.MIN_VALUE));
+        String json = event.toString();
+
+        String decoded = roundTrip(format, json);
+        assertEquals(json, decoded);
+        assertEquals(-1, new JSONObject(decoded).getLong("session_id"));
+
+        // number literals that are not plain longs are kept as written
+        String numbers = "{\"a\":-0,\"b\":1e10,\"c\":123456789012345678901234,\"d\":[]}";
+        assertEquals(numbers, roundTrip(format, numbers));
+    }
+
+    @Test
+    public void testEncodingIsCompact() throws JSONException {
+        String json = new JSONObject()
+                .put("event_type", "test")
+                .put("timestamp", 1700000000000L)
+                .put("sequence_number", 12345)
+                .put("device_id", "4e6c0a1c-1d9a-4d9b-9b8a-3a51d6b2a1c2")
+                .put("event_properties", new JSONObject())
+                .toString();
+        byte[] record = new BinaryEventFormat().encode(json, EventCodec.CODEC_BINARY_V1);
+        assertTrue(record.length < Utils.getUtf8Length(json) / 2 + 20);
+    }
+
+    @Test
+    public void testMalformedInput() {
+        BinaryEventFormat format = new BinaryEventFormat();
+        assertNull(format.encode("{\"a\":tru}", EventCodec.CODEC_BINARY_V1));
+        assertNull(format.encode("{\"a\":1", EventCodec.CODEC_BINARY_V1));
+        assertNull(format.encode("{\"a\":1}x", EventCodec.CODEC_BINARY_V1));
+
+        byte[] record = format.encode("{\"event_type\":\"test\"}", EventCodec.CODEC_BINARY_V1);
+        byte[] truncated = new byte[record.length - 2];
+        System.arraycopy(record, 0, truncated, 0, truncated.length);
+        assertFalse(format.writeJson(truncated, 1, new StringBuilder()));
+    }
+}
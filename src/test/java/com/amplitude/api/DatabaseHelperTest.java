@@ -1,7 +1,13 @@
 package com.amplitude.api;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Build;
+
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
@@ -13,6 +19,7 @@ import org.robolectric.annotation.Config;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
@@ -333,6 +340,66 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(1, insertOrReplaceKeyLongValue(key, longValue));
     }
 
+    @Test
+    public void testUpgradeVersion4ToVersion5() throws JSONException {
+        // queue table doesn't exist in v4, the unified layout cannot store events
+        dbInstance.getWritableDatabase().execSQL(
+                "DROP TABLE IF EXISTS " + DatabaseHelper.QUEUE_TABLE_NAME);
+        assertEquals(1, addEvent("test_upgrade"));
+
+        // after v5 upgrade, events can be moved to and stored in the queue table
+        dbInstance.onUpgrade(dbInstance.getWritableDatabase(), 4, 5);
+        dbInstance.setUnifiedQueue(true);
+        assertTrue(dbInstance.migrateQueueLayout());
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(2, addIdentify("test_upgrade"));
+        assertEquals("test_upgrade", dbInstance.getEvents(-1, -1).get(0).getString("event_type"));
+        dbInstance.setUnifiedQueue(false);
+    }
+
+    @Test
+    public void testUpgradeVersion5ToVersion6() throws JSONException {
+        // event tables have no priority column in v5
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.EVENT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT);");
+        db.execSQL("CREATE TABLE " + DatabaseHelper.IDENTIFY_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT);");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES ('"
+                + new JSONObject().put("event_type", "test_upgrade") + "')");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES ('"
+                + new JSONObject().put("event_type", AmplitudeClient.START_SESSION_EVENT) + "')");
+        db.execSQL("INSERT INTO " + DatabaseHelper.IDENTIFY_TABLE_NAME + " (event) VALUES ('"
+                + new JSONObject().put("event_type", Constants.IDENTIFY_EVENT) + "')");
+        // only the exact type of the event itself is matched
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES ('"
+                + new JSONObject().put("event_type", "SESSION_START") + "')");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES ('"
+                + new JSONObject().put("event_type", "sessionXstart") + "')");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES ('"
+                + new JSONObject().put("event_type", "test_upgrade").put("event_properties",
+                new JSONObject().put("event_type", AmplitudeClient.START_SESSION_EVENT)) + "')");
+
+        dbInstance.onUpgrade(db, 5, 6);
+        db = dbInstance.getWritableDatabase();
+        assertEquals(Constants.EVENT_PRIORITY_NORMAL, getPriority(db, DatabaseHelper.EVENT_TABLE_NAME, 1));
+        assertEquals(Constants.EVENT_PRIORITY_HIGH, getPriority(db, DatabaseHelper.EVENT_TABLE_NAME, 2));
+        assertEquals(Constants.EVENT_PRIORITY_HIGH, getPriority(db, DatabaseHelper.IDENTIFY_TABLE_NAME, 1));
+        for (long id = 3; id <= 5; id++) {
+            assertEquals(Constants.EVENT_PRIORITY_NORMAL, getPriority(db, DatabaseHelper.EVENT_TABLE_NAME, id));
+        }
+        dbInstance.close();
+
+        assertEquals(6, addEvent("test_upgrade"));
+        assertEquals(1, dbInstance.getIdentifys(-1, -1).size());
+    }
+
+    private static long getPriority(SQLiteDatabase db, String table, long id) {
+        return db.compileStatement("SELECT priority FROM " + table + " WHERE id = " + id).simpleQueryForLong();
+    }
+
     @Test
     public void testInsertOrReplaceKeyValue() {
         String key = "test_key";
@@ -550,6 +617,375 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(0, dbInstance.getIdentifyCount());
     }
 
+    @Test
+    public void testRowCountsReconciledAfterReset() {
+        assertEquals(0, dbInstance.getEventCount());
+        assertEquals(1, addEvent("test_row_count_1"));
+        assertEquals(2, addEvent("test_row_count_2"));
+        assertEquals(1, addIdentify("test_row_count_1"));
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(3, dbInstance.getTotalEventCount());
+
+        // a failed transaction resets the database, counts must follow
+        assertFalse(dbInstance.runInTransaction(new DatabaseHelper.Transaction() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                dbInstance.insertEventToTable(db, DatabaseHelper.EVENT_TABLE_NAME, "test_row_count_3");
+                throw new SQLiteException("test");
+            }
+        }));
+        assertEquals(0, dbInstance.getEventCount());
+        assertEquals(0, dbInstance.getTotalEventCount());
+
+        assertEquals(1, addEvent("test_row_count_4"));
+        assertEquals(1, dbInstance.getEventCount());
+    }
+
+    @Test
+    public void testKeyValuesCachedAfterFirstRead() {
+        insertOrReplaceKeyValue("test_key", "test_value");
+        insertOrReplaceKeyLongValue("test_key", 1L);
+        assertEquals("test_value", getValue("test_key"));
+
+        // both tables are loaded by the first read, later reads do not query the database
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("UPDATE " + DatabaseHelper.STORE_TABLE_NAME + " SET value = 'changed'");
+        db.execSQL("UPDATE " + DatabaseHelper.LONG_STORE_TABLE_NAME + " SET value = 2");
+        assertEquals("test_value", getValue("test_key"));
+        assertEquals(Long.valueOf(1), getLongValue("test_key"));
+
+        // writes go through the cache
+        insertOrReplaceKeyValue("test_key", "test_value_2");
+        insertOrReplaceKeyLongValue("other_key", 3L);
+        insertOrReplaceKeyLongValue("test_key", null);
+        assertEquals("test_value_2", getValue("test_key"));
+        assertEquals(Long.valueOf(3), getLongValue("other_key"));
+        assertNull(getLongValue("test_key"));
+
+        // a database reset drops the cached values
+        assertFalse(dbInstance.runInTransaction(new DatabaseHelper.Transaction() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                dbInstance.insertOrReplaceKeyValueToTable(db, DatabaseHelper.STORE_TABLE_NAME, "test_key", "rolled_back");
+                throw new SQLiteException("test");
+            }
+        }));
+        assertNull(getValue("test_key"));
+        assertNull(getLongValue("other_key"));
+    }
+
+    @Test
+    public void testEventMaxCountEvictsOnInsert() throws JSONException {
+        dbInstance.setEventMaxCount(5);
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, addEvent("test_event_max_count_" + i));
+        }
+        assertEquals(5, dbInstance.getEventCount());
+
+        // sixth insert evicts the oldest event
+        assertEquals(6, addEvent("test_event_max_count_6"));
+        assertEquals(5, dbInstance.getEventCount());
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(2, events.get(0).getLong("event_id"));
+        assertEquals(6, events.get(4).getLong("event_id"));
+
+        // identifys are capped separately
+        assertEquals(1, addIdentify("test_event_max_count_identify"));
+        assertEquals(1, dbInstance.getIdentifyCount());
+        dbInstance.setEventMaxCount(-1);
+    }
+
+    @Test
+    public void testEventMaxCountEvictsLowestPriorityFirst() throws JSONException {
+        dbInstance.setEventMaxCount(4);
+        String event = new JSONObject().put("event_type", "test_priority").toString();
+        assertEquals(1, dbInstance.addEvent(event, Constants.EVENT_PRIORITY_HIGH));
+        assertEquals(2, dbInstance.addEvent(event, Constants.EVENT_PRIORITY_NORMAL));
+        assertEquals(3, dbInstance.addEvent(event, Constants.EVENT_PRIORITY_LOW));
+        assertEquals(4, dbInstance.addEvent(event, Constants.EVENT_PRIORITY_NORMAL));
+
+        // the low priority event goes first, then the oldest normal one
+        assertEquals(5, dbInstance.addEvent(event, Constants.EVENT_PRIORITY_NORMAL));
+        assertEquals(6, dbInstance.addEvent(event, Constants.EVENT_PRIORITY_HIGH));
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(4, events.size());
+        assertEquals(1, events.get(0).getLong("event_id"));
+        assertEquals(4, events.get(1).getLong("event_id"));
+        assertEquals(5, events.get(2).getLong("event_id"));
+        assertEquals(6, events.get(3).getLong("event_id"));
+        dbInstance.setEventMaxCount(-1);
+    }
+
+    @Test
+    public void testEventMaxBytesEvictsOldestEvents() throws JSONException {
+        String payload = new String(new char[40]).replace('\0', 'a');
+        long eventSize = Utils.getUtf8Length(new JSONObject().put("event_type", payload).toString());
+        dbInstance.setEventMaxBytes(eventSize * 5 / 2);
+
+        assertEquals(1, addEvent(payload));
+        assertEquals(2, addEvent(payload));
+        assertEquals(eventSize * 2, dbInstance.getTotalPayloadSize());
+
+        // third event goes over the quota, oldest is evicted
+        assertEquals(3, addEvent(payload));
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(eventSize * 2, dbInstance.getTotalPayloadSize());
+        assertEquals(2, dbInstance.getEvents(-1, -1).get(0).getLong("event_id"));
+
+        // removed rows are subtracted from the running total
+        dbInstance.removeEvent(2);
+        assertEquals(eventSize, dbInstance.getTotalPayloadSize());
+
+        // multi-byte characters count with their encoded size
+        long identifySize = new JSONObject().put("event_type", "\u00e9").toString().length() + 1;
+        assertEquals(1, addIdentify("\u00e9"));
+        assertEquals(eventSize + identifySize, dbInstance.getTotalPayloadSize());
+
+        // events larger than the quota are rejected
+        assertEquals(-1, addEvent(payload + payload + payload));
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(eventSize + identifySize, dbInstance.getTotalPayloadSize());
+        dbInstance.setEventMaxBytes(-1);
+    }
+
+    @Test
+    public void testCompressedEvents() throws JSONException {
+        JSONObject props = new JSONObject()
+                .put("platform", "Android")
+                .put("library", new JSONObject().put("name", "amplitude-android").put("version", "2.0.0"))
+                .put("event_properties", new JSONObject().put("city", "z\u00fcrich"));
+        assertEquals(1, addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, "plain", props));
+        long plainSize = dbInstance.getTotalPayloadSize();
+
+        dbInstance.setEventCodec(EventCodec.CODEC_DEFLATE_V1);
+        assertEquals(2, addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, "compressed", props));
+
+        // quota accounting uses the stored, compressed size
+        long compressedSize = dbInstance.getTotalPayloadSize() - plainSize;
+        assertTrue(compressedSize > 0);
+        assertTrue(compressedSize < plainSize);
+        assertEquals(1, addIdentify("compressed_identify"));
+
+        // old text rows and compressed rows are read back alike
+        dbInstance.setEventCodec(EventCodec.CODEC_NONE);
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(2, events.size());
+        assertEquals("plain", events.get(0).getString("event_type"));
+        assertEquals("compressed", events.get(1).getString("event_type"));
+        assertEquals(2, events.get(1).getLong("event_id"));
+        assertEquals("z\u00fcrich", events.get(1).getJSONObject("event_properties").getString("city"));
+        assertEquals("2.0.0", events.get(1).getJSONObject("library").getString("version"));
+        assertEquals("compressed_identify", dbInstance.getIdentifys(-1, -1).get(0).getString("event_type"));
+        assertEquals("compressed", dbInstance.getEventFromTable(DatabaseHelper.EVENT_TABLE_NAME, 2).getString("event_type"));
+    }
+
+    @Test
+    public void testBinaryEncodedEvents() throws JSONException {
+        assertEquals(1, addEvent("text"));
+        dbInstance.setEventCodec(EventCodec.CODEC_BINARY_V1);
+        JSONObject props = new JSONObject().put("timestamp", 1700000000000L).put("price", 2.5);
+        assertEquals(2, addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, "binary", props));
+        dbInstance.setEventCodec(EventCodec.CODEC_DEFLATE_V1);
+        assertEquals(3, addEvent("deflated"));
+
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(3, events.size());
+        assertEquals("text", events.get(0).getString("event_type"));
+        assertEquals("binary", events.get(1).getString("event_type"));
+        assertEquals(2, events.get(1).getLong("event_id"));
+        assertEquals(1700000000000L, events.get(1).getLong("timestamp"));
+        assertEquals(2.5, events.get(1).getDouble("price"), 0);
+        assertEquals("deflated", events.get(2).getString("event_type"));
+        dbInstance.setEventCodec(EventCodec.CODEC_NONE);
+    }
+
+    @Test
+    public void testUnifiedQueue() throws JSONException {
+        dbInstance.setUnifiedQueue(true);
+        assertEquals(1, addEvent("event-1"));
+        assertEquals(2, addIdentify("identify-2"));
+        assertEquals(3, addEvent("event-3"));
+        assertEquals(4, addIdentify("identify-4"));
+        assertEquals(5, addEvent("event-5"));
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(2, dbInstance.getIdentifyCount());
+        assertEquals(2, dbInstance.getIdentifys(-1, -1).size());
+        assertEquals(3, dbInstance.getNthEventId(2));
+
+        UploadBatch batch = dbInstance.getUploadBatch(-1, -1, 4);
+        JSONArray merged = new JSONArray(batch.getEvents());
+        assertEquals(4, merged.length());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i + 1, merged.getJSONObject(i).getLong("event_id"));
+        }
+        assertEquals(3, batch.getMaxEventId());
+        assertEquals(4, batch.getMaxIdentifyId());
+
+        // bounds apply to each type separately
+        merged = new JSONArray(dbInstance.getUploadBatch(3, 2, -1).getEvents());
+        assertEquals(3, merged.length());
+        assertEquals("event-3", merged.getJSONObject(2).getString("event_type"));
+
+        dbInstance.removeEvents(3);
+        dbInstance.removeIdentify(2);
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(1, dbInstance.getIdentifyCount());
+        merged = new JSONArray(dbInstance.getUploadBatch(-1, -1, -1).getEvents());
+        assertEquals("identify-4", merged.getJSONObject(0).getString("event_type"));
+        assertEquals("event-5", merged.getJSONObject(1).getString("event_type"));
+        dbInstance.setUnifiedQueue(false);
+    }
+
+    @Test
+    public void testUploadBatchMergesTablesBySequenceNumber() throws JSONException {
+        addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, "event-1", new JSONObject().put("sequence_number", 1));
+        addEventToTable(DatabaseHelper.IDENTIFY_TABLE_NAME, "identify-2", new JSONObject().put("sequence_number", 2));
+        addEventToTable(DatabaseHelper.IDENTIFY_TABLE_NAME, "identify-3", new JSONObject().put("sequence_number", 3));
+        addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, "event-4", new JSONObject().put("sequence_number", 4));
+        addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, "event-5", new JSONObject().put("sequence_number", 5));
+
+        UploadBatch batch = dbInstance.getUploadBatch(-1, -1, 4);
+        assertEquals(4, batch.getCount());
+        assertEquals(2, batch.getMaxEventId());
+        assertEquals(2, batch.getMaxIdentifyId());
+        JSONArray merged = new JSONArray(batch.getEvents());
+        assertEquals(4, merged.length());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i + 1, merged.getJSONObject(i).getLong("sequence_number"));
+        }
+        assertEquals(1, merged.getJSONObject(1).getLong("event_id"));
+        assertEquals(2, merged.getJSONObject(3).getLong("event_id"));
+
+        assertEquals(3, new JSONArray(dbInstance.getUploadBatch(2, 1, -1).getEvents()).length());
+
+        // the batch after the first one, read before its rows are removed
+        batch = dbInstance.getUploadBatch(2, 2, -1, -1, 4);
+        assertEquals(1, batch.getCount());
+        assertEquals(3, batch.getMaxEventId());
+        assertEquals(-1, batch.getMaxIdentifyId());
+        assertEquals(5, new JSONArray(batch.getEvents()).getJSONObject(0).getLong("sequence_number"));
+    }
+
+    @Test
+    public void testUploadBatchAfterIds() throws JSONException {
+        dbInstance.setUnifiedQueue(true);
+        assertEquals(1, addEvent("event-1"));
+        assertEquals(2, addIdentify("identify-2"));
+        assertEquals(3, addEvent("event-3"));
+        assertEquals(4, addIdentify("identify-4"));
+        assertEquals(5, addEvent("event-5"));
+
+        UploadBatch batch = dbInstance.getUploadBatch(1, 2, -1, -1, 2);
+        JSONArray merged = new JSONArray(batch.getEvents());
+        assertEquals(2, merged.length());
+        assertEquals(3, merged.getJSONObject(0).getLong("event_id"));
+        assertEquals(4, merged.getJSONObject(1).getLong("event_id"));
+
+        // lower and upper bounds together, either one per type
+        merged = new JSONArray(dbInstance.getUploadBatch(1, -1, 3, 2, -1).getEvents());
+        assertEquals(2, merged.length());
+        assertEquals("identify-2", merged.getJSONObject(0).getString("event_type"));
+        assertEquals("event-3", merged.getJSONObject(1).getString("event_type"));
+        assertEquals(0, dbInstance.getUploadBatch(5, 4, -1, -1, -1).getCount());
+        dbInstance.setUnifiedQueue(false);
+    }
+
+    @Test
+    public void testGetEventsFallsBackToChunkedReads() throws JSONException {
+        final int[] queries = new int[] { 0 };
+        DatabaseHelper dbHelper = new DatabaseHelper(context, "app1") {
+            @Override
+            Cursor queryDb(
+                SQLiteDatabase db, String table, String[] columns, String selection,
+                String[] selectionArgs, String groupBy, String having, String orderBy, String limit
+            ) {
+                queries[0]++;
+                if (columns.length == 2 && (selection == null || !selection.contains("BETWEEN"))) {
+                    throw new IllegalStateException("Couldn't read row 0, col 1 from CursorWindow.");
+                }
+                return super.queryDb(db, table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+            }
+        };
+
+        // multi-byte characters, so chunk boundaries fall inside a character
+        StringBuilder data = new StringBuilder();
+        for (int i = 0; i < 350 * 1024; i++) {
+            data.append('\u00e9');
+        }
+        dbHelper.addEvent(new JSONObject().put("event_type", "small-1").toString());
+        dbHelper.addEvent(new JSONObject().put("data", data.toString()).toString());
+        dbHelper.addEvent(new JSONObject().put("event_type", "small-2").toString());
+        dbHelper.addEvent(new JSONObject().put("event_type", "small-3").toString());
+
+        queries[0] = 0;
+        List<JSONObject> events = dbHelper.getEvents(-1, -1);
+        assertEquals(4, events.size());
+        assertEquals("small-1", events.get(0).getString("event_type"));
+        assertEquals(data.toString(), events.get(1).getString("data"));
+        assertEquals(2, events.get(1).getLong("event_id"));
+        assertEquals("small-3", events.get(3).getString("event_type"));
+        // failed batch, row sizes, one query per group of small rows and per chunk of the large one
+        assertEquals(6, queries[0]);
+        assertEquals(4, dbHelper.getEventCount());
+    }
+
+    @Test
+    public void testMigrateQueueLayout() throws JSONException {
+        assertFalse(dbInstance.migrateQueueLayout());
+        addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, "event-1", new JSONObject().put("sequence_number", 1));
+        addEventToTable(DatabaseHelper.EVENT_TABLE_NAME, "event-3", new JSONObject().put("sequence_number", 3));
+        addEventToTable(DatabaseHelper.IDENTIFY_TABLE_NAME, "identify-2", new JSONObject().put("sequence_number", 2));
+        addEventToTable(DatabaseHelper.IDENTIFY_TABLE_NAME, "identify-4", new JSONObject().put("sequence_number", 4));
+
+        // rows are merged by sequence number into the queue table
+        dbInstance.setUnifiedQueue(true);
+        assertTrue(dbInstance.migrateQueueLayout());
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(2, dbInstance.getIdentifyCount());
+        JSONArray merged = new JSONArray(dbInstance.getUploadBatch(-1, -1, -1).getEvents());
+        assertEquals(4, merged.length());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i + 1, merged.getJSONObject(i).getLong("sequence_number"));
+        }
+        assertFalse(dbInstance.migrateQueueLayout());
+
+        // and moved back into separate tables in order
+        dbInstance.setUnifiedQueue(false);
+        assertTrue(dbInstance.migrateQueueLayout());
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(2, events.size());
+        assertEquals("event-1", events.get(0).getString("event_type"));
+        assertEquals("event-3", events.get(1).getString("event_type"));
+        assertEquals("identify-4", dbInstance.getIdentifys(-1, -1).get(1).getString("event_type"));
+        dbInstance.setUnifiedQueue(true);
+        assertEquals(0, dbInstance.getTotalEventCount());
+        dbInstance.setUnifiedQueue(false);
+    }
+
+    @Test
+    public void testTrimEventsToCountWithEvictionPolicy() throws JSONException {
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, addEvent("test_trim_events_" + i));
+        }
+        dbInstance.setEvictionPolicy(new EvictionPolicy() {
+            @Override
+            public String getEvictionOrder(String table) {
+                return "id DESC";
+            }
+        });
+
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(3, dbInstance.trimEventsToCount(db, DatabaseHelper.EVENT_TABLE_NAME, 2));
+        assertEquals(0, dbInstance.trimEventsToCount(db, DatabaseHelper.EVENT_TABLE_NAME, 2));
+        dbInstance.close();
+
+        assertEquals(2, dbInstance.getEventCount());
+        List<JSONObject> events = dbInstance.getEvents(-1, -1);
+        assertEquals(1, events.get(0).getLong("event_id"));
+        assertEquals(2, events.get(1).getLong("event_id"));
+        dbInstance.setEvictionPolicy(null);
+    }
+
     @Test
     public void testGetNthEventId() {
         assertEquals(1, addEvent("test_get_nth_event_id_1"));
@@ -696,6 +1132,87 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(dbHelper3.getIdentifyCount(), 1);
     }
 
+    @Test
+    public void testSharedInstances() {
+        DatabaseHelper dbHelper1 = DatabaseHelper.getSharedDatabaseHelper(context, "a");
+        DatabaseHelper dbHelper2 = DatabaseHelper.getSharedDatabaseHelper(context, "o'b");
+        assertSame(dbHelper1, DatabaseHelper.getSharedDatabaseHelper(context, "A"));
+        assertTrue(dbHelper1.isSharedStorage());
+        assertTrue(dbHelper1.isUnifiedQueue());
+        assertSame(dbHelper1.getWritableDatabase(), dbHelper2.getWritableDatabase());
+
+        dbHelper1.insertOrReplaceKeyValue("device_id", "testDeviceId");
+        dbHelper2.insertOrReplaceKeyLongValue("sequence_number", 5L);
+        assertEquals("testDeviceId", dbHelper1.getValue("device_id"));
+        assertNull(dbHelper2.getValue("device_id"));
+        assertNull(dbHelper1.getLongValue("sequence_number"));
+        assertEquals(5L, (long) dbHelper2.getLongValue("sequence_number"));
+
+        // ids come from one sequence, but each instance only sees its own rows
+        assertEquals(1, dbHelper1.addEvent("{\"event_type\":\"a1\"}"));
+        assertEquals(2, dbHelper2.addEvent("{\"event_type\":\"b1\"}"));
+        assertEquals(3, dbHelper1.addIdentify("{\"event_type\":\"$identify\"}"));
+        assertEquals(1, dbHelper1.getEventCount());
+        assertEquals(1, dbHelper1.getIdentifyCount());
+        assertEquals(1, dbHelper2.getEventCount());
+        assertEquals(0, dbHelper2.getIdentifyCount());
+        assertEquals(2, dbHelper1.getUploadBatch(-1, -1, -1).getCount());
+        assertEquals(1, dbHelper2.getUploadBatch(-1, -1, -1).getCount());
+
+        dbHelper1.removeEvents(3);
+        assertEquals(0, dbHelper1.getEventCount());
+        assertEquals(1, dbHelper2.getEventCount());
+        assertEquals(1, dbHelper2.getNthEventId(1));
+
+        // one instance closing does not close the connection of the others
+        dbHelper1.close();
+        assertTrue(dbHelper2.getWritableDatabase().isOpen());
+        assertEquals(1, dbHelper2.getEventCount());
+        assertFalse(DatabaseHelper.databaseExists(context, "a"));
+        assertTrue(DatabaseHelper.databaseExists(context, DatabaseHelper.SHARED_INSTANCE));
+    }
+
+    @Test
+    public void testSharedResetCallsListenersOnce() {
+        final DatabaseHelper dbHelper1 = DatabaseHelper.getSharedDatabaseHelper(context, "a");
+        DatabaseHelper dbHelper2 = DatabaseHelper.getSharedDatabaseHelper(context, "b");
+        final int[] resets = new int[2];
+        dbHelper1.setDatabaseResetListener(new DatabaseResetListener() {
+            @Override
+            public void onDatabaseReset(SQLiteDatabase db) {
+                resets[0]++;
+            }
+        });
+        dbHelper2.setDatabaseResetListener(new DatabaseResetListener() {
+            @Override
+            public void onDatabaseReset(SQLiteDatabase db) {
+                resets[1]++;
+            }
+        });
+        dbHelper1.addEvent("{\"event_type\":\"a1\"}");
+        dbHelper2.addEvent("{\"event_type\":\"b1\"}");
+        resets[0] = 0;
+        resets[1] = 0;
+
+        assertFalse(dbHelper1.runInTransaction(new DatabaseHelper.Transaction() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                throw new SQLiteException("test");
+            }
+        }));
+        assertEquals(0, dbHelper1.getEventCount());
+        assertEquals(0, dbHelper2.getEventCount());
+        assertEquals(1, resets[0]);
+        assertEquals(1, resets[1]);
+
+        // the next access does not report the same reset again
+        dbHelper1.addEvent("{\"event_type\":\"a2\"}");
+        assertEquals(1, dbHelper1.getEventCount());
+        assertEquals(0, dbHelper2.getEventCount());
+        assertEquals(1, resets[0]);
+        assertEquals(1, resets[1]);
+    }
+
     @Test
     public void testGetLastIdentifyInterceptorId() {
         assertEquals(1, addIdentifyInterceptor("test_get_last_identify_id_1"));
@@ -708,4 +1225,129 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(3, addIdentifyInterceptor("test_get_last_identify_id_3"));
         assertEquals(3, dbInstance.getLastIdentifyInterceptorId());
     }
+
+    @Test
+    public void testConnectionClosedAfterOperation() {
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(1, addEvent("test_close_connection"));
+        assertFalse(db.isOpen());
+    }
+
+    @Test
+    public void testPersistentConnection() {
+        dbInstance.setPersistentConnection(true);
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(1, addEvent("test_persistent_connection_1"));
+        assertEquals(1, dbInstance.getEventCount());
+        assertTrue(db.isOpen());
+        assertSame(db, dbInstance.getWritableDatabase());
+
+        // closing on memory trim reopens on next access
+        dbInstance.close();
+        assertFalse(db.isOpen());
+        assertEquals(2, addEvent("test_persistent_connection_2"));
+        assertEquals(2, dbInstance.getEventCount());
+        dbInstance.setPersistentConnection(false);
+    }
+
+    @Test
+    @Config(sdk = Build.VERSION_CODES.P)
+    public void testWriteAheadLoggingFollowsConnectionMode() {
+        // the default mode leaves the journal mode of a new file alone
+        assertFalse(dbInstance.getWritableDatabase().isWriteAheadLoggingEnabled());
+        dbInstance.close();
+
+        dbInstance.setPersistentConnection(true);
+        assertTrue(dbInstance.getWritableDatabase().isWriteAheadLoggingEnabled());
+
+        // turning the persistent connection off takes the file out of WAL mode on reopen
+        dbInstance.setPersistentConnection(false);
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertFalse(db.isWriteAheadLoggingEnabled());
+        dbInstance.close();
+    }
+
+    @Test
+    public void testIncrementalVacuum() {
+        dbInstance.setIncrementalVacuum(true);
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(2, db.compileStatement("PRAGMA auto_vacuum").simpleQueryForLong());
+        dbInstance.close();
+
+        String payload = new String(new char[2000]).replace('\0', 'a');
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(i, addEvent(payload));
+        }
+        dbInstance.removeEvents(100);
+
+        // free pages are returned a bounded number at a time
+        long freePages = dbInstance.incrementalVacuum(8);
+        assertTrue(freePages > 0);
+        for (int i = 0; i < 100 && freePages > 0; i++) {
+            long remaining = dbInstance.incrementalVacuum(8);
+            assertTrue(remaining < freePages);
+            freePages = remaining;
+        }
+        assertEquals(0, freePages);
+        assertEquals(0, dbInstance.incrementalVacuum(8));
+    }
+
+    @Test
+    public void testNoAutoVacuumUnlessEnabled() {
+        // files of clients that did not opt in keep the default layout
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(0, db.compileStatement("PRAGMA auto_vacuum").simpleQueryForLong());
+        dbInstance.close();
+    }
+
+    @Test
+    public void testIncrementalVacuumConvertsExistingFile() {
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("PRAGMA auto_vacuum = NONE");
+        db.execSQL("VACUUM");
+        assertEquals(0, db.compileStatement("PRAGMA auto_vacuum").simpleQueryForLong());
+        dbInstance.close();
+
+        String payload = new String(new char[2000]).replace('\0', 'a');
+        for (int i = 1; i <= 20; i++) {
+            assertEquals(i, addEvent(payload));
+        }
+        dbInstance.removeEvents(20);
+
+        assertEquals(0, dbInstance.incrementalVacuum(8));
+        db = dbInstance.getWritableDatabase();
+        assertEquals(2, db.compileStatement("PRAGMA auto_vacuum").simpleQueryForLong());
+        dbInstance.close();
+    }
+
+    @Test
+    public void testCachedStatementsRebindParameters() {
+        dbInstance.setPersistentConnection(true);
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, addEvent("test_cached_statement_" + i));
+        }
+        assertEquals(1, dbInstance.getNthEventId(1));
+        assertEquals(3, dbInstance.getNthEventId(3));
+
+        dbInstance.removeEvent(2);
+        dbInstance.removeEvent(4);
+        assertEquals(3, dbInstance.getEventCount());
+        assertEquals(5, dbInstance.getNthEventId(3));
+
+        dbInstance.removeEvents(3);
+        assertEquals(1, dbInstance.getEventCount());
+        assertEquals(5, dbInstance.getNthEventId(1));
+
+        insertOrReplaceKeyValue("key1", "value1");
+        insertOrReplaceKeyValue("key2", "value2");
+        insertOrReplaceKeyValue("key1", null);
+        assertNull(dbInstance.getValue("key1"));
+        assertEquals("value2", dbInstance.getValue("key2"));
+
+        // statements are compiled again on the new connection
+        dbInstance.close();
+        assertEquals(6, addEvent("test_cached_statement_6"));
+        assertEquals(2, dbInstance.getEventCount());
+        dbInstance.setPersistentConnection(false);
+    }
 }
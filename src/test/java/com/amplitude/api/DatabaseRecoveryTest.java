@@ -25,6 +25,7 @@ import java.io.RandomAccessFile;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -118,6 +119,33 @@ public class DatabaseRecoveryTest extends BaseTest {
         assertNull(newLastIdentifyId);
     }
 
+    @Test
+    public void testSalvageOnDatabaseReset() throws JSONException {
+        amplitude.setUseDatabaseSalvage(true);
+        amplitude.logEvent("test");
+        looper.runToEndOfTasks();
+        assertEquals(dbInstance.getEventCount(), 1);
+        String deviceId = dbInstance.getValue(AmplitudeClient.DEVICE_ID_KEY);
+
+        DatabaseHelper mockDbHelper = PowerMockito.spy(dbInstance);
+        PowerMockito.doThrow(new SQLiteException("test")).when(mockDbHelper).insertEventContentValuesIntoTable(Matchers.any(SQLiteDatabase.class), anyString(), Matchers.any(ContentValues.class));
+        amplitude.dbHelper = mockDbHelper;
+
+        // the failed insert resets the database, the event logged before is salvaged
+        amplitude.logEvent("test2");
+        looper.runToEndOfTasks();
+
+        assertEquals(mockDbHelper.getEventCount(), 1);
+        List<JSONObject> events = mockDbHelper.getEvents(-1, -1);
+        assertEquals(events.size(), 1);
+        assertEquals(events.get(0).getString("event_type"), "test");
+        assertEquals(events.get(0).getLong("event_id"), 1);
+        assertEquals(mockDbHelper.getValue(AmplitudeClient.DEVICE_ID_KEY), deviceId);
+        assertTrue(mockDbHelper.getSalvagedRowCount() > 1);
+        assertEquals(mockDbHelper.getLostRowCount(), 0);
+        assertFalse(new File(mockDbHelper.file.getPath() + "-salvage").exists());
+    }
+
     @Test
     public void testDatabaseResetAvoidStackOverflow() {
 
@@ -0,0 +1,68 @@
+package com.amplitude.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+@RunWith(AndroidJUnit4.class)
+@Config(manifest=Config.NONE)
+public class EventPropertiesTest {
+
+    @Test
+    public void testBuild() throws JSONException {
+        EventProperties nested = new EventProperties.Builder().put("depth", 1L).build();
+        long[] counts = new long[] {1, 2};
+        EventProperties.Builder builder = new EventProperties.Builder()
+                .put("color", "green")
+                .put("price", 1.5)
+                .put("count", 3)
+                .put("flag", true)
+                .put("nested", nested)
+                .put("counts", counts)
+                .put("names", new String[] {"a", "b"})
+                .put("", "ignored")
+                .put("nan", Double.NaN);
+        EventProperties properties = builder.build();
+        counts[0] = 100;
+
+        JSONObject json = properties.toJSONObject();
+        assertEquals(7, properties.size());
+        assertEquals("green", json.getString("color"));
+        assertEquals(1.5, json.getDouble("price"), 0);
+        assertEquals(3, json.getLong("count"));
+        assertEquals(true, json.getBoolean("flag"));
+        assertEquals(1, json.getJSONObject("nested").getLong("depth"));
+        assertEquals(1, json.getJSONArray("counts").getLong(0));
+        assertEquals("b", json.getJSONArray("names").getString(1));
+        assertFalse(json.has("nan"));
+
+        // changes to the builder or to a copy do not reach the built properties
+        builder.put("color", "red").remove("count");
+        json.put("color", "blue");
+        json.getJSONObject("nested").put("depth", 2);
+        assertEquals("green", properties.toJSONObject().getString("color"));
+        assertEquals(3, properties.toJSONObject().getLong("count"));
+        assertEquals(1, nested.toJSONObject().getLong("depth"));
+        assertEquals("red", builder.build().toJSONObject().getString("color"));
+        assertEquals(6, builder.build().size());
+    }
+
+    @Test
+    public void testToMutable() throws JSONException {
+        JSONObject properties = new JSONObject().put("key", "value");
+        assertSame(properties, EventProperties.toMutable(properties));
+
+        EventProperties frozen = new EventProperties.Builder().put("key", "value").build();
+        JSONObject copy = EventProperties.toMutable(frozen.getProperties());
+        copy.put("key", "changed");
+        assertEquals("value", frozen.toJSONObject().getString("key"));
+    }
+}
@@ -0,0 +1,114 @@
+package com.amplitude.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@Config(manifest=Config.NONE)
+public class EventWriterTest {
+
+    private Event createEvent(String userId, JSONObject eventProperties) throws JSONException {
+        EventEnvelope envelope = new EventEnvelope(new JSONObject()
+                .put("platform", "Android")
+                .put("library", new JSONObject().put("name", "amplitude-android").put("version", "1.0")));
+        return new Event("test", 1000, userId, "device/1", 5, "uuid", 7, envelope,
+                new JSONObject().put("limit_ad_tracking", false), eventProperties,
+                new JSONObject(), new JSONObject(), new JSONObject());
+    }
+
+    @Test
+    public void testWritesSameJsonAsJSONObject() throws JSONException {
+        JSONObject eventProperties = new JSONObject()
+                .put("quote \"and\" backslash \\", "tab\tnewline\nbell\u0007")
+                .put("price", 1.5)
+                .put("count", 3)
+                .put("whole", 2.0)
+                .put("big", Long.MAX_VALUE)
+                .put("flag", true)
+                .put("none", JSONObject.NULL)
+                .put("unicode", "café 😀")
+                .put("list", new JSONArray().put(1).put("two").put(new JSONObject().put("three", 3)).put(JSONObject.NULL))
+                .put("nested", new JSONObject().put("empty", new JSONArray()).put("object", new JSONObject()));
+        Event event = createEvent(null, eventProperties);
+
+        EventWriter writer = new EventWriter();
+        String json = writer.write(event);
+        assertEquals(event.toJSONObject().toString(), json);
+
+        JSONObject parsed = new JSONObject(json);
+        assertTrue(parsed.isNull("user_id"));
+        assertEquals("device/1", parsed.getString("device_id"));
+        assertEquals(7, parsed.getLong("sequence_number"));
+        assertEquals("amplitude-android", parsed.getJSONObject("library").getString("name"));
+        assertEquals("tab\tnewline\nbell\u0007",
+                parsed.getJSONObject("event_properties").getString("quote \"and\" backslash \\"));
+
+        // the buffer is reused for the next event
+        Event next = createEvent("user", new JSONObject().put("key", "value"));
+        assertEquals(next.toJSONObject().toString(), writer.write(next));
+    }
+
+    @Test
+    public void testTruncatesWithoutChangingProperties() throws JSONException {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < Constants.MAX_STRING_LENGTH * 2; i++) {
+            builder.append('a');
+        }
+        String longString = builder.toString();
+        JSONObject tooManyKeys = new JSONObject();
+        for (int i = 0; i < Constants.MAX_PROPERTY_KEYS + 1; i++) {
+            tooManyKeys.put("key" + i, i);
+        }
+        JSONObject nested = new JSONObject().put("long", longString);
+        JSONObject eventProperties = new JSONObject()
+                .put("long", longString)
+                .put("nested", nested)
+                .put("list", new JSONArray().put(longString).put(new JSONArray().put(longString)))
+                .put("too_many", tooManyKeys)
+                .put(Constants.AMP_REVENUE_RECEIPT, longString)
+                .put(Constants.AMP_REVENUE_RECEIPT_SIG, longString);
+        Event event = createEvent("user", eventProperties);
+
+        String json = new EventWriter().write(event);
+        JSONObject written = new JSONObject(json).getJSONObject("event_properties");
+        String truncated = longString.substring(0, Constants.MAX_STRING_LENGTH);
+        assertEquals(truncated, written.getString("long"));
+        assertEquals(truncated, written.getJSONObject("nested").getString("long"));
+        assertEquals(truncated, written.getJSONArray("list").getString(0));
+        assertEquals(truncated, written.getJSONArray("list").getJSONArray(1).getString(0));
+        assertEquals(0, written.getJSONObject("too_many").length());
+        assertEquals(longString, written.getString(Constants.AMP_REVENUE_RECEIPT));
+        assertEquals(longString, written.getString(Constants.AMP_REVENUE_RECEIPT_SIG));
+
+        // the caller's properties are not changed
+        assertEquals(longString, eventProperties.getString("long"));
+        assertEquals(longString, nested.getString("long"));
+        assertEquals(Constants.MAX_PROPERTY_KEYS + 1, eventProperties.getJSONObject("too_many").length());
+
+        // same result as truncating the properties before serializing them
+        assertEquals(event.toJSONObject().toString(), json);
+    }
+
+    @Test
+    public void testLargeEvent() throws JSONException {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            value.append('a');
+        }
+        EventWriter writer = new EventWriter();
+        Event large = createEvent("user", new JSONObject().put("large", value.toString()));
+        assertEquals(large.toJSONObject().toString(), writer.write(large));
+
+        Event small = createEvent("user", new JSONObject());
+        assertEquals(small.toJSONObject().toString(), writer.write(small));
+    }
+}
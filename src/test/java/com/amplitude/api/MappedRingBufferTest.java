@@ -0,0 +1,181 @@
+package com.amplitude.api;
+
+import android.util.Pair;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@Config(manifest = Config.NONE)
+public class MappedRingBufferTest extends BaseTest {
+
+    // record header is 16 bytes, so each "record-N" record takes 24 bytes
+    private static final int RECORD_SIZE = 24;
+    private static final int CAPACITY = RECORD_SIZE * 4 + 10;
+
+    private File file;
+    private MappedRingBuffer ringBuffer;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+        file = new File(context.getFilesDir(), "ring_buffer_test");
+        ringBuffer = new MappedRingBuffer(file, CAPACITY);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ringBuffer.delete();
+        ringBuffer = null;
+        super.tearDown();
+    }
+
+    private MappedRingBuffer reopen() {
+        ringBuffer.close();
+        return new MappedRingBuffer(file, CAPACITY);
+    }
+
+    @Test
+    public void testAppendReadRemove() throws Exception {
+        assertEquals(1, ringBuffer.append("record-1"));
+        assertEquals(2, ringBuffer.append("record-2"));
+        assertEquals(3, ringBuffer.append("record-3"));
+        assertEquals(3, ringBuffer.getCount());
+        assertEquals(24, ringBuffer.getPayloadSize());
+
+        List<Pair<Long, String>> records = ringBuffer.read(-1, -1);
+        assertEquals(3, records.size());
+        assertEquals(Long.valueOf(1), records.get(0).first);
+        assertEquals("record-1", records.get(0).second);
+        assertEquals(2, ringBuffer.read(2, -1).size());
+        assertEquals(1, ringBuffer.read(-1, 1).size());
+
+        ringBuffer.removeUpTo(2);
+        records = ringBuffer.read(-1, -1);
+        assertEquals(1, records.size());
+        assertEquals("record-3", records.get(0).second);
+        assertEquals(4, ringBuffer.append("record-4"));
+    }
+
+    @Test
+    public void testWrapAroundAndReopen() throws Exception {
+        for (int i = 1; i <= 3; i++) {
+            ringBuffer.append("record-" + i);
+        }
+        ringBuffer.removeUpTo(2);
+        // these records wrap around the end of the buffer
+        ringBuffer.append("record-4");
+        ringBuffer.append("record-5");
+        assertEquals(3, ringBuffer.getCount());
+
+        ringBuffer = reopen();
+        assertEquals(3, ringBuffer.getCount());
+        List<Pair<Long, String>> records = ringBuffer.read(-1, -1);
+        assertEquals("record-3", records.get(0).second);
+        assertEquals("record-4", records.get(1).second);
+        assertEquals("record-5", records.get(2).second);
+        assertEquals(Long.valueOf(5), records.get(2).first);
+        assertEquals(6, ringBuffer.append("record-6"));
+    }
+
+    @Test
+    public void testOverwritesOldestRecordsWhenFull() throws Exception {
+        for (int i = 1; i <= 4; i++) {
+            ringBuffer.append("record-" + i);
+        }
+        assertEquals(4, ringBuffer.getCount());
+
+        assertEquals(5, ringBuffer.append("record-5"));
+        assertEquals(4, ringBuffer.getCount());
+        assertEquals("record-2", ringBuffer.read(-1, 1).get(0).second);
+
+        ringBuffer = reopen();
+        assertEquals(4, ringBuffer.getCount());
+        assertEquals("record-2", ringBuffer.read(-1, 1).get(0).second);
+
+        // records larger than the buffer are rejected
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < CAPACITY; i++) {
+            builder.append('a');
+        }
+        assertEquals(-1, ringBuffer.append(builder.toString()));
+        assertEquals(4, ringBuffer.getCount());
+    }
+
+    @Test
+    public void testRemoveSingleRecord() throws Exception {
+        ringBuffer.append("record-1");
+        ringBuffer.append("record-2");
+        ringBuffer.append("record-3");
+
+        ringBuffer.remove(2);
+        assertEquals(2, ringBuffer.getCount());
+        assertEquals(3, ringBuffer.getNthId(2));
+
+        ringBuffer = reopen();
+        assertEquals(2, ringBuffer.getCount());
+        ringBuffer.remove(1);
+        List<Pair<Long, String>> records = ringBuffer.read(-1, -1);
+        assertEquals(1, records.size());
+        assertEquals(Long.valueOf(3), records.get(0).first);
+        assertEquals(8, ringBuffer.getPayloadSize());
+    }
+
+    @Test
+    public void testRecoverFromTornRecord() throws Exception {
+        ringBuffer.append("record-1");
+        ringBuffer.append("record-2");
+        ringBuffer.close();
+
+        // corrupt the payload of the last record, as if the process was killed while writing it
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(file.length() - CAPACITY + RECORD_SIZE * 2 - 1);
+        randomAccessFile.write('x');
+        randomAccessFile.close();
+
+        ringBuffer = new MappedRingBuffer(file, CAPACITY);
+        assertEquals(1, ringBuffer.getCount());
+        assertEquals(2, ringBuffer.append("record-2"));
+        assertEquals("record-2", ringBuffer.read(-1, -1).get(1).second);
+    }
+
+    @Test
+    public void testRecoverFromStaleHeadOffset() throws Exception {
+        ringBuffer.append("record-1");
+        ringBuffer.append("record-2");
+        ringBuffer.removeUpTo(1);
+        ringBuffer.close();
+
+        // roll back the head offset, as if the process was killed before writing it
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(20);
+        randomAccessFile.writeInt(0);
+        randomAccessFile.close();
+
+        ringBuffer = new MappedRingBuffer(file, CAPACITY);
+        assertEquals(1, ringBuffer.getCount());
+        assertEquals("record-2", ringBuffer.read(-1, -1).get(0).second);
+    }
+
+    @Test
+    public void testResetKeepsIdsIncreasing() throws Exception {
+        ringBuffer.append("record-1");
+        ringBuffer.append("record-2");
+        ringBuffer.reset();
+        assertEquals(0, ringBuffer.getCount());
+        assertEquals(3, ringBuffer.append("record-3"));
+        assertTrue(file.exists());
+    }
+}
@@ -0,0 +1,205 @@
+package com.amplitude.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@Config(manifest = Config.NONE)
+public class SegmentedLogEventStoreTest extends BaseTest {
+
+    private File directory;
+    private SegmentedLogEventStore eventStore;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp(false);
+        directory = new File(context.getFilesDir(), "segmented_log_test");
+        eventStore = new SegmentedLogEventStore(directory, DatabaseHelper.getDatabaseHelper(context));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        eventStore.delete();
+        eventStore = null;
+        super.tearDown();
+    }
+
+    private long addEvent(String type) throws Exception {
+        return eventStore.addEvent(new JSONObject().put("event_type", type).toString());
+    }
+
+    private long addIdentify(String type) throws Exception {
+        return eventStore.addIdentify(new JSONObject().put("event_type", type).toString());
+    }
+
+    private SegmentedLogEventStore reopen() {
+        eventStore.close();
+        return new SegmentedLogEventStore(directory, DatabaseHelper.getDatabaseHelper(context));
+    }
+
+    @Test
+    public void testAddGetRemoveEvents() throws Exception {
+        assertEquals(1, addEvent("e1"));
+        assertEquals(2, addEvent("e2"));
+        assertEquals(3, addEvent("e3"));
+        assertEquals(1, addIdentify("i1"));
+        assertEquals(3, eventStore.getEventCount());
+        assertEquals(1, eventStore.getIdentifyCount());
+        assertEquals(4, eventStore.getTotalEventCount());
+
+        List<JSONObject> events = eventStore.getEvents(-1, -1);
+        assertEquals(3, events.size());
+        assertEquals("e1", events.get(0).getString("event_type"));
+        assertEquals(1, events.get(0).getLong("event_id"));
+        assertEquals(3, events.get(2).getLong("event_id"));
+        assertEquals(2, eventStore.getEvents(2, -1).size());
+        assertEquals(1, eventStore.getEvents(-1, 1).size());
+
+        eventStore.removeEvents(2);
+        events = eventStore.getEvents(-1, -1);
+        assertEquals(1, events.size());
+        assertEquals("e3", events.get(0).getString("event_type"));
+        assertEquals(1, eventStore.getIdentifys(-1, -1).size());
+
+        // ids keep increasing after removal
+        assertEquals(4, addEvent("e4"));
+    }
+
+    @Test
+    public void testRemoveSingleEvent() throws Exception {
+        addEvent("e1");
+        addEvent("e2");
+        addEvent("e3");
+
+        eventStore.removeEvent(2);
+        assertEquals(2, eventStore.getEventCount());
+        List<JSONObject> events = eventStore.getEvents(-1, -1);
+        assertEquals(1, events.get(0).getLong("event_id"));
+        assertEquals(3, events.get(1).getLong("event_id"));
+
+        // the removal survives a reopen
+        eventStore = reopen();
+        assertEquals(2, eventStore.getEventCount());
+        eventStore.removeEvent(1);
+        events = eventStore.getEvents(-1, -1);
+        assertEquals(1, events.size());
+        assertEquals(3, events.get(0).getLong("event_id"));
+    }
+
+    @Test
+    public void testReopenKeepsEvents() throws Exception {
+        addEvent("e1");
+        addEvent("e2");
+        addEvent("e3");
+        eventStore.removeEvents(1);
+
+        eventStore = reopen();
+        assertEquals(2, eventStore.getEventCount());
+        List<JSONObject> events = eventStore.getEvents(-1, -1);
+        assertEquals("e2", events.get(0).getString("event_type"));
+        assertEquals(2, events.get(0).getLong("event_id"));
+        assertEquals(4, addEvent("e4"));
+    }
+
+    @Test
+    public void testRecoverFromTornRecord() throws Exception {
+        addEvent("e1");
+        addEvent("e2");
+        eventStore.close();
+
+        // simulate a process killed in the middle of an append
+        File[] segments = new File(directory, DatabaseHelper.EVENT_TABLE_NAME).listFiles();
+        File segment = null;
+        for (File file : segments) {
+            if (file.getName().endsWith(".log")) {
+                segment = file;
+            }
+        }
+        FileOutputStream output = new FileOutputStream(segment, true);
+        output.write(new byte[] { 0, 0, 0, 42, 0, 0, 0 });
+        output.close();
+
+        eventStore = reopen();
+        assertEquals(2, eventStore.getEventCount());
+        assertEquals(3, addEvent("e3"));
+        List<JSONObject> events = eventStore.getEvents(-1, -1);
+        assertEquals(3, events.size());
+        assertEquals("e3", events.get(2).getString("event_type"));
+    }
+
+    @Test
+    public void testRemovingEventsDeletesSegments() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            builder.append('a');
+        }
+        String type = builder.toString();
+        int numEvents = 3 * SegmentedLog.SEGMENT_MAX_SIZE / 1024;
+        for (int i = 0; i < numEvents; i++) {
+            addEvent(type);
+        }
+        File eventDirectory = new File(directory, DatabaseHelper.EVENT_TABLE_NAME);
+        int numSegments = eventDirectory.list().length;
+        assertTrue(numSegments > 3);
+
+        eventStore.removeEvents(numEvents / 2);
+        assertTrue(eventDirectory.list().length < numSegments);
+        assertEquals(numEvents - numEvents / 2, eventStore.getEventCount());
+        assertEquals(numEvents / 2 + 1, eventStore.getEvents(-1, 1).get(0).getLong("event_id"));
+
+        eventStore.removeEvents(numEvents);
+        assertEquals(0, eventStore.getEventCount());
+        assertTrue(eventDirectory.list().length <= 2);
+    }
+
+    @Test
+    public void testEventMaxCountEvictsOldestEvents() throws Exception {
+        eventStore.setEventMaxCount(10);
+        for (int i = 1; i <= 10; i++) {
+            addEvent("e" + i);
+        }
+        assertEquals(10, eventStore.getEventCount());
+
+        addEvent("e11");
+        assertEquals(10, eventStore.getEventCount());
+        assertEquals("e2", eventStore.getEvents(-1, 1).get(0).getString("event_type"));
+        assertEquals(0, eventStore.getIdentifyCount());
+    }
+
+    @Test
+    public void testEventMaxBytesEvictsOldestEvents() throws Exception {
+        long eventSize = Utils.getUtf8Length(new JSONObject().put("event_type", "e1").toString());
+        eventStore.setEventMaxBytes(eventSize * 3);
+        addEvent("e1");
+        addEvent("e2");
+        addEvent("e3");
+        assertEquals(3, eventStore.getEventCount());
+
+        addEvent("e4");
+        assertEquals(3, eventStore.getEventCount());
+        assertEquals("e2", eventStore.getEvents(-1, 1).get(0).getString("event_type"));
+        assertEquals(eventSize * 3, eventStore.getTotalPayloadSize());
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        addEvent("e1");
+        assertTrue(directory.exists());
+        eventStore.delete();
+        assertFalse(directory.exists());
+    }
+}
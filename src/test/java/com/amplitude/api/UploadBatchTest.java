@@ -0,0 +1,61 @@
+package com.amplitude.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+@Config(manifest=Config.NONE)
+public class UploadBatchTest {
+
+    @Test
+    public void testSplicesEventIds() throws JSONException {
+        UploadBatch batch = new UploadBatch();
+        assertEquals("[]", batch.getEvents());
+
+        batch.addEvent(3, new JSONObject().put("event_type", "test").put("price", 1.5).toString());
+        batch.addIdentify(7, " { } ");
+        batch.addEvent(4, "not json");
+        assertEquals(2, batch.getCount());
+        assertEquals(4, batch.getMaxEventId());
+        assertEquals(7, batch.getMaxIdentifyId());
+
+        JSONArray events = new JSONArray(batch.getEvents());
+        assertEquals(2, events.length());
+        assertEquals(3, events.getJSONObject(0).getLong("event_id"));
+        assertEquals("test", events.getJSONObject(0).getString("event_type"));
+        assertEquals(1.5, events.getJSONObject(0).getDouble("price"), 0);
+        assertEquals(7, events.getJSONObject(1).getLong("event_id"));
+        assertEquals(1, events.getJSONObject(1).length());
+
+        // the batch stays open for more rows after it was read
+        batch.addEvent(5, "{\"event_type\":\"later\"}");
+        assertEquals(3, new JSONArray(batch.getEvents()).length());
+    }
+
+    @Test
+    public void testGetSequenceNumber() throws JSONException {
+        JSONObject event = new JSONObject()
+                .put("event_type", "\"sequence_number\":5")
+                .put("event_properties", new JSONObject().put("sequence_number", 6))
+                .put("sequence_number", 42);
+        assertEquals(42, UploadBatch.getSequenceNumber(event.toString()));
+        assertEquals(-1, UploadBatch.getSequenceNumber(
+                new JSONObject().put("event_properties", new JSONObject().put("sequence_number", 6)).toString()));
+        assertEquals(-1, UploadBatch.getSequenceNumber("{\"sequence_number\":null}"));
+        assertEquals(12, UploadBatch.getSequenceNumber("{ \"sequence_number\" : 12 }"));
+
+        assertTrue(UploadBatch.isEventFirst(-1, 1));
+        assertTrue(UploadBatch.isEventFirst(1, 2));
+        assertFalse(UploadBatch.isEventFirst(3, 2));
+    }
+}